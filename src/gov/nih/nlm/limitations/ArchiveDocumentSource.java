@@ -0,0 +1,206 @@
+package gov.nih.nlm.limitations;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Document source that streams the entries of a tar (optionally gzipped) or zip archive,
+ * without extracting them to disk. Only regular entries with the given extension are returned, 
+ * the document id is the entry file name without directories and extension. Compressed entries 
+ * (e.g., <code>PMC123.xml.gz</code>) are decompressed as they are read.
+ * 
+ * @author Halil Kilicoglu
+ *
+ */
+public class ArchiveDocumentSource implements DocumentSource {
+	private static final int TAR_BLOCK = 512;
+
+	private String ext;
+	private InputStream in;
+	private ZipInputStream zip = null;
+	private DocumentRecord nextRecord = null;
+	private byte[] header = new byte[TAR_BLOCK];
+
+	/**
+	 * 
+	 * @param archive	the archive file (<code>.tar</code>, <code>.tar.gz</code>, <code>.tgz</code> or <code>.zip</code>)
+	 * @param ext		the extension of the entries to read, without the dot
+	 * @throws IOException	if the archive cannot be opened
+	 */
+	public ArchiveDocumentSource(String archive, String ext) throws IOException {
+		this.ext = ext;
+		if (archive.endsWith(".tgz")) 
+			this.in = new GZIPInputStream(CorpusIO.openInputStream(archive), 1 << 16);
+		else 
+			this.in = CorpusIO.openInputStream(archive);
+		if (archive.endsWith(".zip")) zip = new ZipInputStream(in, StandardCharsets.UTF_8);
+		nextRecord = readNext();
+	}
+	
+	public static boolean isArchive(String filename) {
+		return filename.endsWith(".tar") || filename.endsWith(".tar.gz") || filename.endsWith(".tgz") || filename.endsWith(".zip");
+	}
+
+	public boolean hasNext() {
+		return nextRecord != null;
+	}
+
+	public DocumentRecord next() {
+		if (nextRecord == null) throw new NoSuchElementException();
+		DocumentRecord rec = nextRecord;
+		try {
+			nextRecord = readNext();
+		} catch (IOException ioe) {
+			throw new RuntimeException("Unable to read the archive entry after " + rec.getName(), ioe);
+		}
+		return rec;
+	}
+	
+	private DocumentRecord readNext() throws IOException {
+		if (zip != null) return readNextZip();
+		return readNextTar();
+	}
+	
+	private DocumentRecord readNextZip() throws IOException {
+		ZipEntry entry;
+		while ((entry = zip.getNextEntry()) != null) {
+			if (entry.isDirectory() || CorpusIO.hasExtension(entry.getName(), ext) == false) continue;
+			byte[] content = readEntry(zip, -1, entry.getName());
+			return new DocumentRecord(entryId(entry.getName()), entry.getName(), content);
+		}
+		return null;
+	}
+
+	private DocumentRecord readNextTar() throws IOException {
+		String longName = null;
+		while (true) {
+			if (readBlock(header) == false) return null;
+			if (isZeroBlock(header)) return null;
+			String name = longName != null ? longName : tarString(header, 0, 100);
+			longName = null;
+			String prefix = tarString(header, 345, 155);
+			if (prefix.length() > 0 && header[257] == 'u') name = prefix + "/" + name;
+			long size = tarOctal(header, 124, 12);
+			byte type = header[156];
+			if (type == 'L') {
+				// GNU long name, the name of the next entry is in the data
+				longName = new String(readFully(in, size), StandardCharsets.UTF_8).trim();
+				skipPadding(size);
+				continue;
+			}
+			if (type == 'x') {
+				// pax extended header, only the path is relevant
+				String pax = new String(readFully(in, size), StandardCharsets.UTF_8);
+				skipPadding(size);
+				for (String rec: pax.split("\n")) {
+					int eq = rec.indexOf(" path=");
+					if (eq >= 0) longName = rec.substring(eq + 6);
+				}
+				continue;
+			}
+			boolean regular = (type == '0' || type == 0);
+			if (regular == false || CorpusIO.hasExtension(name, ext) == false) {
+				skipFully(size);
+				skipPadding(size);
+				continue;
+			}
+			byte[] content = readEntry(in, size, name);
+			skipPadding(size);
+			return new DocumentRecord(entryId(name), name, content);
+		}
+	}
+	
+	private String entryId(String name) {
+		return CorpusIO.getId(name.substring(name.lastIndexOf('/')+1), ext);
+	}
+	
+	private boolean readBlock(byte[] block) throws IOException {
+		int off = 0;
+		while (off < block.length) {
+			int r = in.read(block, off, block.length - off);
+			if (r < 0) {
+				if (off == 0) return false;
+				throw new EOFException("Truncated tar archive");
+			}
+			off += r;
+		}
+		return true;
+	}
+	
+	private static boolean isZeroBlock(byte[] block) {
+		for (byte b: block) if (b != 0) return false;
+		return true;
+	}
+	
+	private static String tarString(byte[] block, int off, int len) {
+		int end = off;
+		while (end < off + len && block[end] != 0) end++;
+		return new String(block, off, end - off, StandardCharsets.UTF_8);
+	}
+	
+	private static long tarOctal(byte[] block, int off, int len) {
+		long val = 0;
+		for (int i = off; i < off + len; i++) {
+			byte b = block[i];
+			if (b == 0 || b == ' ') {
+				if (val > 0) break;
+				continue;
+			}
+			val = (val << 3) + (b - '0');
+		}
+		return val;
+	}
+	
+	private void skipPadding(long size) throws IOException {
+		long rem = size % TAR_BLOCK;
+		if (rem > 0) skipFully(TAR_BLOCK - rem);
+	}
+	
+	private void skipFully(long n) throws IOException {
+		while (n > 0) {
+			long s = in.skip(n);
+			if (s <= 0) {
+				if (in.read() < 0) throw new EOFException("Truncated tar archive");
+				s = 1;
+			}
+			n -= s;
+		}
+	}
+	
+	private static byte[] readEntry(InputStream is, long size, String name) throws IOException {
+		byte[] content = readFully(is, size);
+		if (CorpusIO.isCompressed(name) == false) return content;
+		try (InputStream entry = CorpusIO.decompress(new ByteArrayInputStream(content), name)) {
+			return readFully(entry, -1);
+		}
+	}
+
+	private static byte[] readFully(InputStream is, long size) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(size > 0 ? (int)size : 8192);
+		byte[] buf = new byte[8192];
+		long remaining = size;
+		while (size < 0 || remaining > 0) {
+			int toRead = (size < 0 ? buf.length : (int)Math.min(buf.length, remaining));
+			int r = is.read(buf, 0, toRead);
+			if (r < 0) {
+				if (size < 0) break;
+				throw new EOFException("Truncated archive entry");
+			}
+			bos.write(buf, 0, r);
+			remaining -= r;
+		}
+		return bos.toByteArray();
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -0,0 +1,263 @@
+package gov.nih.nlm.limitations;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import gov.nih.nlm.ling.core.Sentence;
+import gov.nih.nlm.ling.core.Span;
+import gov.nih.nlm.ling.process.SentenceSegmenter;
+import gov.nih.nlm.pmc.PMCSentenceSegmenter;
+import nu.xom.Builder;
+import nu.xom.Element;
+
+/**
+ * A rule-based sentence segmenter for biomedical text, which reads the text once, character by character.
+ * It can be used instead of {@link PMCSentenceSegmenter} by setting the <code>sentenceSegmenter</code>
+ * property to <code>gov.nih.nlm.limitations.BiomedicalSentenceSegmenter</code>. <p>
+ *
+ * Line breaks always end a sentence. Otherwise, a sentence ends at a period, question mark or exclamation
+ * mark (and any closing quotes or brackets after it) that is followed by whitespace and a sentence that starts
+ * with an uppercase letter, a number or a name such as <i>qPCR</i>, or by a citation number (e.g., <i>as shown previously.12,13 The</i>). A period
+ * does not end a sentence after common abbreviations (<i>et al.</i>, <i>e.g.</i>, <i>Fig.</i>, <i>vs.</i>, etc.),
+ * in a number, or before a lowercase letter (<i>E. coli</i>). Segments without letters or digits
+ * are attached to the preceding sentence on the same line. <p>
+ *
+ * The <code>main</code> method compares the segmenter with {@link PMCSentenceSegmenter} on the texts of
+ * a directory of parsed XML files (e.g., <code>DATA/XML</code>), for speed and for agreement on sentence boundaries.
+ *
+ * @author Halil Kilicoglu
+ *
+ */
+public class BiomedicalSentenceSegmenter implements SentenceSegmenter {
+
+	// periods after these (lowercased) do not end a sentence
+	private static final Set<String> ABBREVIATIONS = new HashSet<>(Arrays.asList(
+			"al", "e.g", "eg", "i.e", "ie", "cf", "vs", "viz", "ca", "approx", "resp", "fig", "figs", "tab", "eq", "eqs",
+			"ref", "refs", "suppl", "nos", "vol", "pp", "p", "ch", "sect", "dr", "mr", "mrs", "ms", "prof", "jr", "sr",
+			"st", "inc", "ltd", "co", "corp", "dept", "univ", "sp", "spp", "subsp", "var", "ssp", "b.i.d", "t.i.d",
+			"q.i.d", "q.d", "p.o", "i.v", "i.m", "i.p", "s.c", "wt", "ver",
+			"jan", "feb", "mar", "apr", "jun", "jul", "aug", "sep", "sept", "oct", "nov", "dec"));
+
+	// these are also words or units that end sentences (incubated for 30 min. Cells were ...), so a period
+	// after them only does not end a sentence before a lowercase letter or a number (no. 5)
+	private static final Set<String> ENDING_ABBREVIATIONS = new HashSet<>(Arrays.asList(
+			"no", "min", "sec", "max", "mol", "est"));
+
+	public void segment(String text, List<Sentence> sentences) {
+		int n = text.length();
+		int start = 0;
+		int count = sentences.size();
+		int i = 0;
+		while (i < n) {
+			char c = text.charAt(i);
+			if (c == '\n' || c == '\r') {
+				count = add(text, start, i, sentences, count);
+				start = i + 1;
+				i++;
+				continue;
+			}
+			if (c != '.' && c != '?' && c != '!') {
+				i++;
+				continue;
+			}
+			int end = boundary(text, i);
+			if (end < 0) {
+				i++;
+				continue;
+			}
+			count = add(text, start, end, sentences, count);
+			start = end;
+			i = end;
+		}
+		add(text, start, n, sentences, count);
+	}
+
+	/**
+	 *
+	 * @param text	the text
+	 * @param i		the position of a period, question mark or exclamation mark
+	 * @return the end of the sentence if it ends at <var>i</var>, or -1
+	 */
+	private static int boundary(String text, int i) {
+		int n = text.length();
+		char c = text.charAt(i);
+		int j = i + 1;
+		while (j < n && isCloser(text.charAt(j))) j++;
+		if (j == n) return j;
+		char next = text.charAt(j);
+		if (Character.isWhitespace(next) == false) {
+			// a citation number right after the period: previously.12,13 The ...
+			if (c != '.' || i == 0 || Character.isDigit(text.charAt(i-1)) || isCitationStart(next) == false) return -1;
+			int k = j;
+			// numbers can also be separated by spaces: previously.7, 8 The ...
+			while (k < n && (isCitation(text.charAt(k)) || (text.charAt(k) == ' ' && k + 1 < n && Character.isDigit(text.charAt(k+1))))) k++;
+			if (k < n && (text.charAt(k) == '.' || Character.isLetter(text.charAt(k)))) return -1;
+			int m = skipSpaces(text, k);
+			if (m == k || m == n || text.charAt(m) == '\n' || Character.isUpperCase(text.charAt(m))) return k;
+			return -1;
+		}
+		int m = skipSpaces(text, j);
+		if (m == n || text.charAt(m) == '\n' || text.charAt(m) == '\r') return j;
+		if (c == '.' && j == i + 1 && isAbbreviation(text, i, text.charAt(m))) return -1;
+		return (startsSentence(text, m) ? j : -1);
+	}
+
+	private static boolean isAbbreviation(String text, int period, char next) {
+		int b = period;
+		while (b > 0 && Character.isWhitespace(text.charAt(b-1)) == false && "([{\"'".indexOf(text.charAt(b-1)) < 0) b--;
+		if (b == period) return false;
+		String token = text.substring(b, period);
+		// these also end sentences: ... reported by Smith et al. To ...
+		if (token.equalsIgnoreCase("etc") || token.equals("al")) return Character.isUpperCase(next) == false;
+		if (ENDING_ABBREVIATIONS.contains(token.toLowerCase())) return Character.isLowerCase(next) || Character.isDigit(next);
+		return ABBREVIATIONS.contains(token.toLowerCase()) || isDotted(token);
+	}
+
+	// single letters separated by periods: p.o, i.t, b.i.d
+	private static boolean isDotted(String token) {
+		if (token.length() < 3) return false;
+		for (int i=0; i < token.length(); i++) {
+			boolean letter = (i % 2 == 0);
+			if (letter != Character.isLetter(token.charAt(i)) || (letter == false && token.charAt(i) != '.')) return false;
+		}
+		return true;
+	}
+
+	private static boolean startsSentence(String text, int m) {
+		char first = text.charAt(m);
+		if (Character.isUpperCase(first) || Character.isDigit(first)) return true;
+		// gene, variant and assay names: rs4813720, qPCR, eGFR
+		if (Character.isLowerCase(first)) {
+			for (int i=m+1; i < text.length() && Character.isWhitespace(text.charAt(i)) == false; i++)
+				if (Character.isUpperCase(text.charAt(i)) || Character.isDigit(text.charAt(i))) return true;
+			return false;
+		}
+		// an opening quote or bracket before an uppercase letter
+		if ("\"'([\u201c\u2018".indexOf(first) >= 0 && m + 1 < text.length())
+			return Character.isUpperCase(text.charAt(m+1));
+		return false;
+	}
+
+	private static int skipSpaces(String text, int j) {
+		while (j < text.length() && text.charAt(j) != '\n' && text.charAt(j) != '\r' && Character.isWhitespace(text.charAt(j))) j++;
+		return j;
+	}
+
+	private static boolean isCloser(char c) {
+		return c == ')' || c == ']' || c == '"' || c == '\'' || c == '\u2019' || c == '\u201d';
+	}
+
+	private static boolean isCitationStart(char c) {
+		return (c >= '1' && c <= '9') || c == '[';
+	}
+
+	private static boolean isCitation(char c) {
+		return Character.isDigit(c) || c == ',' || c == '[' || c == ']' || c == '-' || c == '\u2013' || c == '\u2014';
+	}
+
+	private static boolean hasText(String text, int b, int e) {
+		for (int i=b; i < e; i++)
+			if (Character.isLetterOrDigit(text.charAt(i))) return true;
+		return false;
+	}
+
+	/**
+	 * Adds the sentence between two offsets, without surrounding whitespace.
+	 *
+	 * @return the number of sentences
+	 */
+	private static int add(String text, int b, int e, List<Sentence> sentences, int count) {
+		while (b < e && Character.isWhitespace(text.charAt(b))) b++;
+		while (e > b && Character.isWhitespace(text.charAt(e-1))) e--;
+		if (b == e) return count;
+		if (hasText(text, b, e) == false) {
+			// punctuation left after a sentence on the same line belongs to it
+			if (sentences.isEmpty() == false) {
+				Sentence last = sentences.get(sentences.size()-1);
+				int lastEnd = last.getSpan().getEnd();
+				if (lastEnd <= b && text.substring(lastEnd, b).indexOf('\n') < 0) {
+					int lastBegin = last.getSpan().getBegin();
+					sentences.set(sentences.size()-1, new Sentence(last.getId(), text.substring(lastBegin, e), new Span(lastBegin, e)));
+				}
+			}
+			return count;
+		}
+		count++;
+		sentences.add(new Sentence("S" + count, text.substring(b, e), new Span(b, e)));
+		return count;
+	}
+
+	/**
+	 * Compares the segmenter with {@link PMCSentenceSegmenter} on the texts of parsed XML files.
+	 *
+	 * @param args	the directory of parsed XML files, and optionally the number of timed runs (default 5)
+	 * @throws Exception	if the files cannot be read
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: xmlDirectory [runs]");
+			System.exit(1);
+		}
+		int runs = (args.length > 1 ? Integer.parseInt(args[1]) : 5);
+		List<String> texts = new ArrayList<>();
+		long chars = 0;
+		Builder builder = new Builder();
+		File[] files = new File(args[0]).listFiles((dir, name) -> name.endsWith(".xml"));
+		Arrays.sort(files);
+		for (File file: files) {
+			Element text = builder.build(file).getRootElement().getFirstChildElement("text");
+			if (text == null) continue;
+			texts.add(text.getValue());
+			chars += text.getValue().length();
+		}
+		SentenceSegmenter pmc = new PMCSentenceSegmenter();
+		SentenceSegmenter fast = new BiomedicalSentenceSegmenter();
+		System.out.printf("%d texts, %.1f MB%n", texts.size(), chars / 1e6);
+		for (SentenceSegmenter segmenter: Arrays.asList(pmc, fast)) {
+			// the first run warms up the JIT
+			long best = Long.MAX_VALUE;
+			for (int r=0; r <= runs; r++) {
+				long start = System.nanoTime();
+				for (String text: texts)
+					segmenter.segment(text, new ArrayList<>());
+				if (r > 0) best = Math.min(best, System.nanoTime() - start);
+			}
+			System.out.printf("%s: %.1f ms, %.1f MB/s%n", segmenter.getClass().getSimpleName(), best / 1e6, chars / 1e6 / (best / 1e9));
+		}
+		// agreement on sentence ends (boundaries) and on whole sentences
+		long both = 0, pmcOnly = 0, fastOnly = 0, sameSentences = 0, pmcSentences = 0, fastSentences = 0;
+		for (String text: texts) {
+			List<Sentence> ps = new ArrayList<>();
+			List<Sentence> fs = new ArrayList<>();
+			pmc.segment(text, ps);
+			fast.segment(text, fs);
+			Set<Integer> pEnds = new HashSet<>();
+			Set<String> pSpans = new HashSet<>();
+			for (Sentence s: ps) {
+				pEnds.add(s.getSpan().getEnd());
+				pSpans.add(s.getSpan().toString());
+			}
+			Set<Integer> fEnds = new HashSet<>();
+			for (Sentence s: fs) {
+				fEnds.add(s.getSpan().getEnd());
+				if (pSpans.contains(s.getSpan().toString())) sameSentences++;
+			}
+			for (int e: fEnds) {
+				if (pEnds.contains(e)) both++;
+				else fastOnly++;
+			}
+			for (int e: pEnds)
+				if (fEnds.contains(e) == false) pmcOnly++;
+			pmcSentences += ps.size();
+			fastSentences += fs.size();
+		}
+		System.out.printf("Sentences: %d (PMCSentenceSegmenter), %d (BiomedicalSentenceSegmenter), %d identical%n",
+				pmcSentences, fastSentences, sameSentences);
+		System.out.printf("Boundaries: %d shared, %d only PMCSentenceSegmenter, %d only BiomedicalSentenceSegmenter; agreement %.1f%%%n",
+				both, pmcOnly, fastOnly, 100.0 * both / (both + pmcOnly + fastOnly));
+	}
+}
@@ -0,0 +1,220 @@
+package gov.nih.nlm.limitations;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import gov.nih.nlm.ling.core.Document;
+import gov.nih.nlm.ling.core.Sentence;
+import gov.nih.nlm.ling.util.FileUtils;
+
+/**
+ * Combined pipeline for PubMed Central articles. Parses the PMC XML, segments sections and sentences,
+ * preprocesses with Stanford CoreNLP and identifies limitation sentences with the rules of
+ * {@link RuleBasedLimitationSentenceRecognizer}, all in memory. <p>
+ *
+ * The parsed XML that {@link CorpusParser} would generate can optionally be written as a side output.
+ * Serialization is done on a separate thread, so that it does not hold up labeling.
+ *
+ * @author Halil Kilicoglu
+ *
+ */
+public class CombinedPMCLimitationRecognizer {
+	private static Logger log = Logger.getLogger(CombinedPMCLimitationRecognizer.class.getName());
+
+	private static final int XML_QUEUE_SIZE = 16;
+
+	private static Map<String,List<String>> posSentences = new HashMap<>();
+	private static ExecutorService xmlWriter = null;
+
+	private static void labelSentence(Sentence sent) {
+		Document doc = sent.getDocument();
+		String lbl = RuleBasedLimitationSentenceRecognizer.label(sent);
+		if (lbl.equals("POS")) {
+			List<String> ex = new ArrayList<>();
+			if (posSentences.containsKey(doc.getId()))
+					ex = posSentences.get(doc.getId());
+			ex.add(sent.getText());
+			posSentences.put(doc.getId(),ex);
+		}
+	}
+
+	private static void writeXmlAsync(Document doc, String outFilename) {
+		xmlWriter.submit(() -> {
+			try {
+				StreamingXmlWriter.write(doc, outFilename);
+			} catch (Exception e) {
+				log.log(Level.WARNING, "Unable to write the parsed XML for {0}.", new Object[]{doc.getId()});
+			}
+		});
+	}
+
+	public static void processArticle(String id, String filename, String xmlOut) throws Exception {
+		processDocument(CorpusParser.parseArticle(id, filename), xmlOut);
+	}
+
+	private static void processDocument(Document doc, String xmlOut) throws IOException {
+		String id = doc.getId();
+		if (xmlOut != null)
+			writeXmlAsync(doc, CorpusIO.outputFile(xmlOut, id, ".xml"));
+		if (doc.getSentences() == null) return;
+		DocumentEvent.Labeling labeling = new DocumentEvent.Labeling().start(id);
+		for (Sentence sent: doc.getSentences()) {
+			labelSentence(sent);
+		}
+		labeling.finish(doc, posSentences.containsKey(id) ? posSentences.get(id).size() : 0);
+	}
+
+	/**
+	 *
+	 * @param dir		the directory, tar/zip archive or JSON Lines file of PMC XML
+	 * @param out		the JSON output file
+	 * @param xmlOut	the directory to write the parsed XML to, or null if it is not needed
+	 * @throws Exception	if there is a problem with file reading/writing
+	 */
+	public static void processDirectory(String dir, String out, String xmlOut) throws Exception {
+		if (CorpusIO.isSource(dir) == false) return;
+		int fileNum = 0;
+		List<String> ids = new ArrayList<>();
+		if (xmlOut != null) {
+			CorpusIO.initOutputDirectory(xmlOut);
+			// a bounded queue keeps the number of documents waiting for serialization in check
+			xmlWriter = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(XML_QUEUE_SIZE), new ThreadPoolExecutor.CallerRunsPolicy());
+		}
+
+		ResultStore store = ResultStore.configured();
+		Map<String,Long> versions = new HashMap<>();
+		int unchanged = 0;
+
+		try (DocumentSource source = CorpusIO.openSource(dir, "xml");
+				DocumentSupervisor supervisor = new DocumentSupervisor(out + ".quarantine.tsv");
+				ResultStore.View stored = (store == null ? null : store.view())) {
+			while (source.hasNext()) {
+				DocumentRecord rec = source.next();
+				String id = rec.getId();
+				long version = 0;
+				if (stored != null) {
+					version = ResultStore.fingerprint(rec);
+					if (stored.version(id) == version) {
+						unchanged++;
+						continue;
+					}
+				}
+				ids.add(id);
+				if (supervisor.isQuarantined(id)) {
+					log.info("Skipping quarantined document " + id);
+					continue;
+				}
+				log.info("Processing " + id + ": " + ++fileNum);
+				try {
+					String articleFile = CorpusIO.toFile(rec);
+					Document doc = supervisor.run(id, () -> CorpusParser.parseArticle(id, articleFile));
+					if (doc != null) {
+						processDocument(doc, xmlOut);
+						versions.put(id, version);
+					}
+				} catch (Exception e) {
+					log.warning("Error processing file. Skipping... " + id);
+				}
+			}
+		}
+		if (xmlWriter != null) {
+			xmlWriter.shutdown();
+			xmlWriter.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		List<LimitationSummary> sums = new ArrayList<>();
+		int posCount = 0;
+		for (String id: ids) {
+			if (posSentences.containsKey(id)) {
+				List<String> sents = posSentences.get(id);
+				sums.add(new LimitationSummary(id,sents.size(),sents));
+				posCount++;
+			} else {
+				sums.add(new LimitationSummary(id,0,new ArrayList<>()));
+			}
+		}
+
+		ObjectMapper mapper = new ObjectMapper();
+		mapper.writerWithDefaultPrettyPrinter().writeValue(Paths.get(out).toFile(), sums);
+		if (LimitationIndex.isEnabled()) LimitationIndex.write(sums, out + ".idx");
+		System.out.println("Number of articles with limitations: " + posCount);
+		System.out.println("Number of total articles: " + ids.size());
+		if (store != null) {
+			System.out.println("Number of unchanged articles skipped: " + unchanged);
+			store.add(sums, versions);
+			store.close();
+		}
+		if (SentenceAnnotator.hasReport())
+			System.out.println(SentenceAnnotator.report());
+		SentenceAnnotator.saveCache();
+	}
+
+	/**
+	 * Initializes CoreNLP and the sentence segmenter from properties. With <code>resultIndex=true</code>,
+	 * a {@link LimitationIndex} of the output is also written. With <code>resultStore</code>, only the articles
+	 * that are not in the {@link ResultStore} with the same content are processed, and they are added to it.
+	 *
+	 * @param props	the properties to use for initialization
+	 *
+	 * @throws ClassNotFoundException	if the sentence segmenter class cannot be found
+	 * @throws IllegalAccessException	if the sentence segmenter cannot be accessed
+	 * @throws InstantiationException	if the sentence segmenter cannot be initializaed
+	 */
+	public static void init(Properties props)
+			throws InstantiationException, IllegalAccessException, ClassNotFoundException {
+		CorpusParser.init(props);
+		LimitationIndex.init(props);
+		ResultStore.init(props);
+	}
+
+	public static void main(String[] args)
+			throws IOException, InstantiationException,
+			IllegalAccessException, ClassNotFoundException, Exception {
+		if (args.length < 2) {
+			System.err.print("Usage: articleDirectory|archive|jsonl outFile [xmlOutputDirectory|- [propertiesFile]]");
+		}
+
+		String in = args[0];
+		String out = args[1];
+		String xmlOut = (args.length > 2 && args[2].equals("-") == false ? args[2] : null);
+		if (CorpusIO.isSource(in) == false) {
+			System.err.println("First argument is required to be an input directory, archive or JSON Lines file:" + in);
+			System.exit(1);
+		}
+		if (xmlOut != null) {
+			File xmlOutDir = new File(xmlOut);
+			if (xmlOutDir.isDirectory() == false) {
+				System.err.println("The directory " + xmlOutDir + " doesn't exist. Creating a new directory..");
+				xmlOutDir.mkdir();
+			}
+		}
+
+		Properties props = new Properties();
+		props.put("sentenceSegmenter","gov.nih.nlm.pmc.PMCSentenceSegmenter");
+		// the rules only need lemmas, parse trees are only needed for the XML output
+		if (xmlOut == null)
+			props.put("annotators","tokenize,ssplit,pos,lemma");
+		else
+			props.put("annotators","tokenize,ssplit,pos,lemma,parse");
+		props.put("tokenize.options","invertible=true");
+		props.put("ssplit.isOneSentence","true");
+		if (args.length > 3) props.putAll(FileUtils.loadPropertiesFromFile(args[3]));
+		init(props);
+		processDirectory(in,out,xmlOut);
+	}
+
+}
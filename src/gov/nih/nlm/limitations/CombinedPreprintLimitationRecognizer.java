@@ -1,6 +1,5 @@
 package gov.nih.nlm.limitations;
 
-import java.io.File;
 import java.io.IOException;
 import java.nio.file.Paths;
 import java.util.ArrayList;
@@ -13,6 +12,7 @@ import java.util.logging.Logger;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import gov.nih.nlm.ling.core.Document;
+import gov.nih.nlm.ling.core.Section;
 import gov.nih.nlm.ling.core.Sentence;
 import gov.nih.nlm.ling.process.ComponentLoader;
 import gov.nih.nlm.ling.process.SentenceSegmenter;
@@ -21,7 +21,14 @@ import gov.nih.nlm.ling.wrappers.CoreNLPWrapper;
 
 /**
  * Combined pipeline for preprint processing. Performs preprocessing with Stanford CoreNLP, and 
- * identifies limitation sentences.
+ * identifies limitation sentences. <p>
+ * 
+ * The preprints are plain text by default. With <code>preprintFormat=tei</code>, they are GROBID TEI XML files
+ * (<code>.xml</code>), read with their sections by {@link TeiReader}; only the sections that can contain 
+ * limitations (see {@link RuleBasedLimitationSentenceRecognizer#isCandidateSection(Section)}) are segmented
+ * and annotated, and their sentences are labeled with the section-based rules of
+ * {@link RuleBasedLimitationSentenceRecognizer}. TEI preprints without such a section (e.g., when GROBID
+ * did not recognize the headings) are processed as plain text.
  * 
  * @author Halil Kilicoglu
  *
@@ -32,6 +39,7 @@ public class CombinedPreprintLimitationRecognizer {
 
 	private static SentenceSegmenter segmenter = null;
 	private static Map<String,List<String>> posSentences = new HashMap<>();
+	private static boolean teiInput = false;
 
 	private static void labelSentence(Sentence sent) {
 		Document doc = sent.getDocument();
@@ -45,11 +53,19 @@ public class CombinedPreprintLimitationRecognizer {
 		}
 	}
 
+	/**
+	 * Labels a sentence with the section-based rules if its document has sections (TEI input), 
+	 * and with the paragraph-based rules otherwise.
+	 * 
+	 * @param sent	the sentence
+	 * @return POS or NEG
+	 */
 	public static String label(Sentence sent) {
 		Document doc = sent.getDocument();
+		if (doc.getSections() != null) return RuleBasedLimitationSentenceRecognizer.label(sent);
 //		if (Utils.inLimitationParagraph(sent,false)) { // More strict version 
 		if (Utils.inLimitationParagraph2(sent,false)) {			// Looser version
-			log.fine("In limitation paragraph:" + doc.getId() + "|" + sent.getId() + "|" +  sent.getText());
+			log.fine(() -> "In limitation paragraph:" + doc.getId() + "|" + sent.getId() + "|" +  sent.getText());
 			return "POS";
 		}
 		else {
@@ -57,81 +73,227 @@ public class CombinedPreprintLimitationRecognizer {
 		}
 	}
 
-	private static Document preprocessArticle(String id, String filename) throws Exception {
-		String allText = stripNonValidXML(FileUtils.stringFromFile(filename, "UTF-8"));
+	private static Document preprocess(DocumentRecord rec) throws Exception {
+		if (teiInput) return preprocessTei(rec);
+		return preprocessArticle(rec.getId(), rec.getText());
+	}
+
+	private static Document preprocessTei(DocumentRecord rec) throws Exception {
+		long start = System.nanoTime();
+		String id = rec.getId();
+		Document doc = TeiReader.read(rec);
+		boolean sections = false;
+		if (doc.getSections() != null) {
+			for (Section section: doc.getSections())
+				sections |= RuleBasedLimitationSentenceRecognizer.isCandidateSection(section);
+		}
+		if (sections == false) {
+			log.fine(() -> "No discussion or limitation section, processing as plain text: " + id);
+			return preprocessArticle(id, doc.getText());
+		}
+		DocumentLog.text(log, id, "Full-text", () -> doc.getText());
+
+		DocumentEvent segmentation = new DocumentEvent.Segmentation().start(id);
+		List<Sentence> sentences = TeiReader.segment(doc, segmenter, RuleBasedLimitationSentenceRecognizer::isCandidateSection);
+		segmentation.finish(doc.getText().length(), sentences.size(), null);
+		DocumentEvent annotation = new DocumentEvent.Annotation().start(id);
+		SentenceAnnotator.annotate(sentences);
+		annotation.finish(doc.getText().length(), sentences.size(), null);
+		for (Sentence sentence: sentences) {
+			doc.addSentence(sentence);
+			sentence.setDocument(doc);
+		}
+		DocumentLog.event(log, "parsed", "id", id, "chars", doc.getText().length(), "sentences", sentences.size(),
+				"ms", DocumentLog.millisSince(start));
+		return doc;
+	}
+
+	private static Document preprocessArticle(String id, String text) throws Exception {
+		long start = System.nanoTime();
+		String allText = TextDecoder.sanitize(text);
 		Document doc = new Document(id, allText);
-		log.fine("Full-text: " + allText);
+		DocumentLog.text(log, id, "Full-text", () -> allText);
 
 		List<Sentence> sentences = new ArrayList<>();
+		DocumentEvent segmentation = new DocumentEvent.Segmentation().start(id);
 		segmenter.segment(doc.getText(), sentences);
+		segmentation.finish(doc.getText().length(), sentences.size(), null);
+		DocumentEvent annotation = new DocumentEvent.Annotation().start(id);
+		SentenceAnnotator.annotate(sentences);
+		annotation.finish(doc.getText().length(), sentences.size(), null);
 		for (Sentence sentence: sentences) {
-			CoreNLPWrapper.coreNLP(sentence);
 			doc.addSentence(sentence);
 			sentence.setDocument(doc);
 		}
+		DocumentLog.event(log, "parsed", "id", id, "chars", allText.length(), "sentences", sentences.size(),
+				"ms", DocumentLog.millisSince(start));
 		return doc;
 	}
 	
-	private static String stripNonValidXML(String in) {
-	    StringBuffer out = new StringBuffer();
-	    char current;
-
-	    if (in == null || ("".equals(in))) return ""; 
-	    for (int i = 0; i < in.length(); i++) {
-	        current = in.charAt(i); 
-	        if ((current == 0x9) ||
-	            (current == 0xA) ||
-	            (current == 0xD) ||
-	            ((current >= 0x20) && (current <= 0xD7FF)) ||
-	            ((current >= 0xE000) && (current <= 0xFFFD)) ||
-	            ((current >= 0x10000) && (current <= 0x10FFFF)))
-	            out.append(current);
-	    }
-	    return out.toString();
-	} 
 		
 	public static void processArticle(String id, String filename) throws Exception {
-		Document doc = preprocessArticle(id,filename);
+		processText(id, new DocumentRecord(id, filename).getText());
+	}
+
+	public static void processText(String id, String text) throws Exception {
+		labelDocument(preprocessArticle(id,text));
+	}
+
+	private static void labelDocument(Document doc) {
 		if (doc.getSentences() == null) return;
+		DocumentEvent.Labeling labeling = new DocumentEvent.Labeling().start(doc.getId());
 		for (Sentence sent: doc.getSentences()) {
 			labelSentence(sent);
 		}
+		labeling.finish(doc, posSentences.containsKey(doc.getId()) ? posSentences.get(doc.getId()).size() : 0);
 	}
 	
 	public static void processDirectory(String dir, String out) throws Exception {
-		File articleDir = new File(dir);
-		if (articleDir.isDirectory() == false) return;
+		if (CorpusIO.isSource(dir) == false) return;
+		if (CorpusEstimator.isEnabled()) {
+			estimateDirectory(dir, out);
+			return;
+		}
 		int fileNum = 0;
-		List<String> files = FileUtils.listFiles(dir,false, "txt");
+		List<String> ids = new ArrayList<>();
+		NearDuplicateDetector dedup = null;
+		if (NearDuplicateDetector.isEnabled()) {
+			// the changed paragraphs of a near-duplicate cannot be labeled without their sections
+			if (teiInput) log.warning("Near-duplicate detection is not used with TEI input.");
+			else dedup = new NearDuplicateDetector();
+		}
+
+		ResultStore store = ResultStore.configured();
+		Map<String,Long> versions = new HashMap<>();
+		int unchanged = 0;
 
-		for (String filename: files) {
-			String id = filename.substring(filename.lastIndexOf(File.separator)+1).replace(".txt", "");
-			log.info("Processing " + id + ": " + ++fileNum);
-			processArticle(id,filename);
+		try (DocumentSource source = CorpusIO.openSource(dir, inputExtension());
+				DocumentSupervisor supervisor = new DocumentSupervisor(out + ".quarantine.tsv");
+				ResultStore.View stored = (store == null ? null : store.view())) {
+			while (source.hasNext()) {
+				DocumentRecord rec = source.next();
+				String id = rec.getId();
+				long version = 0;
+				if (stored != null) {
+					version = ResultStore.fingerprint(rec);
+					if (stored.version(summaryId(id)) == version) {
+						unchanged++;
+						continue;
+					}
+				}
+				ids.add(id);
+				if (supervisor.isQuarantined(id)) {
+					log.info("Skipping quarantined document " + id);
+					continue;
+				}
+				log.info("Processing " + id + ": " + ++fileNum);
+				if (dedup == null) {
+					Document doc = supervisor.run(id, () -> preprocess(rec));
+					if (doc != null) {
+						labelDocument(doc);
+						versions.put(summaryId(id), version);
+					}
+					continue;
+				}
+				String text = rec.getText();
+				NearDuplicateDetector.Match match = dedup.match(id, text);
+				String changed = match.getText();
+				Document doc = null;
+				if (changed.isEmpty() == false) {
+					doc = supervisor.run(id, () -> preprocessArticle(id,changed));
+					if (doc == null) continue;
+				}
+				DocumentEvent.Labeling labeling = new DocumentEvent.Labeling().start(id);
+				List<String> sents = match.complete(doc, sent -> label(sent).equals("POS"));
+				labeling.finish(doc, sents.size());
+				if (sents.isEmpty() == false) posSentences.put(id, sents);
+				versions.put(summaryId(id), version);
+			}
 		}
 		List<LimitationSummary> sums = new ArrayList<>();
 		int posCount = 0;
-		for (String filename: files) {
-			String id = filename.substring(filename.lastIndexOf(File.separator)+1).replace(".txt", "");
+		for (String id: ids) {
 			if (posSentences.containsKey(id)) {
 				List<String> sents = posSentences.get(id);
-				LimitationSummary sum = new LimitationSummary(id.replace(".tei", "").replace("_","/"),sents.size(),sents);
+				LimitationSummary sum = new LimitationSummary(summaryId(id),sents.size(),sents);
 				sums.add(sum);
 				posCount++;
 			} else {
-				sums.add(new LimitationSummary(id.replace(".tei", "").replace("_","/"),0,new ArrayList<>()));
+				sums.add(new LimitationSummary(summaryId(id),0,new ArrayList<>()));
 			}
 		}
 		
 		ObjectMapper mapper = new ObjectMapper();
 		mapper.writerWithDefaultPrettyPrinter().writeValue(Paths.get(out).toFile(), sums);
+		if (LimitationIndex.isEnabled()) LimitationIndex.write(sums, out + ".idx");
 		System.out.println("Number of preprints with limitations: " + posCount);
-		System.out.println("Number of total preprints: " + files.size());
+		System.out.println("Number of total preprints: " + ids.size());
+		if (store != null) {
+			System.out.println("Number of unchanged preprints skipped: " + unchanged);
+			store.add(sums, versions);
+			store.close();
+		}
+		if (dedup != null)
+			System.out.println(dedup.report());
+		if (SentenceAnnotator.hasReport())
+			System.out.println(SentenceAnnotator.report());
+		SentenceAnnotator.saveCache();
 	}
 	
 
 	/**
-	 * Initializes CoreNLP and the sentence segmenter from properties.
+	 * Estimates the proportion of preprints with limitations and the number of limitation sentences per preprint
+	 * from a sample, as configured for {@link CorpusEstimator}. The summaries of the sampled preprints are written
+	 * to the output file.
+	 * 
+	 * @param dir	the directory, archive or JSON Lines file of preprints
+	 * @param out	the JSON output file
+	 * @throws Exception	if there is a problem with file reading/writing
+	 */
+	public static void estimateDirectory(String dir, String out) throws Exception {
+		List<String> ids = new ArrayList<>();
+		CorpusEstimator.Estimate estimate;
+		try (DocumentSupervisor supervisor = new DocumentSupervisor(out + ".quarantine.tsv")) {
+			estimate = CorpusEstimator.estimate(dir, inputExtension(), rec -> {
+				String id = rec.getId();
+				if (supervisor.isQuarantined(id)) return null;
+				log.info("Processing " + id + ": " + (ids.size()+1));
+				Document doc = supervisor.run(id, () -> preprocess(rec));
+				if (doc == null) return null;
+				ids.add(id);
+				labelDocument(doc);
+				return (posSentences.containsKey(id) ? posSentences.get(id).size() : 0);
+			});
+		}
+		List<LimitationSummary> sums = new ArrayList<>();
+		for (String id: ids) {
+			List<String> sents = posSentences.getOrDefault(id, new ArrayList<>());
+			sums.add(new LimitationSummary(summaryId(id),sents.size(),sents));
+		}
+		ObjectMapper mapper = new ObjectMapper();
+		mapper.writerWithDefaultPrettyPrinter().writeValue(Paths.get(out).toFile(), sums);
+		if (LimitationIndex.isEnabled()) LimitationIndex.write(sums, out + ".idx");
+		System.out.println(estimate.report("preprints"));
+		if (SentenceAnnotator.hasReport())
+			System.out.println(SentenceAnnotator.report());
+		SentenceAnnotator.saveCache();
+	}
+
+	// the id of a preprint in the output, e.g., 10.1101/2020.04.13.20063792 for 10.1101_2020.04.13.20063792.tei
+	private static String summaryId(String id) {
+		return id.replace(".tei", "").replace("_","/");
+	}
+
+	private static String inputExtension() {
+		return (teiInput ? "xml" : "txt");
+	}
+
+	/**
+	 * Initializes CoreNLP and the sentence segmenter from properties. The input format is given in 
+	 * <code>preprintFormat</code> (<code>txt</code>, the default, or <code>tei</code>). The estimation options are described
+	 * in {@link CorpusEstimator}, and the near-duplicate detection options in {@link NearDuplicateDetector}. With
+	 * <code>resultIndex=true</code>, a {@link LimitationIndex} of the output is also written. With <code>resultStore</code>,
+	 * only the preprints that are not in the {@link ResultStore} with the same content are processed, and they are added to it.
 	 * 
 	 * @param props	the properties to use for initialization
 	 * 
@@ -142,21 +304,29 @@ public class CombinedPreprintLimitationRecognizer {
 	public static void init(Properties props) 
 			throws InstantiationException, IllegalAccessException, ClassNotFoundException {
 		CoreNLPWrapper.getInstance(props);
+		SentenceAnnotator.init(props);
 		segmenter = ComponentLoader.getSentenceSegmenter(props);
+		CorpusIO.init(props);
+		DocumentSupervisor.init(props);
+		DocumentLog.init(props);
+		CorpusEstimator.init(props);
+		NearDuplicateDetector.init(props);
+		LimitationIndex.init(props);
+		ResultStore.init(props);
+		teiInput = props.getProperty("preprintFormat", "txt").equals("tei");
 	}
 
 	public static void main(String[] args) 
 			throws IOException, InstantiationException, 
 			IllegalAccessException, ClassNotFoundException, Exception {
 		if (args.length < 2) {
-			System.err.print("Usage: articleDirectory outFile");
+			System.err.print("Usage: articleDirectory|archive|jsonl outFile [propertiesFile]");
 		}
 
 		String in = args[0];
 		String out = args[1];
-		File inDir = new File(in);
-		if (inDir.isDirectory() == false) {
-			System.err.println("First argument is required to be an input directory:" + in);
+		if (CorpusIO.isSource(in) == false) {
+			System.err.println("First argument is required to be an input directory, archive or JSON Lines file:" + in);
 			System.exit(1);
 		}
 		
@@ -165,6 +335,7 @@ public class CombinedPreprintLimitationRecognizer {
 		props.put("annotators","tokenize,ssplit,pos,lemma");	
 		props.put("tokenize.options","invertible=true");
 		props.put("ssplit.isOneSentence","true");
+		if (args.length > 2) props.putAll(FileUtils.loadPropertiesFromFile(args[2]));
 		init(props);
 		processDirectory(in,out);
 	}
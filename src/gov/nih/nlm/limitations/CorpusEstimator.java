@@ -0,0 +1,316 @@
+package gov.nih.nlm.limitations;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+/**
+ * Estimates corpus-level statistics from a random sample of documents, instead of processing every document:
+ * the proportion of documents with at least one limitation sentence and the mean number of limitation sentences
+ * per document, with confidence intervals. <p>
+ *
+ * The input is read once to build the sampling frame (document ids and sizes only), and the sample is drawn from it,
+ * either as a simple random sample or as a stratified sample with proportional allocation. Strata are based on the
+ * file size (<code>size</code>: powers of two in bytes) or on the first characters of the document id
+ * (<code>prefix</code>). The sample is processed in waves, each a random part of the sample and each one more pass
+ * over the input; after each wave the estimates are updated, and processing stops early if the confidence interval
+ * of the proportion is narrower than the target width. <p>
+ *
+ * The proportion interval is a Wilson score interval, computed with the effective sample size of the (stratified)
+ * design and the finite population correction; the mean interval is a normal interval. The options are:
+ * <ul>
+ * <li><code>estimateSample</code>: the sample size, as a number of documents or, if less than 1, a fraction of the corpus
+ * <li><code>estimateStratify</code>: <code>none</code> (default), <code>size</code> or <code>prefix</code>
+ * <li><code>estimatePrefixLength</code>: the number of id characters that define a stratum with <code>prefix</code> (default 4)
+ * <li><code>estimateTargetWidth</code>: the width of the proportion interval to stop at, e.g. 0.05 (default 0, no early stop)
+ * <li><code>estimateWaves</code>: the number of waves (default 10 with a target width, 1 otherwise)
+ * <li><code>estimateConfidence</code>: the confidence level (default 0.95)
+ * <li><code>estimateSeed</code>: the random seed, so that a sample can be reproduced (default 1)
+ * </ul>
+ *
+ * @author Halil Kilicoglu
+ *
+ */
+public class CorpusEstimator {
+	private static Logger log = Logger.getLogger(CorpusEstimator.class.getName());
+
+	private static double sample = 0;
+	private static String stratify = "none";
+	private static int prefixLength = 4;
+	private static double targetWidth = 0;
+	private static int waves = 0;
+	private static double confidence = 0.95;
+	private static long seed = 1;
+
+	/**
+	 * Sets the estimation options from properties.
+	 *
+	 * @param props	the properties
+	 */
+	public static void init(Properties props) {
+		sample = Double.parseDouble(props.getProperty("estimateSample", "0"));
+		stratify = props.getProperty("estimateStratify", "none");
+		if (stratify.equals("none") == false && stratify.equals("size") == false && stratify.equals("prefix") == false)
+			throw new IllegalArgumentException("Unknown estimateStratify value: " + stratify);
+		prefixLength = Integer.parseInt(props.getProperty("estimatePrefixLength", "4"));
+		targetWidth = Double.parseDouble(props.getProperty("estimateTargetWidth", "0"));
+		waves = Integer.parseInt(props.getProperty("estimateWaves", targetWidth > 0 ? "10" : "1"));
+		confidence = Double.parseDouble(props.getProperty("estimateConfidence", "0.95"));
+		seed = Long.parseLong(props.getProperty("estimateSeed", "1"));
+	}
+
+	public static boolean isEnabled() {
+		return sample > 0;
+	}
+
+	/**
+	 * Processes a sampled document.
+	 */
+	public interface DocumentProcessor {
+		/**
+		 *
+		 * @param rec	the document
+		 * @return the number of limitation sentences in the document, or null if the document could not be processed
+		 * @throws Exception	if processing fails
+		 */
+		Integer process(DocumentRecord rec) throws Exception;
+	}
+
+	private static class Stratum {
+		private List<Integer> ordinals = new ArrayList<>();
+		private int population = 0;
+		private int selected = 0;
+		private int n = 0;
+		private int positives = 0;
+		private double sum = 0;
+		private double sumSquares = 0;
+
+		private void add(int count) {
+			n++;
+			if (count > 0) positives++;
+			sum += count;
+			sumSquares += (double)count * count;
+		}
+
+		// the estimated variance of the stratum mean, with the finite population correction
+		private double meanVariance(double y, double y2) {
+			if (n < 2) return 0;
+			double s2 = (y2 - y * y / n) / (n - 1);
+			return (1.0 - (double)n / population) * Math.max(s2, 0) / n;
+		}
+	}
+
+	/**
+	 * The estimates for the documents processed so far.
+	 */
+	public static class Estimate {
+		private int population;
+		private int processed;
+		private int strata;
+		private int wavesDone;
+		private int wavesTotal;
+		private double proportion;
+		private double proportionLow;
+		private double proportionHigh;
+		private double mean;
+		private double meanLow;
+		private double meanHigh;
+
+		public int getPopulation() {
+			return population;
+		}
+
+		public int getProcessed() {
+			return processed;
+		}
+
+		public double getProportion() {
+			return proportion;
+		}
+
+		public double getProportionLow() {
+			return proportionLow;
+		}
+
+		public double getProportionHigh() {
+			return proportionHigh;
+		}
+
+		public double getMean() {
+			return mean;
+		}
+
+		public double getMeanLow() {
+			return meanLow;
+		}
+
+		public double getMeanHigh() {
+			return meanHigh;
+		}
+
+		/**
+		 *
+		 * @param unit	what the documents are, e.g. <i>preprints</i>
+		 * @return a summary of the estimates
+		 */
+		public String report(String unit) {
+			int level = (int)Math.round(confidence * 100);
+			StringBuilder buf = new StringBuilder();
+			buf.append(String.format("Estimated proportion of %s with limitations: %.3f (%d%% CI %.3f-%.3f), about %d of %d%n",
+					unit, proportion, level, proportionLow, proportionHigh, Math.round(proportion * population), population));
+			buf.append(String.format("Estimated limitation sentences per document: %.2f (%d%% CI %.2f-%.2f)%n",
+					mean, level, meanLow, meanHigh));
+			buf.append(String.format("Documents processed: %d of %d (%d strata, %d of %d waves%s)",
+					processed, population, strata, wavesDone, wavesTotal, (wavesDone < wavesTotal ? ", stopped early" : "")));
+			return buf.toString();
+		}
+	}
+
+	private static String stratumOf(DocumentRecord rec) {
+		if (stratify.equals("size")) {
+			long length = rec.length();
+			return "size<2^" + (length <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(length));
+		}
+		if (stratify.equals("prefix")) {
+			String id = rec.getId();
+			return id.substring(0, Math.min(prefixLength, id.length()));
+		}
+		return "all";
+	}
+
+	/**
+	 * Estimates the corpus statistics from a sample of the documents of a source.
+	 *
+	 * @param path		the directory, archive or JSON Lines file
+	 * @param ext		the extension of the documents
+	 * @param processor	the processor for sampled documents
+	 * @return	the estimates
+	 * @throws Exception	if the input cannot be read or a document cannot be processed
+	 */
+	public static Estimate estimate(String path, String ext, DocumentProcessor processor) throws Exception {
+		// sampling frame
+		Map<String,Stratum> strata = new TreeMap<>();
+		int population = 0;
+		try (DocumentSource source = CorpusIO.openSource(path, ext)) {
+			while (source.hasNext()) {
+				DocumentRecord rec = source.next();
+				Stratum stratum = strata.computeIfAbsent(stratumOf(rec), k -> new Stratum());
+				stratum.ordinals.add(population++);
+				stratum.population++;
+			}
+		}
+		if (population == 0) throw new IOException("No documents in " + path);
+
+		// proportional allocation, with at least two documents per stratum for the variance
+		int n = (sample >= 1 ? (int)Math.min(population, sample) : (int)Math.ceil(sample * population));
+		int[] waveOf = new int[population];
+		Arrays.fill(waveOf, -1);
+		Random random = new Random(seed);
+		for (Stratum stratum: strata.values()) {
+			int nh = (int)Math.round((double)n * stratum.population / population);
+			stratum.selected = Math.min(stratum.population, Math.max(Math.min(2, n), nh));
+			Collections.shuffle(stratum.ordinals, random);
+			// a random start spreads the documents of small strata over the waves
+			double start = random.nextDouble();
+			for (int j=0; j < stratum.selected; j++)
+				waveOf[stratum.ordinals.get(j)] = (int)((j + start) * waves / stratum.selected);
+			stratum.ordinals = null;
+		}
+		log.info("Sampling frame: " + population + " documents in " + strata.size() + " strata, estimating from up to " +
+				Arrays.stream(waveOf).filter(w -> w >= 0).count() + " documents in " + waves + " waves.");
+
+		Estimate estimate = null;
+		for (int wave=0; wave < waves; wave++) {
+			int ordinal = 0;
+			try (DocumentSource source = CorpusIO.openSource(path, ext)) {
+				while (source.hasNext()) {
+					DocumentRecord rec = source.next();
+					if (ordinal >= population) throw new IOException("The input changed while it was being sampled: " + path);
+					if (waveOf[ordinal++] != wave) continue;
+					Integer count = processor.process(rec);
+					if (count != null) strata.get(stratumOf(rec)).add(count);
+				}
+			}
+			if (ordinal != population) throw new IOException("The input changed while it was being sampled: " + path);
+			estimate = compute(strata, population, wave+1);
+			log.info(String.format("Wave %d: %d documents, proportion %.3f (%.3f-%.3f)",
+					wave+1, estimate.processed, estimate.proportion, estimate.proportionLow, estimate.proportionHigh));
+			if (targetWidth > 0 && estimate.processed > 0 && estimate.proportionHigh - estimate.proportionLow <= targetWidth) break;
+		}
+		return estimate;
+	}
+
+	private static Estimate compute(Map<String,Stratum> strata, int population, int wavesDone) {
+		Estimate e = new Estimate();
+		e.population = population;
+		e.strata = strata.size();
+		e.wavesDone = wavesDone;
+		e.wavesTotal = waves;
+		// strata without processed documents are left out, and the others reweighted
+		int covered = 0;
+		boolean complete = true;
+		for (Stratum stratum: strata.values()) {
+			e.processed += stratum.n;
+			if (stratum.n > 0) covered += stratum.population;
+			if (stratum.n < stratum.population) complete = false;
+		}
+		if (e.processed == 0) return e;
+		double pVariance = 0;
+		double mVariance = 0;
+		for (Stratum stratum: strata.values()) {
+			if (stratum.n == 0) continue;
+			double w = (double)stratum.population / covered;
+			e.proportion += w * stratum.positives / stratum.n;
+			e.mean += w * stratum.sum / stratum.n;
+			pVariance += w * w * stratum.meanVariance(stratum.positives, stratum.positives);
+			mVariance += w * w * stratum.meanVariance(stratum.sum, stratum.sumSquares);
+		}
+		double z = normalQuantile(0.5 + confidence / 2);
+		if (complete) {
+			e.proportionLow = e.proportionHigh = e.proportion;
+			e.meanLow = e.meanHigh = e.mean;
+			return e;
+		}
+		double p = e.proportion;
+		// the effective sample size of the design, which is the number of documents for a simple random sample without correction
+		double nEff = (pVariance > 0 ? p * (1 - p) / pVariance : e.processed);
+		double z2n = z * z / nEff;
+		double center = (p + z2n / 2) / (1 + z2n);
+		double half = z * Math.sqrt(p * (1 - p) / nEff + z2n / (4 * nEff)) / (1 + z2n);
+		e.proportionLow = Math.max(0, center - half);
+		e.proportionHigh = Math.min(1, center + half);
+		double mHalf = z * Math.sqrt(mVariance);
+		e.meanLow = Math.max(0, e.mean - mHalf);
+		e.meanHigh = e.mean + mHalf;
+		return e;
+	}
+
+	/**
+	 * The quantile function of the standard normal distribution (Acklam's approximation, relative error below 1.2e-9).
+	 *
+	 * @param p	the probability, between 0 and 1
+	 * @return the quantile
+	 */
+	static double normalQuantile(double p) {
+		double[] a = {-3.969683028665376e+01, 2.209460984245205e+02, -2.759285104469687e+02, 1.383577518672690e+02, -3.066479806614716e+01, 2.506628277459239e+00};
+		double[] b = {-5.447609879822406e+01, 1.615858368580409e+02, -1.556989798598866e+02, 6.680131188771972e+01, -1.328068155288572e+01};
+		double[] c = {-7.784894002430293e-03, -3.223964580411365e-01, -2.400758277161838e+00, -2.549732539343734e+00, 4.374664141464968e+00, 2.938163982698783e+00};
+		double[] d = {7.784695709041462e-03, 3.224671290700398e-01, 2.445134137142996e+00, 3.754408661907416e+00};
+		double low = 0.02425;
+		if (p < low) {
+			double q = Math.sqrt(-2 * Math.log(p));
+			return (((((c[0]*q+c[1])*q+c[2])*q+c[3])*q+c[4])*q+c[5]) / ((((d[0]*q+d[1])*q+d[2])*q+d[3])*q+1);
+		}
+		if (p > 1 - low) return -normalQuantile(1 - p);
+		double q = p - 0.5;
+		double r = q * q;
+		return (((((a[0]*r+a[1])*r+a[2])*r+a[3])*r+a[4])*r+a[5])*q / (((((b[0]*r+b[1])*r+b[2])*r+b[3])*r+b[4])*r+1);
+	}
+}
@@ -0,0 +1,464 @@
+package gov.nih.nlm.limitations;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import gov.nih.nlm.ling.core.Document;
+import gov.nih.nlm.ling.io.XMLReader;
+import gov.nih.nlm.ling.sem.SemanticItem;
+import gov.nih.nlm.ling.sem.SemanticItemFactory;
+import nu.xom.Builder;
+import nu.xom.Element;
+import nu.xom.Serializer;
+
+/**
+ * Corpus file input/output with transparent compression. Files ending with <code>.gz</code> are
+ * read and written as gzip, files ending with <code>.deflate</code> as zlib/deflate streams, and
+ * all other files as plain files. Compressed files are streamed through buffered file channels,
+ * they are never materialized in full on disk or in memory.
+ *
+ * @author Halil Kilicoglu
+ *
+ */
+public class CorpusIO {
+	private static Logger log = Logger.getLogger(CorpusIO.class.getName());
+
+	public static final String GZIP_EXTENSION = ".gz";
+	public static final String DEFLATE_EXTENSION = ".deflate";
+
+	/** The file that marks a directory written with the fan-out layout. */
+	public static final String LAYOUT_FILE = ".layout";
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private static boolean inputRecursive = false;
+	private static String inputGlob = null;
+	private static int fanoutLevels = 0;
+	private static Set<String> createdDirs = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Sets the corpus input/output options from properties: <ul>
+	 * <li><code>inputRecursive</code>: whether to walk the subdirectories of an input directory (default false)
+	 * <li><code>inputGlob</code>: a glob pattern that input files have to match (e.g., <code>PMC5*</code>)
+	 * <li><code>outputLayout</code>: <code>flat</code> (default) to write all outputs into the output directory,
+	 * or <code>fanout</code> to spread them over hashed prefix subdirectories
+	 * <li><code>outputFanoutLevels</code>: the number of prefix subdirectory levels for the fan-out layout (default 2)
+	 * <li><code>inputMapThreshold</code>: the size in megabytes from which text files are memory-mapped (see {@link TextDecoder})
+	 * </ul>
+	 *
+	 * @param props	the properties
+	 */
+	public static void init(Properties props) {
+		inputRecursive = Boolean.parseBoolean(props.getProperty("inputRecursive", "false"));
+		inputGlob = props.getProperty("inputGlob");
+		TextDecoder.init(props);
+		String layout = props.getProperty("outputLayout", "flat").trim().toLowerCase();
+		if (layout.equals("flat")) fanoutLevels = 0;
+		else if (layout.equals("fanout")) {
+			fanoutLevels = Integer.parseInt(props.getProperty("outputFanoutLevels", "2"));
+			if (fanoutLevels < 1 || fanoutLevels > 4)
+				throw new IllegalArgumentException("outputFanoutLevels must be between 1 and 4: " + fanoutLevels);
+		}
+		else throw new IllegalArgumentException("Unknown output layout: " + layout);
+	}
+
+	/**
+	 * Returns the file extension that corresponds to a compression setting.
+	 *
+	 * @param compression	<code>gzip</code>/<code>gz</code>, <code>deflate</code> or <code>none</code>
+	 * @return the extension to append to output file names, empty string for no compression
+	 */
+	public static String compressionExtension(String compression) {
+		if (compression == null) return "";
+		String c = compression.trim().toLowerCase();
+		if (c.equals("gzip") || c.equals("gz")) return GZIP_EXTENSION;
+		if (c.equals("deflate")) return DEFLATE_EXTENSION;
+		if (c.equals("none") || c.equals("")) return "";
+		throw new IllegalArgumentException("Unknown compression: " + compression);
+	}
+
+	private static String compressedSuffix(String filename) {
+		if (filename.endsWith(GZIP_EXTENSION)) return GZIP_EXTENSION;
+		if (filename.endsWith(DEFLATE_EXTENSION)) return DEFLATE_EXTENSION;
+		return "";
+	}
+
+	public static boolean isCompressed(String filename) {
+		return compressedSuffix(filename).length() > 0;
+	}
+
+	/**
+	 * Checks whether a file has the given extension, possibly followed by a compression extension
+	 * (e.g., <code>PMC123.xml</code> and <code>PMC123.xml.gz</code> both have the extension <code>xml</code>).
+	 *
+	 * @param filename	the file name
+	 * @param ext		the extension, without the dot
+	 * @return true if the file has the extension
+	 */
+	public static boolean hasExtension(String filename, String ext) {
+		String name = filename.substring(0, filename.length() - compressedSuffix(filename).length());
+		return name.endsWith("." + ext);
+	}
+
+	/**
+	 * Gets the document id from a file name, stripping the directory, the extension and
+	 * the compression extension, if any.
+	 *
+	 * @param filename	the file name
+	 * @param ext		the extension, without the dot
+	 * @return the document id
+	 */
+	public static String getId(String filename, String ext) {
+		String name = filename.substring(filename.lastIndexOf(File.separator)+1);
+		name = name.substring(0, name.length() - compressedSuffix(name).length());
+		return name.replace("." + ext, "");
+	}
+
+	/**
+	 * Checks whether a directory has been written with the fan-out layout.
+	 *
+	 * @param dir	the directory
+	 * @return true if the directory has the layout marker file
+	 */
+	public static boolean isFanout(String dir) {
+		return Files.exists(Paths.get(dir, LAYOUT_FILE));
+	}
+
+	/**
+	 * Prepares an output directory for writing. With the fan-out layout, the layout marker file is written,
+	 * so that readers know to walk the prefix subdirectories.
+	 *
+	 * @param outDir	the output directory
+	 * @throws IOException	if the marker file cannot be written, or the directory already has a different layout
+	 */
+	public static void initOutputDirectory(String outDir) throws IOException {
+		Path marker = Paths.get(outDir, LAYOUT_FILE);
+		String layout = "fanout=" + fanoutLevels;
+		if (Files.exists(marker)) {
+			String existing = new String(Files.readAllBytes(marker), StandardCharsets.UTF_8).trim();
+			if (existing.equals(layout) == false)
+				throw new IOException("The output directory " + outDir + " has a different layout: " + existing);
+			return;
+		}
+		if (fanoutLevels == 0) return;
+		Files.write(marker, layout.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Gets the output file for a document. In the flat layout, this is <code>outDir/id.ext</code>.
+	 * In the fan-out layout, the file is placed under prefix subdirectories taken from a hash of the id
+	 * (e.g., <code>outDir/3f/a2/id.ext</code>), which are created as needed. With two levels, there are 65,536
+	 * leaf directories, so that even millions of outputs stay at a few hundred files per directory.
+	 *
+	 * @param outDir	the output directory
+	 * @param id		the document id
+	 * @param extension	the output file extension, with the dot
+	 * @return	the output file path
+	 * @throws IOException	if the prefix subdirectories cannot be created
+	 */
+	public static String outputFile(String outDir, String id, String extension) throws IOException {
+		if (fanoutLevels == 0) return outDir + File.separator + id + extension;
+		CRC32 crc = new CRC32();
+		crc.update(id.getBytes(StandardCharsets.UTF_8));
+		String hash = String.format("%08x", crc.getValue());
+		StringBuilder buf = new StringBuilder(outDir);
+		for (int i=0; i < fanoutLevels; i++) {
+			buf.append(File.separator);
+			buf.append(hash, 2*i, 2*i+2);
+		}
+		String dir = buf.toString();
+		if (createdDirs.contains(dir) == false) {
+			Files.createDirectories(Paths.get(dir));
+			createdDirs.add(dir);
+		}
+		return dir + File.separator + id + extension;
+	}
+
+	/**
+	 * Opens a file for reading, decompressing it on the fly if its extension indicates compression.
+	 *
+	 * @param filename	the file to read
+	 * @return a buffered input stream
+	 * @throws IOException	if the file cannot be opened
+	 */
+	public static InputStream openInputStream(String filename) throws IOException {
+		InputStream in = new BufferedInputStream(
+				Channels.newInputStream(FileChannel.open(Paths.get(filename), StandardOpenOption.READ)), BUFFER_SIZE);
+		return decompress(in, filename);
+	}
+
+	/**
+	 * Wraps a stream to decompress it on the fly if the extension of its file name indicates compression.
+	 *
+	 * @param in		the stream
+	 * @param filename	the file name that determines the compression
+	 * @return the decompressing stream, or the stream itself for uncompressed files
+	 * @throws IOException	if the compression header cannot be read
+	 */
+	static InputStream decompress(InputStream in, String filename) throws IOException {
+		String suffix = compressedSuffix(filename);
+		if (suffix.equals(GZIP_EXTENSION)) return new GZIPInputStream(in, BUFFER_SIZE);
+		if (suffix.equals(DEFLATE_EXTENSION)) return new InflaterInputStream(in);
+		return in;
+	}
+
+	/**
+	 * Opens a file for writing, compressing the output if its extension indicates compression.
+	 *
+	 * @param filename	the file to write
+	 * @return a buffered output stream
+	 * @throws IOException	if the file cannot be created
+	 */
+	public static OutputStream openOutputStream(String filename) throws IOException {
+		return openOutputStream(Paths.get(filename), filename);
+	}
+
+	/**
+	 * Opens a file for writing, with the compression indicated by the extension of another file name. 
+	 * This is used to write to a temporary file in place of the final output file.
+	 *
+	 * @param path		the file to write
+	 * @param filename	the file name that determines the compression
+	 * @return a buffered output stream
+	 * @throws IOException	if the file cannot be created
+	 */
+	static OutputStream openOutputStream(Path path, String filename) throws IOException {
+		OutputStream out = Channels.newOutputStream(FileChannel.open(path,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+		String suffix = compressedSuffix(filename);
+		if (suffix.equals(GZIP_EXTENSION)) return new BufferedOutputStream(new GZIPOutputStream(out, BUFFER_SIZE), BUFFER_SIZE);
+		if (suffix.equals(DEFLATE_EXTENSION))
+			return new BufferedOutputStream(new OwnedDeflaterOutputStream(out), BUFFER_SIZE);
+		return new BufferedOutputStream(out, BUFFER_SIZE);
+	}
+
+	/**
+	 * A deflate stream with its own deflater, which is ended when the stream is closed, so that its 
+	 * native memory is released (<code>DeflaterOutputStream</code> only ends the deflaters it creates itself, 
+	 * which have a small buffer).
+	 */
+	private static class OwnedDeflaterOutputStream extends DeflaterOutputStream {
+		private OwnedDeflaterOutputStream(OutputStream out) {
+			super(out, new Deflater(Deflater.DEFAULT_COMPRESSION), BUFFER_SIZE);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				def.end();
+			}
+		}
+	}
+
+	/**
+	 * Reads a UTF-8 text file, possibly compressed. Line terminators are normalized to <code>\n</code>,
+	 * as in {@link gov.nih.nlm.ling.util.FileUtils#stringFromFile(String, String)}, so that character offsets
+	 * do not depend on whether the file is compressed, and characters not allowed in XML are dropped.
+	 *
+	 * @param filename	the file to read
+	 * @return the text of the file
+	 * @throws IOException	if the file cannot be read
+	 */
+	public static String readText(String filename) throws IOException {
+		return TextDecoder.read(filename);
+	}
+
+	/**
+	 * Loads a parsed XML document, possibly compressed. Plain files are delegated to the XML reader,
+	 * compressed files are decompressed while they are being parsed.
+	 *
+	 * @param reader	the XML reader
+	 * @param filename	the parsed XML file
+	 * @param annTypes	the semantic annotation types to load
+	 * @return the document, or null if it cannot be loaded
+	 */
+	public static Document loadDocument(XMLReader reader, String filename, Map<Class<? extends SemanticItem>,List<String>> annTypes) {
+		DocumentEvent event = new DocumentEvent.Load().start(getId(filename, "xml"));
+		Document doc = load(reader, filename, annTypes);
+		// scratch files of archive and JSON Lines records do not have the document id in their name
+		if (doc != null && doc.getId() != null) event.setDocumentId(doc.getId());
+		event.finish(doc, null);
+		return doc;
+	}
+
+	private static Document load(XMLReader reader, String filename, Map<Class<? extends SemanticItem>,List<String>> annTypes) {
+		if (isCompressed(filename) == false)
+			return reader.load(filename, true, SemanticItemFactory.class, annTypes, null);
+		try (InputStream in = openInputStream(filename)) {
+			Element docEl = new Builder().build(in).getRootElement();
+			Document doc = new Document(docEl, null, null);
+			doc.setSemanticItemFactory(SemanticItemFactory.class.getConstructor(Document.class,Map.class).newInstance(doc,new HashMap<>()));
+			reader.parseSemanticItems(doc, null, docEl, annTypes, null);
+			return doc;
+		} catch (Exception e) {
+			log.severe("Unable to load the XML file " + filename);
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * Serializes the XML representation of a parsed document to a file, compressing it if
+	 * the file extension indicates compression.
+	 *
+	 * @param docEl			the XML element of the document
+	 * @param outFilename	the output file
+	 * @throws IOException	if the file cannot be written
+	 */
+	public static void writeXml(Element docEl, String outFilename) throws IOException {
+		nu.xom.Document xmlDoc = new nu.xom.Document(docEl);
+		Path temp = temporaryFile(outFilename);
+		try {
+			try (OutputStream os = openOutputStream(temp, outFilename)) {
+				Serializer serializer = new Serializer(os);
+				serializer.setIndent(4);
+				serializer.write(xmlDoc);
+			}
+			publish(temp, outFilename);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * 
+	 * @param filename	an output file
+	 * @return	the temporary file in the same directory, to write the output to before it is published
+	 */
+	public static Path temporaryFile(String filename) {
+		Path path = Paths.get(filename);
+		return path.resolveSibling("." + path.getFileName() + ".tmp");
+	}
+
+	/**
+	 * Moves a completely written temporary file to its final name, atomically where the file system allows it.
+	 * 
+	 * @param temp		the temporary file
+	 * @param filename	the output file
+	 * @throws IOException	if the file cannot be moved
+	 */
+	public static void publish(Path temp, String filename) throws IOException {
+		try {
+			Files.move(temp, Paths.get(filename), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException amnse) {
+			Files.move(temp, Paths.get(filename), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Opens a document source over a corpus, which can be a directory, a tar/zip archive or a 
+	 * JSON Lines file. Directories are walked lazily, using the input options set by {@link #init(Properties)}.
+	 *
+	 * @param path	the corpus location
+	 * @param ext	the extension of the documents in a directory or archive, without the dot
+	 * @return	the document source
+	 * @throws IOException	if the corpus cannot be opened
+	 */
+	public static DocumentSource openSource(String path, String ext) throws IOException {
+		if (Files.isDirectory(Paths.get(path))) return new DirectoryDocumentSource(path, ext, inputRecursive, inputGlob);
+		if (ArchiveDocumentSource.isArchive(path)) return new ArchiveDocumentSource(path, ext);
+		if (JsonLinesDocumentSource.isJsonLines(path)) return new JsonLinesDocumentSource(path);
+		throw new IOException("Not a directory, archive or JSON Lines file: " + path);
+	}
+
+	public static boolean isSource(String path) {
+		return Files.isDirectory(Paths.get(path)) || ArchiveDocumentSource.isArchive(path) || JsonLinesDocumentSource.isJsonLines(path);
+	}
+
+	private static ThreadLocal<Path> scratchFiles = new ThreadLocal<>();
+	// scratch files released by threads that have ended, reused by new threads
+	private static Queue<Path> freeScratchFiles = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Gets a file path for a document record. Records read from files are returned as they are, compressed or not,
+	 * since {@link #loadDocument(XMLReader, String, Map)} and {@link #readText(String)} decompress files as they read them. 
+	 * Records with in-memory content (archive members, JSON Lines) are written to a scratch file, which is reused 
+	 * for the next record on the same thread, or by another thread after {@link #releaseScratchFile()}.
+	 *
+	 * @param rec	the document record
+	 * @return	the path of a file with the record content
+	 * @throws IOException	if the scratch file cannot be written
+	 */
+	public static String toFile(DocumentRecord rec) throws IOException {
+		if (rec.getFile() != null) return rec.getFile();
+		try (InputStream in = rec.openStream()) {
+			return scratch(in);
+		}
+	}
+
+	/**
+	 * Gets a plain file path for a possibly compressed file, for components that can only read plain files
+	 * (e.g., the PMC article parser). A compressed file is decompressed to the scratch file of the thread.
+	 *
+	 * @param filename	the file
+	 * @return	the file itself if it is not compressed, or the scratch file
+	 * @throws IOException	if the scratch file cannot be written
+	 */
+	public static String plainFile(String filename) throws IOException {
+		if (isCompressed(filename) == false) return filename;
+		try (InputStream in = openInputStream(filename)) {
+			return scratch(in);
+		}
+	}
+
+	private static String scratch(InputStream in) throws IOException {
+		Path scratch = scratchFiles.get();
+		if (scratch == null) {
+			scratch = freeScratchFiles.poll();
+			if (scratch == null) {
+				scratch = Files.createTempFile("limitations", ".doc");
+				scratch.toFile().deleteOnExit();
+			}
+			scratchFiles.set(scratch);
+		}
+		Files.copy(in, scratch, StandardCopyOption.REPLACE_EXISTING);
+		return scratch.toString();
+	}
+
+	/**
+	 * Releases the scratch file of the current thread, if any, so that a thread started later can reuse it.
+	 * Threads that process a single document (e.g., the workers of {@link DocumentSupervisor}) call this when 
+	 * they end, which keeps the number of scratch files at the number of threads running at the same time.
+	 */
+	public static void releaseScratchFile() {
+		Path scratch = scratchFiles.get();
+		if (scratch == null) return;
+		scratchFiles.remove();
+		try {
+			Files.newOutputStream(scratch).close();
+			freeScratchFiles.add(scratch);
+		} catch (IOException ioe) {
+			log.warning("Unable to clear the scratch file " + scratch + ": " + ioe.getMessage());
+		}
+	}
+}
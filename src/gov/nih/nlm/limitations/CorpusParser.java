@@ -1,9 +1,7 @@
 package gov.nih.nlm.limitations;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
@@ -20,8 +18,6 @@ import gov.nih.nlm.ling.util.FileUtils;
 import gov.nih.nlm.ling.wrappers.CoreNLPWrapper;
 import gov.nih.nlm.pmc.MyPMCArticle;
 import gov.nih.nlm.pmc.PMCSectionSegmenter;
-import nu.xom.Element;
-import nu.xom.Serializer;
 
 /**
  * 
@@ -32,78 +28,105 @@ public class CorpusParser {
 	private static Logger log = Logger.getLogger(CorpusParser.class.getName());	
 
 	private static SentenceSegmenter segmenter = null;
+	private static String outputExtension = ".xml";
 
 
-	private static Document parseArticle(String id, String filename) throws Exception {
-		MyPMCArticle article = new MyPMCArticle(filename);
+	static Document parseArticle(String id, String filename) throws Exception {
+		long start = System.nanoTime();
+		DocumentEvent load = new DocumentEvent.Load().start(id);
+		MyPMCArticle article = new MyPMCArticle(CorpusIO.plainFile(filename));
 		String title = article.getTitle();
 		String abstText = article.getAbstractText();
 		String fullText = article.getFullTextText();
 		String allText = title + abstText + fullText;
+		load.finish(allText.length(), 0, null);
 		Document doc = new Document(id, allText);
 
 		int abstractInd = title.length();
 		PMCArticleAbstract abst = article.getAbstract();
 		PMCArticleFullText full = article.getFullText();
-		log.info("Title:" + title);
-		log.info("Abstract: " + abstText);
-		log.info("Full-text: " + fullText);
+		DocumentLog.text(log, id, "Title", () -> title);
+		DocumentLog.text(log, id, "Abstract", () -> abstText);
+		DocumentLog.text(log, id, "Full-text", () -> fullText);
 
 		PMCSectionSegmenter sectSegmenter = new PMCSectionSegmenter(article);
 		sectSegmenter.segment(doc);
 		List<Sentence> sentences = new ArrayList<>();
 
+		DocumentEvent segmentation = new DocumentEvent.Segmentation().start(id);
 		segmenter.segment(doc.getText(), sentences);
+		segmentation.finish(doc.getText().length(), sentences.size(), null);
+		DocumentEvent annotation = new DocumentEvent.Annotation().start(id);
+		SentenceAnnotator.annotate(sentences);
+		annotation.finish(doc.getText().length(), sentences.size(), null);
 		for (Sentence sentence: sentences) {
-			CoreNLPWrapper.coreNLP(sentence);
 			doc.addSentence(sentence);
 			sentence.setDocument(doc);
 		}
+		DocumentLog.event(log, "parsed", "id", id, "chars", allText.length(), "abstractChars", abstText.length(),
+				"sections", (doc.getSections() == null ? 0 : doc.getSections().size()), "sentences", sentences.size(),
+				"ms", DocumentLog.millisSince(start));
 		return doc;
 	}
 
-	public static Element processSingleFile(String id, String articleFile) throws IOException {
+	public static Document processSingleFile(String id, String articleFile) throws IOException {
 		Document articleDoc = null;
-		Element articleXml = null;
 		try {
 			articleDoc = parseArticle(id,articleFile);
-			articleXml = articleDoc.toXml();
 		} catch (Exception e) {
 			log.severe("Cannot parse " + id);
 			e.printStackTrace();
 		}
-		return articleXml;
+		return articleDoc;
 	}
 
-	public static void processDirectory(String article, String out) throws IOException {
-		File articleDir = new File(article);
-		if (articleDir.isDirectory() == false) return;
+	/**
+	 * 
+	 * @param article	the input corpus: a directory, a tar/zip archive or a JSON Lines file of PMC XML
+	 * @param out		the output directory
+	 * @throws IOException	if there is a problem with file reading/writing
+	 */
+	public static void processDirectory(String article, String out) throws IOException, InterruptedException {
+		if (CorpusIO.isSource(article) == false) return;
 		File outDir = new File(out);
 		if (outDir.isDirectory() == false) return;
 		int fileNum = 0;
-		List<String> files = FileUtils.listFiles(article,false, "xml");
+		CorpusIO.initOutputDirectory(outDir.getAbsolutePath());
 
-		for (String filename: files) {
-			String id = filename.substring(filename.lastIndexOf(File.separator)+1).replace(".xml", "");
-			log.log(Level.INFO,"Processing {0}: {1}.", new Object[]{id,++fileNum});
-			String outFilename = outDir.getAbsolutePath() + File.separator + id + ".xml";
-			PrintWriter pw = new PrintWriter(outFilename);
-			try {
-				Element docEl = processSingleFile(id, filename);
-				nu.xom.Document xmlDoc = new nu.xom.Document(docEl);
-				Serializer serializer = new Serializer(new FileOutputStream(outFilename));
-				serializer.setIndent(4);
-				serializer.write(xmlDoc); 
-			} catch (Exception e) {
-				System.err.println("ERROR PROCESSING FILE. SKIPPING.. " + id);
+		try (DocumentSource source = CorpusIO.openSource(article, "xml");
+				DocumentSupervisor supervisor = new DocumentSupervisor(outDir.getAbsolutePath() + File.separator + "quarantine.tsv");
+				DocumentScheduler scheduler = new DocumentScheduler()) {
+			while (source.hasNext()) {
+				DocumentRecord rec = source.next();
+				String id = rec.getId();
+				if (supervisor.isQuarantined(id)) {
+					log.log(Level.INFO,"Skipping quarantined document {0}.", new Object[]{id});
+					continue;
+				}
+				log.log(Level.INFO,"Processing {0}: {1}.", new Object[]{id,++fileNum});
+				String outFilename = CorpusIO.outputFile(outDir.getAbsolutePath(), id, outputExtension);
+				scheduler.submit(rec, r -> {
+					try {
+						String articleFile = CorpusIO.toFile(r);
+						Document doc = supervisor.run(id, () -> processSingleFile(id, articleFile));
+						if (doc != null) StreamingXmlWriter.write(doc, outFilename);
+					} catch (Exception e) {
+						System.err.println("ERROR PROCESSING FILE. SKIPPING.. " + id);
+					}
+				});
 			}
-			pw.flush();
-			pw.close();
 		}
+		if (SentenceAnnotator.hasReport())
+			System.out.println(SentenceAnnotator.report());
+		SentenceAnnotator.saveCache();
 	}
 
 	/**
-	 * Initializes CoreNLP and the sentence segmenter from properties.
+	 * Initializes CoreNLP and the sentence segmenter from properties. The <code>outputCompression</code>
+	 * property (<code>gzip</code>, <code>deflate</code> or <code>none</code>) determines whether the 
+	 * parsed XML is compressed. The parse budget properties (<code>parseMaxTokens</code>, <code>parseMaxTime</code>,
+	 * <code>parseDocumentBudget</code>) are described in {@link SentenceAnnotator}, and the logging
+	 * options in {@link DocumentLog}.
 	 * 
 	 * @param props	the properties to use for initialization
 	 * 
@@ -114,19 +137,26 @@ public class CorpusParser {
 	public static void init(Properties props) 
 			throws InstantiationException, IllegalAccessException, ClassNotFoundException {
 		CoreNLPWrapper.getInstance(props);
+		SentenceAnnotator.init(props);
 		segmenter = ComponentLoader.getSentenceSegmenter(props);
+		CorpusIO.init(props);
+		StreamingXmlWriter.init(props);
+		DocumentSupervisor.init(props);
+		DocumentLog.init(props);
+		DocumentScheduler.init(props);
+		WorkerController.init(props);
+		outputExtension = ".xml" + CorpusIO.compressionExtension(props.getProperty("outputCompression"));
 	}
 
 	public static void main(String[] args) 
 			throws Exception {
 		if (args.length < 2) {
-			System.err.print("Usage: articleDirectory outputDirectory");
+			System.err.print("Usage: articleDirectory|archive|jsonl outputDirectory [propertiesFile]");
 		}
 		String articleIn = args[0];
 		String out = args[1];
-		File articleDir = new File(articleIn);
-		if (articleDir.isDirectory() == false) {
-			System.err.println("First argument is required to be an input directory:" + articleIn);
+		if (CorpusIO.isSource(articleIn) == false) {
+			System.err.println("First argument is required to be an input directory, archive or JSON Lines file:" + articleIn);
 			System.exit(1);
 		}
 		File outDir = new File(out);
@@ -140,6 +170,7 @@ public class CorpusParser {
 		props.put("annotators","tokenize,ssplit,pos,lemma,parse");	
 		props.put("tokenize.options","invertible=true");
 		props.put("ssplit.isOneSentence","true");
+		if (args.length > 2) props.putAll(FileUtils.loadPropertiesFromFile(args[2]));
 		init(props);
 		processDirectory(articleIn,out);
 	}
@@ -0,0 +1,121 @@
+package gov.nih.nlm.limitations;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Document source over the files with a given extension in a directory. The directory is walked lazily,
+ * one directory entry at a time, so that processing can start right away on very large directories. <p>
+ *
+ * Subdirectories are walked if the source is recursive, or if the directory has been written with
+ * the fan-out layout (see {@link CorpusIO#outputFile(String, String, String)}). An optional glob pattern
+ * further restricts the files read. A pattern containing <code>/</code> is matched against the path relative
+ * to the directory, other patterns against the file name only.
+ *
+ * @author Halil Kilicoglu
+ *
+ */
+public class DirectoryDocumentSource implements DocumentSource {
+	private Path root;
+	private String ext;
+	private boolean recursive;
+	private PathMatcher matcher = null;
+	private boolean matchPath = false;
+
+	private Deque<DirectoryStream<Path>> streams = new ArrayDeque<>();
+	private Deque<Iterator<Path>> iterators = new ArrayDeque<>();
+	private Path nextFile = null;
+
+	/**
+	 *
+	 * @param dir	the directory
+	 * @param ext	the extension of the files to read, without the dot
+	 * @throws IOException	if the directory cannot be read
+	 */
+	public DirectoryDocumentSource(String dir, String ext) throws IOException {
+		this(dir, ext, false, null);
+	}
+
+	/**
+	 *
+	 * @param dir		the directory
+	 * @param ext		the extension of the files to read, without the dot
+	 * @param recursive	whether to walk subdirectories
+	 * @param glob		the glob pattern for the files to read, or null to read all files with the extension
+	 * @throws IOException	if the directory cannot be read
+	 */
+	public DirectoryDocumentSource(String dir, String ext, boolean recursive, String glob) throws IOException {
+		this.root = Paths.get(dir);
+		this.ext = ext;
+		this.recursive = recursive || CorpusIO.isFanout(dir);
+		if (glob != null && glob.length() > 0) {
+			this.matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+			this.matchPath = glob.contains("/");
+		}
+		open(root);
+	}
+
+	private void open(Path dir) throws IOException {
+		DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+		streams.push(stream);
+		iterators.push(stream.iterator());
+	}
+
+	private boolean accept(Path p) {
+		String name = p.getFileName().toString();
+		if (CorpusIO.hasExtension(name, ext) == false) return false;
+		if (matcher == null) return true;
+		return matcher.matches(matchPath ? root.relativize(p) : p.getFileName());
+	}
+
+	private Path advance() throws IOException {
+		while (iterators.isEmpty() == false) {
+			Iterator<Path> it = iterators.peek();
+			if (it.hasNext() == false) {
+				iterators.pop();
+				streams.pop().close();
+				continue;
+			}
+			Path p = it.next();
+			if (Files.isDirectory(p)) {
+				if (recursive) open(p);
+				continue;
+			}
+			if (accept(p)) return p;
+		}
+		return null;
+	}
+
+	public boolean hasNext() {
+		if (nextFile == null) {
+			try {
+				nextFile = advance();
+			} catch (IOException ioe) {
+				throw new RuntimeException("Unable to read the directory " + root, ioe);
+			}
+		}
+		return nextFile != null;
+	}
+
+	public DocumentRecord next() {
+		if (hasNext() == false) throw new NoSuchElementException();
+		String filename = nextFile.toString();
+		nextFile = null;
+		return new DocumentRecord(CorpusIO.getId(filename, ext), filename);
+	}
+
+	public void close() throws IOException {
+		while (streams.isEmpty() == false)
+			streams.pop().close();
+		iterators.clear();
+	}
+}
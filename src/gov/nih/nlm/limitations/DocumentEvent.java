@@ -0,0 +1,165 @@
+package gov.nih.nlm.limitations;
+
+import java.util.function.IntSupplier;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import gov.nih.nlm.ling.core.Document;
+
+/**
+ * JDK Flight Recorder events for the processing stages of a document: loading, sentence segmentation,
+ * CoreNLP annotation, XML serialization and limitation labeling. Each event has the document id, the length
+ * of its text, the number of sentences and a result, so that slow stages in a recording (e.g.,
+ * <code>java -XX:StartFlightRecording=filename=run.jfr ...</code>) can be traced back to the document that
+ * caused them. The events are in the <i>Limitations</i> category, and cost next to nothing when
+ * no recording is running. <p>
+ *
+ * A stage is recorded as follows:
+ * <pre>
+ * DocumentEvent event = new DocumentEvent.Segmentation().start(id);
+ * segmenter.segment(text, sentences);
+ * event.finish(text.length(), sentences.size(), null);
+ * </pre>
+ *
+ * @author Halil Kilicoglu
+ *
+ */
+@Category("Limitations")
+@StackTrace(false)
+public abstract class DocumentEvent extends Event {
+
+	@Label("Document Id")
+	protected String documentId;
+
+	@Label("Characters")
+	protected long characters;
+
+	@Label("Sentences")
+	protected int sentences;
+
+	@Label("Result")
+	protected String result;
+
+	/**
+	 * Starts timing a stage.
+	 *
+	 * @param id	the document id
+	 * @return the event
+	 */
+	public DocumentEvent start(String id) {
+		documentId = id;
+		begin();
+		return this;
+	}
+
+	/**
+	 * Sets the document id, when it is only known once the document is read.
+	 *
+	 * @param id	the document id
+	 */
+	public void setDocumentId(String id) {
+		documentId = id;
+	}
+
+	/**
+	 * Ends the stage, and records it if a recording is running and the stage took long enough.
+	 *
+	 * @param chars		the length of the document text
+	 * @param sents		the number of sentences
+	 * @param res		the outcome of the stage, or null
+	 */
+	public void finish(long chars, int sents, String res) {
+		end();
+		if (shouldCommit() == false) return;
+		characters = chars;
+		sentences = sents;
+		result = res;
+		commit();
+	}
+
+	/**
+	 * Ends the stage with the length and the sentences of a document.
+	 *
+	 * @param doc	the document, or null if the stage failed
+	 * @param res	the outcome of the stage, or null
+	 */
+	public void finish(Document doc, String res) {
+		if (doc == null) {
+			finish(0, 0, (res == null ? "failed" : res));
+			return;
+		}
+		finish(doc.getText() == null ? 0 : doc.getText().length(), doc.getSentences() == null ? 0 : doc.getSentences().size(), res);
+	}
+
+	@Name("gov.nih.nlm.limitations.DocumentLoad")
+	@Label("Document Load")
+	@Description("Reading a document from its input file, record or parsed XML")
+	public static class Load extends DocumentEvent {
+	}
+
+	@Name("gov.nih.nlm.limitations.Segmentation")
+	@Label("Sentence Segmentation")
+	@Description("Splitting the text of a document into sentences")
+	public static class Segmentation extends DocumentEvent {
+	}
+
+	@Name("gov.nih.nlm.limitations.Annotation")
+	@Label("Sentence Annotation")
+	@Description("Annotating the sentences of a document with CoreNLP")
+	public static class Annotation extends DocumentEvent {
+	}
+
+	@Name("gov.nih.nlm.limitations.Serialization")
+	@Label("XML Serialization")
+	@Description("Writing the parsed XML of a document; the result is the output file")
+	public static class Serialization extends DocumentEvent {
+	}
+
+	@Name("gov.nih.nlm.limitations.Labeling")
+	@Label("Limitation Labeling")
+	@Description("Labeling the sentences of a document; the result is POS if any sentence is a limitation sentence")
+	public static class Labeling extends DocumentEvent {
+
+		@Label("Limitation Sentences")
+		protected int positives;
+
+		@Override
+		public Labeling start(String id) {
+			super.start(id);
+			return this;
+		}
+
+		/**
+		 * Ends labeling.
+		 *
+		 * @param doc	the document
+		 * @param pos	the number of limitation sentences found
+		 */
+		public void finish(Document doc, int pos) {
+			positives = pos;
+			finish(doc, pos > 0 ? "POS" : "NEG");
+		}
+
+		/**
+		 * Ends labeling of a document that is labeled as a whole, where labeling stops at the first limitation 
+		 * sentence. The limitation sentences are only counted if the event is recorded, after the stage is timed.
+		 *
+		 * @param doc	the document
+		 * @param pos	counts the limitation sentences of the document
+		 */
+		public void finish(Document doc, IntSupplier pos) {
+			end();
+			if (shouldCommit() == false) return;
+			positives = pos.getAsInt();
+			characters = (doc.getText() == null ? 0 : doc.getText().length());
+			sentences = (doc.getSentences() == null ? 0 : doc.getSentences().size());
+			result = (positives > 0 ? "POS" : "NEG");
+			commit();
+		}
+	}
+}
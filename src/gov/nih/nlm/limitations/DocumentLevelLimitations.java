@@ -9,6 +9,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -19,7 +20,6 @@ import gov.nih.nlm.ling.core.Sentence;
 import gov.nih.nlm.ling.core.Span;
 import gov.nih.nlm.ling.io.XMLReader;
 import gov.nih.nlm.ling.sem.SemanticItem;
-import gov.nih.nlm.ling.sem.SemanticItemFactory;
 import gov.nih.nlm.ling.util.FileUtils;
 
 /**
@@ -86,7 +86,7 @@ public class DocumentLevelLimitations {
 		}
 		if (status.equals("NONE"))  {
 			if (inLimitationParagraph(sent)) {
-				log.fine("In limitation paragraph:" + doc.getId() + "|" + sent.getText());
+				log.fine(() -> "In limitation paragraph:" + doc.getId() + "|" + sent.getText());
 				return "POS";
 			}
 			else {
@@ -99,27 +99,31 @@ public class DocumentLevelLimitations {
 
 	private static void processSingleArticle(String inFile,String outFile) throws Exception {
 		Document doc = null;
-		doc = xmlReader.load(inFile, true, SemanticItemFactory.class,annTypes, null);			
+		doc = CorpusIO.loadDocument(xmlReader, inFile, annTypes);			
+		DocumentEvent.Labeling labeling = new DocumentEvent.Labeling().start(doc.getId());
 		for (Sentence sent: doc.getSentences()) {
 			String label = label(sent);
 			if (label.equals("POS")) {
 				outLabels.put(doc.getId(), "POS");
+				labeling.finish(doc, 1);
 				return;
 			}
 		}
 		outLabels.put(doc.getId(), "NEG");
+		labeling.finish(doc, 0);
 	}
 
 	private static void processDir(String dir, String out) throws Exception {
-		List<String> files = FileUtils.listFiles(dir, false, "xml");
 		int fileNum = 0;
-		for (String filename: files) {
-			String filenameNoExt = filename.replace(".xml", "");
-			filenameNoExt = filenameNoExt.substring(filenameNoExt.lastIndexOf(File.separator)+1);
-			if (goldDocs.contains(filenameNoExt) == false) continue;
-			log.info("Processing " + filenameNoExt + ":" + ++fileNum);
-			processSingleArticle(filename,out);
-		}	
+		try (DocumentSource source = CorpusIO.openSource(dir, "xml")) {
+			while (source.hasNext()) {
+				DocumentRecord rec = source.next();
+				String filenameNoExt = rec.getId();
+				if (goldDocs.contains(filenameNoExt) == false) continue;
+				log.info("Processing " + filenameNoExt + ":" + ++fileNum);
+				processSingleArticle(CorpusIO.toFile(rec),out);
+			}
+		}
 		calculatePerformance(out);
 	}
 
@@ -136,26 +140,30 @@ public class DocumentLevelLimitations {
 			String predict =outLabels.get(k);
 			if (gold.equals("POS") && predict.equals("POS")) {
 				TP++;
-				log.fine("TP|" + k);
-				pw.write("TP|" + k );
+				String line = "TP|" + k;
+				log.fine(line);
+				pw.write(line);
 				pw.write("\n");
 			}
 			else if (gold.equals("NEG") && predict.equals("POS")) {
 				FP++;
-				log.fine("FP|" + k );
-				pw.write("FP|" + k );
+				String line = "FP|" + k;
+				log.fine(line);
+				pw.write(line);
 				pw.write("\n");
 			}
 			else if (gold.equals("POS") && predict.equals("NEG")) {
 				FN++;
-				log.fine("FN|" + k );
-				pw.write("FN|" + k );
+				String line = "FN|" + k;
+				log.fine(line);
+				pw.write(line);
 				pw.write("\n");
 			}
 			else if (gold.equals("NEG") && predict.equals("NEG")) {
 				TN++;
-				log.fine("TN|" + k );
-				pw.write("TN|" + k );
+				String line = "TN|" + k;
+				log.fine(line);
+				pw.write(line);
 				pw.write("\n");
 			}
 		}
@@ -191,8 +199,9 @@ public class DocumentLevelLimitations {
 			goldSentences.put(key, sent);
 			goldDocs.add(docid);
 		}
-		for (String key: goldLabels.keySet()) {
-			log.info(key + " " + goldLabels.get(key));
+		if (log.isLoggable(Level.FINE)) {
+			for (String key: goldLabels.keySet())
+				log.fine(key + " " + goldLabels.get(key));
 		}
 	} 
 
@@ -200,15 +209,15 @@ public class DocumentLevelLimitations {
 		List<String> lines = FileUtils.linesFromFile(filename, "UTF-8");
 		for (String line: lines) {
 			posDocs.add(line.trim());
-			log.info("POS:" + line.trim());
+			log.fine(() -> "POS:" + line.trim());
 		}
 		log.info("POS Count: " + posDocs.size());
 	} 
 
 	public static void main(String[] args) 
 			throws Exception {
-		if (args.length < 3) {
-			System.err.print("Usage: inputDirectory goldFile outFile");
+		if (args.length < 4) {
+			System.err.print("Usage: inputDirectory goldFile positiveDocumentFile outFile");
 		}
 
 		String in = args[0];
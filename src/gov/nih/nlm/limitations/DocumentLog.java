@@ -0,0 +1,98 @@
+package gov.nih.nlm.limitations;
+
+import java.util.Properties;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logging helpers for batch runs. Document-level events are logged as a single line of <code>key=value</code>
+ * pairs (e.g., <code>event=parsed id=PMC123 chars=48210 sentences=412 ms=5310</code>), which is cheap to write
+ * and easy to process, instead of the document text. <p>
+ *
+ * The text of a document is only logged at FINE level, and only for a sample of the documents: one in
+ * <code>logSampleEvery</code> documents (0, the default, logs none). Sampling is based on the document id,
+ * so that the same documents are sampled in every run. Messages are only built if they are to be logged.
+ *
+ * @author Halil Kilicoglu
+ *
+ */
+public class DocumentLog {
+	private static int sampleEvery = 0;
+
+	/**
+	 * Sets the logging options from properties.
+	 *
+	 * @param props	the properties
+	 */
+	public static void init(Properties props) {
+		sampleEvery = Integer.parseInt(props.getProperty("logSampleEvery", "0"));
+	}
+
+	/**
+	 *
+	 * @param id	the document id
+	 * @return true if debug output is to be logged for the document
+	 */
+	public static boolean isSampled(String id) {
+		return sampleEvery > 0 && Math.floorMod(id.hashCode(), sampleEvery) == 0;
+	}
+
+	/**
+	 * Logs a document-level event at INFO level.
+	 *
+	 * @param log		the logger
+	 * @param event		the event name
+	 * @param keyValues	alternating keys and values
+	 */
+	public static void event(Logger log, String event, Object... keyValues) {
+		if (log.isLoggable(Level.INFO) == false) return;
+		StringBuilder buf = new StringBuilder("event=").append(event);
+		for (int i=0; i+1 < keyValues.length; i+=2) {
+			buf.append(' ').append(keyValues[i]).append('=');
+			appendValue(buf, String.valueOf(keyValues[i+1]));
+		}
+		log.info(buf.toString());
+	}
+
+	private static void appendValue(StringBuilder buf, String value) {
+		boolean quote = value.isEmpty();
+		for (int i=0; i < value.length() && quote == false; i++)
+			quote = Character.isWhitespace(value.charAt(i)) || value.charAt(i) == '"' || value.charAt(i) == '=';
+		if (quote == false) {
+			buf.append(value);
+			return;
+		}
+		buf.append('"');
+		for (int i=0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') buf.append('\\').append(c);
+			else if (c == '\n') buf.append("\\n");
+			else if (c == '\r') buf.append("\\r");
+			else buf.append(c);
+		}
+		buf.append('"');
+	}
+
+	/**
+	 * Logs a piece of document text at FINE level, if the document is sampled.
+	 *
+	 * @param log	the logger
+	 * @param id	the document id
+	 * @param label	what the text is (title, abstract, full text, etc.)
+	 * @param text	the text, only computed if it is logged
+	 */
+	public static void text(Logger log, String id, String label, Supplier<String> text) {
+		if (isSampled(id) && log.isLoggable(Level.FINE))
+			log.fine(id + "|" + label + ": " + text.get());
+	}
+
+	/**
+	 *
+	 * @param start	the start time, from {@link System#nanoTime()}
+	 * @return the milliseconds elapsed since <var>start</var>
+	 */
+	public static long millisSince(long start) {
+		return (System.nanoTime() - start) / 1000000;
+	}
+}
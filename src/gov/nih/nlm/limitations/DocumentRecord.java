@@ -0,0 +1,94 @@
+package gov.nih.nlm.limitations;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A single input document, read from a directory, an archive or a JSON Lines file. 
+ * A record is either backed by a file on disk, or carries its content in memory.
+ * 
+ * @author Halil Kilicoglu
+ *
+ */
+public class DocumentRecord {
+	private String id;
+	private String name;
+	private String file;
+	private byte[] content;
+	
+	/**
+	 * Creates a record backed by a file.
+	 * 
+	 * @param id	the document id
+	 * @param file	the path of the file
+	 */
+	public DocumentRecord(String id, String file) {
+		this.id = id;
+		this.name = file;
+		this.file = file;
+	}
+	
+	/**
+	 * Creates a record with in-memory content.
+	 * 
+	 * @param id		the document id
+	 * @param name		the name of the record in its container (e.g., the archive entry name)
+	 * @param content	the raw content
+	 */
+	public DocumentRecord(String id, String name, byte[] content) {
+		this.id = id;
+		this.name = name;
+		this.content = content;
+	}
+	
+	public String getId() {
+		return id;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * 
+	 * @return the path of the backing file, or null if the content is in memory
+	 */
+	public String getFile() {
+		return file;
+	}
+	
+	/**
+	 * 
+	 * @return the size of the content in bytes, compressed size for compressed files
+	 */
+	public long length() {
+		if (file != null) return new File(file).length();
+		return content.length;
+	}
+	
+	public InputStream openStream() throws IOException {
+		if (file != null) return CorpusIO.openInputStream(file);
+		return new ByteArrayInputStream(content);
+	}
+	
+	/**
+	 * Reads the content as UTF-8 text, normalizing line terminators and dropping characters not allowed 
+	 * in XML the same way as {@link CorpusIO#readText(String)}.
+	 * 
+	 * @return	the text content
+	 * @throws IOException	if the content cannot be read
+	 */
+	public String getText() throws IOException {
+		DocumentEvent event = new DocumentEvent.Load().start(id);
+		String text = readText();
+		event.finish(text.length(), 0, null);
+		return text;
+	}
+
+	private String readText() throws IOException {
+		if (file != null) return CorpusIO.readText(file);
+		return TextDecoder.decode(content);
+	}
+}
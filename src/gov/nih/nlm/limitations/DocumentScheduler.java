@@ -0,0 +1,301 @@
+package gov.nih.nlm.limitations;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Schedules the documents of a batch run on several threads, within a memory budget. <p>
+ *
+ * With <code>documentThreads</code> greater than 1, documents are processed concurrently. The heap that a document
+ * needs is estimated from its input size, as <code>memoryPerDocument</code> (in megabytes) plus
+ * <code>memoryPerInputByte</code> times the size of the input; the defaults are based on measurements with and
+ * without the parser. A document only starts when its estimate fits in what is left of the budget
+ * (<code>memoryBudget</code>, in megabytes, by default 80% of the heap that is free once the models are loaded),
+ * so that several large documents do not run at the same time. A document larger than the whole budget runs on
+ * its own. A document that is abandoned by a {@link DocumentSupervisor} keeps its share of the budget until its
+ * worker really finishes. <p>
+ *
+ * With <code>scheduleOrder=largestFirst</code>, documents are taken largest first from a window of the next
+ * <code>scheduleWindow</code> documents of the input (default 256), which shortens the run when a few large
+ * documents would otherwise start last. The documents in the window that are held in memory (archive members,
+ * JSON Lines) are charged their size against the budget, and the window is made smaller when it would take more
+ * than half of the budget. The default order is the input order. With a single thread, documents
+ * are processed in input order on the calling thread, as before. <p>
+ *
+ * With <code>adaptiveWorkers=true</code>, <code>documentThreads</code> is the largest number of documents processed
+ * at the same time, and the actual number is adjusted while the run goes on by a {@link WorkerController}.
+ *
+ * @author Halil Kilicoglu
+ *
+ */
+public class DocumentScheduler implements Closeable {
+	private static Logger log = Logger.getLogger(DocumentScheduler.class.getName());
+
+	private static int threads = 1;
+	private static long budget = 0;
+	private static long perDocument = 0;
+	private static long perInputByte = 0;
+	private static boolean largestFirst = false;
+	private static int window = 256;
+
+	private ExecutorService executor = null;
+	private Semaphore memory = null;
+	private Slots slots = null;
+	private int workers = 0;
+	private WorkerController controller = null;
+	private int budgetKb = 0;
+	private PriorityQueue<Job> pending = null;
+	private int pendingKb = 0;
+	private AtomicInteger running = new AtomicInteger();
+	private int peakRunning = 0;
+	private int oversized = 0;
+	private AtomicLong completed = new AtomicLong();
+
+	// the number of workers can be lowered while documents are running
+	private static class Slots extends Semaphore {
+		private static final long serialVersionUID = 1L;
+
+		private Slots(int permits) {
+			super(permits);
+		}
+
+		private void reduce(int permits) {
+			reducePermits(permits);
+		}
+	}
+
+	private static ThreadLocal<MemoryPermit> permits = new ThreadLocal<>();
+
+	/**
+	 * The share of the memory budget of a running document, which is returned when all its holders release it.
+	 */
+	static class MemoryPermit {
+		private final Semaphore memory;
+		private final int kb;
+		private int holders = 1;
+
+		private MemoryPermit(Semaphore memory, int kb) {
+			this.memory = memory;
+			this.kb = kb;
+		}
+
+		private synchronized void retain() {
+			holders++;
+		}
+
+		synchronized void release() {
+			if (--holders == 0) memory.release(kb);
+		}
+	}
+
+	/**
+	 * Processes a scheduled document.
+	 */
+	public interface Task {
+		void process(DocumentRecord rec) throws Exception;
+	}
+
+	private static class Job {
+		private DocumentRecord rec;
+		private Task task;
+		private long length;
+		// the memory charged while the document waits in the window
+		private int heldKb = 0;
+
+		private Job(DocumentRecord rec, Task task) {
+			this.rec = rec;
+			this.task = task;
+			this.length = rec.length();
+		}
+	}
+
+	/**
+	 * Sets the scheduling options from properties.
+	 *
+	 * @param props	the properties
+	 */
+	public static void init(Properties props) {
+		threads = Integer.parseInt(props.getProperty("documentThreads", "1"));
+		budget = Long.parseLong(props.getProperty("memoryBudget", "0")) << 20;
+		// measured heap per document: about 60 bytes per input byte retained with tokenize,ssplit,pos,lemma
+		// and 170 with parse, plus the working memory of the annotators (up to ~100 MB for the parser)
+		boolean parse = props.getProperty("annotators", "").contains("parse");
+		perDocument = Long.parseLong(props.getProperty("memoryPerDocument", parse ? "128" : "32")) << 20;
+		perInputByte = Long.parseLong(props.getProperty("memoryPerInputByte", parse ? "256" : "96"));
+		largestFirst = props.getProperty("scheduleOrder", "input").equals("largestFirst");
+		window = Integer.parseInt(props.getProperty("scheduleWindow", "256"));
+	}
+
+	public static boolean isConcurrent() {
+		return threads > 1;
+	}
+
+	public DocumentScheduler() {
+		if (isConcurrent() == false) return;
+		long available = budget;
+		if (available <= 0) {
+			Runtime runtime = Runtime.getRuntime();
+			available = (long)((runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory())) * 0.8);
+		}
+		budgetKb = (int)Math.min(Integer.MAX_VALUE, Math.max(1, available >> 10));
+		memory = new Semaphore(budgetKb, true);
+		// documents are only handed to the executor when a thread is free, so that the order is kept
+		slots = new Slots(threads);
+		workers = threads;
+		executor = Executors.newFixedThreadPool(threads);
+		if (largestFirst)
+			pending = new PriorityQueue<>(Comparator.comparingLong((Job j) -> j.length).reversed());
+		log.info("Scheduling documents on " + threads + " threads within " + (budgetKb >> 10) + " MB" +
+				(largestFirst ? ", largest first." : "."));
+		if (WorkerController.isAdaptive()) controller = new WorkerController(this, threads);
+	}
+
+	/**
+	 *
+	 * @return the number of documents that can be processed at the same time
+	 */
+	public synchronized int getWorkers() {
+		return workers;
+	}
+
+	/**
+	 * Changes the number of documents that can be processed at the same time. Running documents are not
+	 * interrupted when the number is lowered.
+	 *
+	 * @param n	the number of workers, between 1 and <code>documentThreads</code>
+	 */
+	public synchronized void setWorkers(int n) {
+		n = Math.max(1, Math.min(threads, n));
+		if (n > workers) slots.release(n - workers);
+		else if (n < workers) slots.reduce(workers - n);
+		workers = n;
+	}
+
+	/**
+	 *
+	 * @return the number of documents processed so far
+	 */
+	public long getCompleted() {
+		return completed.get();
+	}
+
+	/**
+	 * Keeps the share of the memory budget of the document processed on the calling thread until the returned
+	 * permit is released, for work on the document that goes on after its task returns (an abandoned worker).
+	 *
+	 * @return the permit, or null if the document is not scheduled within a memory budget
+	 */
+	static MemoryPermit retainMemory() {
+		MemoryPermit permit = permits.get();
+		if (permit != null) permit.retain();
+		return permit;
+	}
+
+	/**
+	 *
+	 * @param length	the input size in bytes
+	 * @param limit		the part of the budget that documents can use, in kilobytes
+	 * @return the estimated heap needed to process a document, in kilobytes, capped at the limit
+	 */
+	private int estimateKb(long length, int limit) {
+		long kb = (perDocument + perInputByte * length) >> 10;
+		if (kb > limit) {
+			oversized++;
+			return limit;
+		}
+		return (int)Math.max(1, kb);
+	}
+
+	/**
+	 * Schedules a document. The call blocks while the memory budget is used up.
+	 *
+	 * @param rec	the document
+	 * @param task	the processing task
+	 * @throws InterruptedException	if interrupted while waiting for memory
+	 */
+	public void submit(DocumentRecord rec, Task task) throws InterruptedException {
+		if (isConcurrent() == false) {
+			run(new Job(rec, task));
+			return;
+		}
+		if (pending == null) {
+			dispatch(new Job(rec, task));
+			return;
+		}
+		Job job = new Job(rec, task);
+		if (rec.getFile() == null) job.heldKb = (int)Math.min(budgetKb / 2, Math.max(1, job.length >> 10));
+		while (pending.isEmpty() == false && pendingKb + job.heldKb > budgetKb / 2)
+			dispatch(pending.poll());
+		memory.acquire(job.heldKb);
+		pendingKb += job.heldKb;
+		pending.add(job);
+		if (pending.size() >= window) dispatch(pending.poll());
+	}
+
+	private void dispatch(Job job) throws InterruptedException {
+		if (job.heldKb > 0) {
+			memory.release(job.heldKb);
+			pendingKb -= job.heldKb;
+			job.heldKb = 0;
+		}
+		int kb = estimateKb(job.length, budgetKb - pendingKb);
+		slots.acquire();
+		memory.acquire(kb);
+		MemoryPermit permit = new MemoryPermit(memory, kb);
+		executor.execute(() -> {
+			int now = running.incrementAndGet();
+			synchronized (this) {
+				peakRunning = Math.max(peakRunning, now);
+			}
+			permits.set(permit);
+			try {
+				run(job);
+			} finally {
+				permits.remove();
+				running.decrementAndGet();
+				completed.incrementAndGet();
+				permit.release();
+				slots.release();
+			}
+		});
+	}
+
+	private void run(Job job) {
+		try {
+			job.task.process(job.rec);
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Error processing " + job.rec.getId() + ". Skipping...", e);
+		}
+	}
+
+	/**
+	 * Processes the remaining documents and waits for all documents to finish.
+	 */
+	public void close() throws IOException {
+		if (isConcurrent() == false) return;
+		try {
+			while (pending != null && pending.isEmpty() == false)
+				dispatch(pending.poll());
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ie) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the scheduled documents", ie);
+		} finally {
+			if (controller != null) controller.close();
+		}
+		log.info("Scheduler: at most " + peakRunning + " documents at a time, " + oversized + " over the memory budget.");
+	}
+}
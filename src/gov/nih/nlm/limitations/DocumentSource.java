@@ -0,0 +1,15 @@
+package gov.nih.nlm.limitations;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * A stream of input documents. Implementations read documents one at a time, so that 
+ * large corpora can be processed without listing or extracting them first.
+ * 
+ * @author Halil Kilicoglu
+ *
+ */
+public interface DocumentSource extends Iterator<DocumentRecord>, Closeable {
+
+}
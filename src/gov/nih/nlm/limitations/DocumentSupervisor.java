@@ -0,0 +1,263 @@
+package gov.nih.nlm.limitations;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Supervised execution of batch runs, so that a single pathological document cannot stall or crash a run. <p>
+ *
+ * In supervised mode (<code>documentTimeout</code> property, in seconds, greater than 0), each document is
+ * processed on its own worker thread under a deadline. A document that runs past the deadline is abandoned
+ * (its thread is interrupted and left behind), and a document that fails with an {@link Error}, such as
+ * {@link StackOverflowError} or {@link OutOfMemoryError}, is recorded as well. These documents are written
+ * to a quarantine file (<code>quarantineFile</code> property, or a default chosen by the runner), and are
+ * skipped when the run is restarted. The ids of the documents in progress are kept in a side file, so that a
+ * document that brings down the whole JVM is also quarantined on the next run (with {@link DocumentScheduler},
+ * all the documents that were in progress at the time are quarantined). <p>
+ *
+ * An abandoned worker keeps running until it notices the interrupt, and it still uses the annotators and its
+ * share of the heap (with a {@link DocumentScheduler}, its share of the memory budget is kept until it finishes). At most <code>documentMaxAbandoned</code> abandoned workers (default 4) are allowed to run:
+ * when there are that many, no new document is started until one of them finishes, and the number is logged
+ * while the run waits. <p>
+ *
+ * The worker threads can be given a larger stack (<code>documentStackSize</code> property, in megabytes) for
+ * deeply nested input. Ordinary exceptions are passed on to the runner, which handles them as before.
+ *
+ * @author Halil Kilicoglu
+ *
+ */
+public class DocumentSupervisor implements Closeable {
+	private static Logger log = Logger.getLogger(DocumentSupervisor.class.getName());
+
+	private static long timeout = 0;
+	private static long stackSize = 0;
+	private static String quarantineOverride = null;
+	private static int maxAbandoned = 4;
+
+	private Path quarantineFile;
+	private Path currentFile;
+	private Set<String> quarantined = ConcurrentHashMap.newKeySet();
+	private Set<String> inProgress = new LinkedHashSet<>();
+	private AtomicInteger newlyQuarantined = new AtomicInteger();
+	private AtomicInteger workerNum = new AtomicInteger();
+	private final Object abandonLock = new Object();
+	private int abandoned = 0;
+	private int peakAbandoned = 0;
+
+	// a document on its worker thread
+	private static class Worker {
+		private final String id;
+		private boolean finished = false;
+		private boolean abandoned = false;
+		// the share of the memory budget of the document, kept while an abandoned worker runs
+		private DocumentScheduler.MemoryPermit permit = null;
+
+		private Worker(String id) {
+			this.id = id;
+		}
+	}
+
+	/**
+	 * Sets the supervision options from properties.
+	 *
+	 * @param props	the properties
+	 */
+	public static void init(Properties props) {
+		timeout = TimeUnit.SECONDS.toMillis(Long.parseLong(props.getProperty("documentTimeout", "0")));
+		stackSize = Long.parseLong(props.getProperty("documentStackSize", "0")) * 1024 * 1024;
+		quarantineOverride = props.getProperty("quarantineFile");
+		maxAbandoned = Math.max(1, Integer.parseInt(props.getProperty("documentMaxAbandoned", "4")));
+	}
+
+	public static boolean isSupervised() {
+		return timeout > 0;
+	}
+
+	/**
+	 * Creates a supervisor, loading the documents quarantined in earlier runs.
+	 *
+	 * @param defaultQuarantineFile	the quarantine file to use if none is configured
+	 * @throws IOException	if the quarantine file cannot be read
+	 */
+	public DocumentSupervisor(String defaultQuarantineFile) throws IOException {
+		if (isSupervised() == false) return;
+		quarantineFile = Paths.get(quarantineOverride == null ? defaultQuarantineFile : quarantineOverride);
+		currentFile = Paths.get(quarantineFile.toString() + ".current");
+		if (Files.exists(quarantineFile)) {
+			for (String line: Files.readAllLines(quarantineFile, StandardCharsets.UTF_8)) {
+				if (line.trim().length() == 0) continue;
+				quarantined.add(line.split("\t")[0]);
+			}
+		}
+		if (Files.exists(currentFile)) {
+			for (String line: Files.readAllLines(currentFile, StandardCharsets.UTF_8)) {
+				if (line.trim().length() > 0 && isQuarantined(line.trim()) == false)
+					quarantine(line.trim(), "crash", "the previous run ended while processing this document");
+			}
+			Files.delete(currentFile);
+		}
+		log.info("Supervised mode: " + TimeUnit.MILLISECONDS.toSeconds(timeout) + " s per document, " +
+				quarantined.size() + " documents in quarantine (" + quarantineFile + ").");
+	}
+
+	/**
+	 *
+	 * @param id	the document id
+	 * @return true if the document was quarantined in this or an earlier run
+	 */
+	public boolean isQuarantined(String id) {
+		return quarantined.contains(id);
+	}
+
+	/**
+	 * Processes a document. Without supervision, the task simply runs on the calling thread. With supervision,
+	 * the call first waits while there are <code>documentMaxAbandoned</code> abandoned workers.
+	 *
+	 * @param id	the document id
+	 * @param task	the processing task
+	 * @return the result of the task, or null if the document was quarantined
+	 * @throws Exception	the exception thrown by the task
+	 */
+	public <T> T run(String id, Callable<T> task) throws Exception {
+		if (isSupervised() == false) return task.call();
+		awaitAbandoned();
+		started(id);
+		FutureTask<T> future = new FutureTask<>(task);
+		Worker state = new Worker(id);
+		Thread worker = new Thread(null, () -> {
+			try {
+				future.run();
+			} finally {
+				CorpusIO.releaseScratchFile();
+				finished(state);
+			}
+		}, "document-worker-" + workerNum.incrementAndGet(), stackSize);
+		worker.setDaemon(true);
+		worker.start();
+		try {
+			return future.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException te) {
+			worker.interrupt();
+			abandon(state);
+			quarantine(id, "timeout", "no result after " + TimeUnit.MILLISECONDS.toSeconds(timeout) + " s");
+			return null;
+		} catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if (cause instanceof Error) {
+				quarantine(id, "error", describe(cause));
+				return null;
+			}
+			throw (Exception)cause;
+		} finally {
+			finished(id);
+		}
+	}
+
+	private void awaitAbandoned() throws InterruptedException {
+		synchronized (abandonLock) {
+			while (abandoned >= maxAbandoned) {
+				log.warning("Waiting for abandoned workers to finish: " + abandoned + " still running.");
+				abandonLock.wait(timeout);
+			}
+		}
+	}
+
+	private void abandon(Worker state) {
+		synchronized (abandonLock) {
+			if (state.finished) return;
+			state.abandoned = true;
+			state.permit = DocumentScheduler.retainMemory();
+			abandoned++;
+			peakAbandoned = Math.max(peakAbandoned, abandoned);
+			log.warning("Abandoned the worker of " + state.id + ": " + abandoned + " abandoned workers running.");
+		}
+	}
+
+	private void finished(Worker state) {
+		synchronized (abandonLock) {
+			state.finished = true;
+			if (state.abandoned == false) return;
+			abandoned--;
+			abandonLock.notifyAll();
+		}
+		if (state.permit != null) state.permit.release();
+		log.info("The abandoned worker of " + state.id + " finished.");
+	}
+
+	private synchronized void started(String id) throws IOException {
+		inProgress.add(id);
+		writeInProgress();
+	}
+
+	private synchronized void finished(String id) throws IOException {
+		inProgress.remove(id);
+		if (inProgress.isEmpty()) Files.deleteIfExists(currentFile);
+		else writeInProgress();
+	}
+
+	private void writeInProgress() throws IOException {
+		Files.write(currentFile, String.join("\n", inProgress).getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String describe(Throwable t) {
+		StringWriter sw = new StringWriter();
+		t.printStackTrace(new PrintWriter(sw));
+		String[] lines = sw.toString().split("\\R");
+		return lines[0] + (lines.length > 1 ? " " + lines[1].trim() : "");
+	}
+
+	private synchronized void quarantine(String id, String reason, String detail) throws IOException {
+		log.warning("Quarantining " + id + " (" + reason + "): " + detail);
+		quarantined.add(id);
+		newlyQuarantined.incrementAndGet();
+		String line = id + "\t" + reason + "\t" + detail.replace('\t', ' ') + "\n";
+		Files.write(quarantineFile, line.getBytes(StandardCharsets.UTF_8),
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 *
+	 * @return the number of documents quarantined in this run
+	 */
+	public int getQuarantinedCount() {
+		return newlyQuarantined.get();
+	}
+
+	/**
+	 *
+	 * @return the number of abandoned workers that are still running
+	 */
+	public int getAbandonedCount() {
+		synchronized (abandonLock) {
+			return abandoned;
+		}
+	}
+
+	public void close() throws IOException {
+		if (isSupervised() && newlyQuarantined.get() > 0)
+			System.out.println("Documents quarantined: " + newlyQuarantined + " (see " + quarantineFile + ")");
+		synchronized (abandonLock) {
+			if (peakAbandoned > 0)
+				System.out.println("Abandoned workers: at most " + peakAbandoned + " at a time, " + abandoned + " still running");
+		}
+	}
+}
@@ -1,6 +1,5 @@
 package gov.nih.nlm.limitations;
 
-import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
@@ -22,7 +21,6 @@ import gov.nih.nlm.ling.core.Sentence;
 import gov.nih.nlm.ling.core.Span;
 import gov.nih.nlm.ling.process.ComponentLoader;
 import gov.nih.nlm.ling.process.SentenceSegmenter;
-import gov.nih.nlm.ling.util.FileUtils;
 import gov.nih.nlm.pmc.MyPMCArticle;
 import gov.nih.nlm.pmc.PMCSectionSegmenter;
 
@@ -72,25 +70,29 @@ public class GenerateDataset {
 		return "";
 	}
 
-	private static void parseSingleArticle(String id, String type) throws Exception {
+	private static void parseSingleArticle(String filename, String id, String type) throws Exception {
 		DOC_POS_SENTENCES = new ArrayList<>();
 		DOC_NEG_SENTENCES = new ArrayList<>();
-		MyPMCArticle article = new MyPMCArticle(id);
+		DocumentEvent load = new DocumentEvent.Load().start(id);
+		MyPMCArticle article = new MyPMCArticle(CorpusIO.plainFile(filename));
 		String title = article.getTitle();
 		String abstText = article.getAbstractText();
 		String fullText = article.getFullTextText();
 
 		String allText = title + abstText + fullText;
+		load.finish(allText.length(), 0, null);
 		Document doc = new Document(id, allText);
 
 		PMCSectionSegmenter sectSegmenter = new PMCSectionSegmenter(article);
 		sectSegmenter.segment(doc);
 		List<Sentence> sentences = new ArrayList<>();
+		DocumentEvent segmentation = new DocumentEvent.Segmentation().start(id);
 		segmenter.segment(doc.getText(), sentences);
+		segmentation.finish(doc.getText().length(), sentences.size(), null);
 		doc.setSentences(sentences);
 		for (Sentence sentence: sentences) {
 			sentence.setDocument(doc);
-			log.fine("Sentence: " + sentence.getText());
+			log.fine(() -> "Sentence: " + sentence.getText());
 		}
 		for (Section sec : doc.getSections()) {
 			String secTitle = "";
@@ -129,12 +131,14 @@ public class GenerateDataset {
 		List<Sentence> posSubset = POS_MAP.get(id);
 		List<Sentence> negSubset = NEG_MAP.get(id);
 		for (Sentence s: posSubset) {
-			outLines.add(type + "\t" + "POS\t" + id.substring(id.lastIndexOf("\\")+1) + "\t" + s.getId() + "\t" + getSectionTitle(s) + "\tPOS\t" + s.getText());
-			log.fine(type + "\t" + "POS\t" + id.substring(id.lastIndexOf("\\")+1) + "\t" + s.getId() + "\t" + getSectionTitle(s) + "\tPOS\t" + s.getText());
+			String line = type + "\t" + "POS\t" + id.substring(id.lastIndexOf("\\")+1) + "\t" + s.getId() + "\t" + getSectionTitle(s) + "\tPOS\t" + s.getText();
+			outLines.add(line);
+			log.fine(line);
 		}
 		for (Sentence s: negSubset) {
-			outLines.add(type + "\t" + "NEG\t" + id.substring(id.lastIndexOf("\\")+1) + "\t" + s.getId() + "\t" + getSectionTitle(s) + "\tNEG\t" + s.getText());
-			log.fine(type + "\t" + "NEG\t" + id.substring(id.lastIndexOf("\\")+1) + "\t" + s.getId() + "\t" + getSectionTitle(s) + "\tNEG\t" + s.getText());
+			String line = type + "\t" + "NEG\t" + id.substring(id.lastIndexOf("\\")+1) + "\t" + s.getId() + "\t" + getSectionTitle(s) + "\tNEG\t" + s.getText();
+			outLines.add(line);
+			log.fine(line);
 		}
 		Collections.sort(outLines,SENTENCE_ID_ORDER);
 		for (String out: outLines) {
@@ -254,31 +258,33 @@ public class GenerateDataset {
 
 	/**
 	 * 
-	 * @param in	the input directory
+	 * @param in	the input directory, tar/zip archive or JSON Lines file
 	 * @param out  	the output directory
 	 * @throws IOException if there is a problem with file reading/writing
 	 */
 	public static void processDirectory(String in, String out) throws IOException {
-		File inDir = new File(in);
-		if (inDir.isDirectory() == false) return;
+		if (CorpusIO.isSource(in) == false) return;
 		int fileNum = 0;
-		List<String> files = FileUtils.listFiles(in, false, "xml");
 		int numSeed =  100;
 		int numTest = 300;
 		pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(out),
 				StandardCharsets.UTF_8), true);
-		for (String filename: files) {
-			String type = "SEED";
-			if (fileNum < numSeed) type = "SEED";
-			else if (fileNum >= numSeed && fileNum < numTest) type = "TEST";
-			else type = "SEMI";
-			String id = filename.substring(filename.lastIndexOf(File.separator)+1).replace(".xml", "");
-			log.log(Level.INFO,"Processing {0}: {1}. {2}", new Object[]{id,++fileNum, type});
-			try {
-				parseSingleArticle(filename, type);
-			} catch (Exception e) {
-				e.printStackTrace();
-				log.warning("ERROR PROCESSING FILE. SKIPPING.. " + id);
+		try (DocumentSource source = CorpusIO.openSource(in, "xml")) {
+			while (source.hasNext()) {
+				DocumentRecord rec = source.next();
+				String type = "SEED";
+				if (fileNum < numSeed) type = "SEED";
+				else if (fileNum >= numSeed && fileNum < numTest) type = "TEST";
+				else type = "SEMI";
+				String id = rec.getId();
+				log.log(Level.INFO,"Processing {0}: {1}. {2}", new Object[]{id,++fileNum, type});
+				try {
+					// files in a directory keep their path as document id, as before
+					parseSingleArticle(CorpusIO.toFile(rec), (rec.getFile() == null ? id : rec.getFile()), type);
+				} catch (Exception e) {
+					e.printStackTrace();
+					log.warning("ERROR PROCESSING FILE. SKIPPING.. " + id);
+				}
 			}
 		}
 		pw.flush();
@@ -289,19 +295,19 @@ public class GenerateDataset {
 			throws InstantiationException, IllegalAccessException, ClassNotFoundException {
 		//		CoreNLPWrapper.getInstance(props);
 		segmenter = ComponentLoader.getSentenceSegmenter(props);
+		CorpusIO.init(props);
 	}
 
 	public static void main(String[] args) 
 			throws IOException, InstantiationException, 
 			IllegalAccessException, ClassNotFoundException, Exception {
 		if (args.length < 2) {
-			System.err.print("Usage: inputDirectory outFile");
+			System.err.print("Usage: inputDirectory|archive|jsonl outFile");
 		}
 		String in = args[0];
 		String out = args[1];
-		File inDir = new File(in);
-		if (inDir.isDirectory()== false) {
-			System.err.println("PMC XML directory does not exist:" + in);
+		if (CorpusIO.isSource(in) == false) {
+			System.err.println("PMC XML directory, archive or JSON Lines file does not exist:" + in);
 			System.exit(1);
 		}
 		Properties props = new Properties();
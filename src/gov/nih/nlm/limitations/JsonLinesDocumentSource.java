@@ -0,0 +1,69 @@
+package gov.nih.nlm.limitations;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.NoSuchElementException;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Document source over a JSON Lines file (optionally compressed), with one JSON object per line. 
+ * Each object is expected to have an <code>id</code> field and the document content in a
+ * <code>text</code> (or <code>content</code>) field.
+ * 
+ * @author Halil Kilicoglu
+ *
+ */
+public class JsonLinesDocumentSource implements DocumentSource {
+	private static ObjectMapper mapper = new ObjectMapper();
+
+	private BufferedReader reader;
+	private DocumentRecord nextRecord = null;
+	private int lineNum = 0;
+
+	public JsonLinesDocumentSource(String filename) throws IOException {
+		reader = new BufferedReader(new InputStreamReader(CorpusIO.openInputStream(filename), StandardCharsets.UTF_8));
+		nextRecord = readNext();
+	}
+	
+	public static boolean isJsonLines(String filename) {
+		return CorpusIO.hasExtension(filename, "jsonl");
+	}
+	
+	public boolean hasNext() {
+		return nextRecord != null;
+	}
+
+	public DocumentRecord next() {
+		if (nextRecord == null) throw new NoSuchElementException();
+		DocumentRecord rec = nextRecord;
+		try {
+			nextRecord = readNext();
+		} catch (IOException ioe) {
+			throw new RuntimeException("Unable to read JSON Lines record " + (lineNum+1), ioe);
+		}
+		return rec;
+	}
+	
+	private DocumentRecord readNext() throws IOException {
+		String line;
+		while ((line = reader.readLine()) != null) {
+			lineNum++;
+			if (line.trim().isEmpty()) continue;
+			JsonNode node = mapper.readTree(line);
+			JsonNode id = node.get("id");
+			JsonNode text = node.has("text") ? node.get("text") : node.get("content");
+			if (id == null || text == null) 
+				throw new IOException("Record on line " + lineNum + " lacks id or text fields.");
+			return new DocumentRecord(id.asText(), id.asText(), text.asText().getBytes(StandardCharsets.UTF_8));
+		}
+		return null;
+	}
+
+	public void close() throws IOException {
+		reader.close();
+	}
+}
@@ -0,0 +1,756 @@
+package gov.nih.nlm.limitations;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * A memory-mapped index over the limitation sentences written by the recognizers, for looking up the
+ * limitation sentences of a document by its id and for searching the sentences by terms, without reading
+ * the JSON output into memory. <p>
+ *
+ * The index is a single file with the document records (id and limitation sentences, in UTF-8), a table of
+ * record offsets and document versions, an open-addressing hash table from document ids to records, a table of sentence offsets,
+ * a hash table of terms and, for each term, the sorted list of the sentences that contain it (as 4-byte
+ * sentence numbers across the index). Terms are the lowercased runs of letters and digits. A lookup by id
+ * reads one or two hash table slots and a record; a search reads the postings of the query terms and
+ * intersects them. Nothing is read until it is needed, so
+ * an index can be opened and queried from several threads with little heap. If a document id appears more than
+ * once, the first record is found. <p>
+ *
+ * The index is written with a {@link Writer}, from summaries or from the JSON output of a recognizer, which
+ * is read as a stream. The writer keeps the term dictionary and, per document, the id hash, the record offset,
+ * the number of the first sentence and the version on the heap; the sentence offsets and the postings are filled
+ * in a second pass over the records in the index file. With the <code>resultIndex</code> property set to
+ * <code>true</code>, <code>PreprintLimitationRecognizer</code>, <code>CombinedPreprintLimitationRecognizer</code>
+ * and <code>CombinedPMCLimitationRecognizer</code> also write an index next to their JSON output
+ * (<code>out.idx</code>). <p>
+ *
+ * The <code>main</code> method builds an index from a JSON file (<code>build</code>), looks up documents
+ * (<code>get</code>) and searches sentences (<code>search</code>).
+ *
+ * @author Halil Kilicoglu
+ *
+ */
+public class LimitationIndex implements AutoCloseable {
+	private static Logger log = Logger.getLogger(LimitationIndex.class.getName());
+
+	private static final int MAGIC = 0x4C494458;
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 72;
+	private static final int ID_SLOT = 8;
+	private static final int DOC_ENTRY = 20;
+	private static final int TERM_SLOT = 12;
+	private static final int POSTING = 4;
+
+	private static boolean enabled = false;
+
+	private final FileChannel channel;
+	private final Mapped file;
+	private final int docCount;
+	private final int idSlots;
+	private final int termCount;
+	private final int termSlots;
+	private final int sentenceCount;
+	private final long idTableOffset;
+	private final long docTableOffset;
+	private final long termTableOffset;
+	private final long sentenceTableOffset;
+
+	/**
+	 * Sets whether the recognizers write an index with their output, from the <code>resultIndex</code> property.
+	 *
+	 * @param props	the properties
+	 */
+	public static void init(Properties props) {
+		enabled = Boolean.parseBoolean(props.getProperty("resultIndex", "false"));
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * A sentence found by a search.
+	 */
+	public static class Hit {
+		private final String docId;
+		private final int sentence;
+		private final String text;
+
+		private Hit(String docId, int sentence, String text) {
+			this.docId = docId;
+			this.sentence = sentence;
+			this.text = text;
+		}
+
+		public String getDocId() {
+			return docId;
+		}
+
+		/**
+		 * @return the position of the sentence among the limitation sentences of the document, from 0
+		 */
+		public int getSentence() {
+			return sentence;
+		}
+
+		public String getText() {
+			return text;
+		}
+	}
+
+	/**
+	 * A file mapped in segments, since a single mapping cannot be larger than 2 GB.
+	 */
+	private static class Mapped {
+		private static final int SEGMENT_BITS = 30;
+		private static final int SEGMENT = 1 << SEGMENT_BITS;
+
+		private final MappedByteBuffer[] segments;
+
+		private Mapped(FileChannel channel, FileChannel.MapMode mode, long offset, long size) throws IOException {
+			segments = new MappedByteBuffer[(int)((size + SEGMENT - 1) >>> SEGMENT_BITS)];
+			for (int i=0; i < segments.length; i++) {
+				long begin = (long)i << SEGMENT_BITS;
+				segments[i] = channel.map(mode, offset + begin, Math.min(SEGMENT, size - begin));
+			}
+		}
+
+		private byte get(long pos) {
+			return segments[(int)(pos >>> SEGMENT_BITS)].get((int)(pos & (SEGMENT - 1)));
+		}
+
+		private int getInt(long pos) {
+			int off = (int)(pos & (SEGMENT - 1));
+			if (off <= SEGMENT - 4) return segments[(int)(pos >>> SEGMENT_BITS)].getInt(off);
+			int value = 0;
+			for (int i=0; i < 4; i++)
+				value = (value << 8) | (get(pos + i) & 0xFF);
+			return value;
+		}
+
+		private long getLong(long pos) {
+			return ((long)getInt(pos) << 32) | (getInt(pos + 4) & 0xFFFFFFFFL);
+		}
+
+		private void get(long pos, byte[] dst) {
+			int done = 0;
+			while (done < dst.length) {
+				long p = pos + done;
+				ByteBuffer segment = segments[(int)(p >>> SEGMENT_BITS)].duplicate();
+				int off = (int)(p & (SEGMENT - 1));
+				segment.position(off);
+				int n = Math.min(dst.length - done, SEGMENT - off);
+				segment.get(dst, done, n);
+				done += n;
+			}
+		}
+
+		private void putInt(long pos, int value) {
+			int off = (int)(pos & (SEGMENT - 1));
+			if (off <= SEGMENT - 4) {
+				segments[(int)(pos >>> SEGMENT_BITS)].putInt(off, value);
+				return;
+			}
+			for (int i=0; i < 4; i++)
+				segments[(int)((pos + i) >>> SEGMENT_BITS)].put((int)((pos + i) & (SEGMENT - 1)), (byte)(value >>> (24 - 8 * i)));
+		}
+
+		private String getString(long pos, int length) {
+			byte[] b = new byte[length];
+			get(pos, b);
+			return new String(b, StandardCharsets.UTF_8);
+		}
+
+		private void force() {
+			for (MappedByteBuffer segment: segments)
+				segment.force();
+		}
+	}
+
+	/**
+	 * Opens an index.
+	 *
+	 * @param filename	the index file
+	 * @throws IOException	if the file cannot be read or is not an index
+	 */
+	public LimitationIndex(String filename) throws IOException {
+		channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+		try {
+			if (channel.size() < HEADER_SIZE) throw new IOException("Not a limitation index: " + filename);
+			file = new Mapped(channel, FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (file.getInt(0) != MAGIC || file.getInt(4) != VERSION) throw new IOException("Not a limitation index: " + filename);
+			docCount = file.getInt(8);
+			idSlots = file.getInt(12);
+			termCount = file.getInt(16);
+			termSlots = file.getInt(20);
+			sentenceCount = file.getInt(24);
+			idTableOffset = file.getLong(32);
+			docTableOffset = file.getLong(40);
+			termTableOffset = file.getLong(48);
+			sentenceTableOffset = file.getLong(56);
+		} catch (IOException ioe) {
+			channel.close();
+			throw ioe;
+		}
+	}
+
+	/**
+	 * @return the number of documents in the index
+	 */
+	public int size() {
+		return docCount;
+	}
+
+	/**
+	 * @return the number of limitation sentences in the index
+	 */
+	public int sentences() {
+		return sentenceCount;
+	}
+
+	/**
+	 * @return the number of distinct terms in the limitation sentences
+	 */
+	public int terms() {
+		return termCount;
+	}
+
+	/**
+	 * Finds the limitation sentences of a document.
+	 *
+	 * @param docId	the document id
+	 * @return the summary of the document, or null if the document is not in the index
+	 */
+	public LimitationSummary get(String docId) {
+		int doc = find(docId);
+		return (doc < 0 ? null : document(doc));
+	}
+
+	/**
+	 * @param docId	the document id
+	 * @return true if the document is in the index
+	 */
+	public boolean contains(String docId) {
+		return find(docId) >= 0;
+	}
+
+	/**
+	 * @param docId	the document id
+	 * @return the version the document was added with, or -1 if the document is not in the index
+	 */
+	public long version(String docId) {
+		int doc = find(docId);
+		return (doc < 0 ? -1 : version(doc));
+	}
+
+	/**
+	 * @param doc	the position of the document in the index, from 0 to {@link #size()}
+	 * @return the summary of the document
+	 */
+	public LimitationSummary document(int doc) {
+		return summary(file.getLong(docTableOffset + (long)doc * DOC_ENTRY));
+	}
+
+	/**
+	 * @param doc	the position of the document in the index, from 0 to {@link #size()}
+	 * @return the version the document was added with
+	 */
+	public long version(int doc) {
+		return file.getLong(docTableOffset + (long)doc * DOC_ENTRY + 12);
+	}
+
+	private int find(String docId) {
+		byte[] id = docId.getBytes(StandardCharsets.UTF_8);
+		int hash = hash(id);
+		for (int slot = mix(hash) & (idSlots - 1); ; slot = (slot + 1) & (idSlots - 1)) {
+			long pos = idTableOffset + (long)slot * ID_SLOT;
+			int doc = file.getInt(pos + 4);
+			if (doc == 0) return -1;
+			if (file.getInt(pos) != hash) continue;
+			long record = file.getLong(docTableOffset + (long)(doc - 1) * DOC_ENTRY);
+			if (sameBytes(record, id)) return doc - 1;
+		}
+	}
+
+	private boolean sameBytes(long pos, byte[] b) {
+		if (file.getInt(pos) != b.length) return false;
+		for (int i=0; i < b.length; i++)
+			if (file.get(pos + 4 + i) != b[i]) return false;
+		return true;
+	}
+
+	private LimitationSummary summary(long record) {
+		int idLength = file.getInt(record);
+		String id = file.getString(record + 4, idLength);
+		long pos = record + 4 + idLength;
+		int count = file.getInt(pos);
+		pos += 4;
+		List<String> sents = new ArrayList<>(count);
+		for (int i=0; i < count; i++) {
+			int length = file.getInt(pos);
+			sents.add(file.getString(pos + 4, length));
+			pos += 4 + length;
+		}
+		return new LimitationSummary(id, count, sents);
+	}
+
+	private int firstSentence(int doc) {
+		return file.getInt(docTableOffset + (long)doc * DOC_ENTRY + 8);
+	}
+
+	private Hit hit(int sentence) {
+		// the last document whose first sentence is not after the sentence
+		int lo = 0, hi = docCount - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (firstSentence(mid) <= sentence) lo = mid;
+			else hi = mid - 1;
+		}
+		long record = file.getLong(docTableOffset + (long)lo * DOC_ENTRY);
+		String id = file.getString(record + 4, file.getInt(record));
+		long pos = file.getLong(sentenceTableOffset + 8L * sentence);
+		return new Hit(id, sentence - firstSentence(lo), file.getString(pos + 4, file.getInt(pos)));
+	}
+
+	/**
+	 * Finds the postings of a term.
+	 *
+	 * @return the offset of the postings and their number, or null if the term is not in the index
+	 */
+	private long[] postings(String term) {
+		byte[] t = term.getBytes(StandardCharsets.UTF_8);
+		int hash = hash(t);
+		for (int slot = mix(hash) & (termSlots - 1); ; slot = (slot + 1) & (termSlots - 1)) {
+			long pos = termTableOffset + (long)slot * TERM_SLOT;
+			long entry = file.getLong(pos + 4);
+			if (entry == 0) return null;
+			if (file.getInt(pos) != hash || sameBytes(entry, t) == false) continue;
+			long p = entry + 4 + t.length;
+			return new long[]{file.getLong(p + 4), file.getInt(p)};
+		}
+	}
+
+	/**
+	 * Finds the limitation sentences that contain all the terms of a query, in document order.
+	 *
+	 * @param query	the query, tokenized as the sentences are
+	 * @param limit	the maximum number of sentences to return
+	 * @return the sentences
+	 */
+	public List<Hit> search(String query, int limit) {
+		return search(query, limit, docId -> true);
+	}
+
+	/**
+	 * Finds the limitation sentences that contain all the terms of a query in some of the documents.
+	 *
+	 * @param query		the query, tokenized as the sentences are
+	 * @param limit		the maximum number of sentences to return
+	 * @param documents	the ids of the documents to search
+	 * @return the sentences
+	 */
+	public List<Hit> search(String query, int limit, Predicate<String> documents) {
+		List<Hit> hits = new ArrayList<>();
+		List<long[]> lists = new ArrayList<>();
+		for (String term: terms(query)) {
+			long[] p = postings(term);
+			if (p == null) return hits;
+			lists.add(p);
+		}
+		if (lists.isEmpty()) return hits;
+		// the rarest term drives the intersection, the others are searched
+		lists.sort(Comparator.comparingLong(p -> p[1]));
+		long[] first = lists.get(0);
+		long[] from = new long[lists.size()];
+		for (long i=0; i < first[1] && hits.size() < limit; i++) {
+			int posting = posting(first[0], i);
+			boolean all = true;
+			for (int l=1; l < lists.size() && all; l++) {
+				long found = find(lists.get(l), from[l], posting);
+				from[l] = (found < 0 ? -found - 1 : found);
+				all = (found >= 0);
+			}
+			if (all) {
+				Hit hit = hit(posting);
+				if (documents.test(hit.getDocId())) hits.add(hit);
+			}
+		}
+		return hits;
+	}
+
+	private int posting(long offset, long i) {
+		return file.getInt(offset + i * POSTING);
+	}
+
+	// binary search from a position, postings are sorted sentence numbers
+	private long find(long[] list, long from, int posting) {
+		long lo = from, hi = list[1] - 1;
+		while (lo <= hi) {
+			long mid = (lo + hi) >>> 1;
+			int value = posting(list[0], mid);
+			if (value < posting) lo = mid + 1;
+			else if (value > posting) hi = mid - 1;
+			else return mid;
+		}
+		return -lo - 1;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Splits text into index terms: lowercased runs of letters and digits, without repetitions.
+	 *
+	 * @param text	the text
+	 * @return the terms, in order of first occurrence
+	 */
+	public static Set<String> terms(String text) {
+		Set<String> terms = new LinkedHashSet<>();
+		String lower = text.toLowerCase(Locale.ROOT);
+		int begin = -1;
+		for (int i=0; i <= lower.length(); i++) {
+			boolean in = (i < lower.length() && Character.isLetterOrDigit(lower.charAt(i)));
+			if (in && begin < 0) begin = i;
+			else if (in == false && begin >= 0) {
+				terms.add(lower.substring(begin, i));
+				begin = -1;
+			}
+		}
+		return terms;
+	}
+
+	private static int hash(byte[] b) {
+		return Arrays.hashCode(b);
+	}
+
+	private static int mix(int hash) {
+		int h = hash * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private static int tableSize(int entries) {
+		int size = 16;
+		while (size < 2L * entries) size <<= 1;
+		return size;
+	}
+
+	/**
+	 * Writes an index. The summaries are added one at a time and the index is complete when the writer is closed.
+	 */
+	public static class Writer implements AutoCloseable {
+		private final String filename;
+		private final DataOutputStream out;
+		private long offset = HEADER_SIZE;
+		private long[] records = new long[1024];
+		private int[] idHashes = new int[1024];
+		private int[] firstSentences = new int[1024];
+		private long[] versions = new long[1024];
+		private int docCount = 0;
+		private int sentenceCount = 0;
+		private final Map<String,Integer> termIds = new HashMap<>();
+		private final List<String> terms = new ArrayList<>();
+		private long[] frequencies = new long[1024];
+		private boolean closed = false;
+
+		/**
+		 * Creates an index file.
+		 *
+		 * @param filename	the index file
+		 * @throws IOException	if the file cannot be written
+		 */
+		public Writer(String filename) throws IOException {
+			this.filename = filename;
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 1 << 16));
+			out.write(new byte[HEADER_SIZE]);
+		}
+
+		/**
+		 * Adds the limitation sentences of a document.
+		 *
+		 * @param sum	the summary of the document
+		 * @throws IOException	if the file cannot be written
+		 */
+		public void add(LimitationSummary sum) throws IOException {
+			add(sum, 0);
+		}
+
+		/**
+		 * Adds the limitation sentences of a document with a version, e.g., a fingerprint of its content.
+		 *
+		 * @param sum		the summary of the document
+		 * @param version	the version
+		 * @throws IOException	if the file cannot be written
+		 */
+		public void add(LimitationSummary sum, long version) throws IOException {
+			if (docCount == records.length) {
+				records = Arrays.copyOf(records, 2 * docCount);
+				idHashes = Arrays.copyOf(idHashes, 2 * docCount);
+				firstSentences = Arrays.copyOf(firstSentences, 2 * docCount);
+				versions = Arrays.copyOf(versions, 2 * docCount);
+			}
+			byte[] id = sum.getDocId().getBytes(StandardCharsets.UTF_8);
+			List<String> sents = (sum.getSents() == null ? new ArrayList<>() : sum.getSents());
+			if ((long)sentenceCount + sents.size() > Integer.MAX_VALUE) throw new IOException("Too many sentences for an index: " + filename);
+			records[docCount] = offset;
+			idHashes[docCount] = hash(id);
+			versions[docCount] = version;
+			firstSentences[docCount++] = sentenceCount;
+			sentenceCount += sents.size();
+			writeBytes(id);
+			out.writeInt(sents.size());
+			offset += 4;
+			for (String sent: sents) {
+				writeBytes(sent.getBytes(StandardCharsets.UTF_8));
+				for (String term: terms(sent)) {
+					Integer termId = termIds.get(term);
+					if (termId == null) {
+						termId = terms.size();
+						termIds.put(term, termId);
+						terms.add(term);
+						if (termId == frequencies.length) frequencies = Arrays.copyOf(frequencies, 2 * termId);
+					}
+					frequencies[termId]++;
+				}
+			}
+		}
+
+		/**
+		 * Adds the summaries in the JSON output of a recognizer, reading the JSON one summary at a time.
+		 *
+		 * @param json	the JSON file, an array of summaries
+		 * @throws IOException	if the JSON cannot be read or the file cannot be written
+		 */
+		public void addJson(String json) throws IOException {
+			try (InputStream in = CorpusIO.openInputStream(json);
+					JsonParser parser = new JsonFactory().createParser(in)) {
+				if (parser.nextToken() != JsonToken.START_ARRAY) throw new IOException("Expected an array of summaries: " + json);
+				while (parser.nextToken() == JsonToken.START_OBJECT) {
+					String id = null;
+					List<String> sents = new ArrayList<>();
+					while (parser.nextToken() == JsonToken.FIELD_NAME) {
+						String field = parser.getCurrentName();
+						JsonToken value = parser.nextToken();
+						if (field.equals("docId")) id = parser.getText();
+						else if (field.equals("sents") && value == JsonToken.START_ARRAY) {
+							while (parser.nextToken() != JsonToken.END_ARRAY)
+								sents.add(parser.getText());
+						}
+						else parser.skipChildren();
+					}
+					if (id == null) throw new IOException("Summary without docId in " + json + " at " + parser.getCurrentLocation());
+					add(new LimitationSummary(id, sents.size(), sents));
+				}
+			}
+		}
+
+		private void writeBytes(byte[] b) throws IOException {
+			out.writeInt(b.length);
+			out.write(b);
+			offset += 4 + b.length;
+		}
+
+		/**
+		 * Writes the tables and the postings.
+		 *
+		 * @throws IOException	if the file cannot be written
+		 */
+		@Override
+		public void close() throws IOException {
+			if (closed) return;
+			closed = true;
+			long docTableOffset = offset;
+			for (int d=0; d < docCount; d++) {
+				out.writeLong(records[d]);
+				out.writeInt(firstSentences[d]);
+				out.writeLong(versions[d]);
+			}
+			offset += (long)DOC_ENTRY * docCount;
+
+			long idTableOffset = offset;
+			int idSlots = tableSize(docCount);
+			int[] slots = new int[2 * idSlots];
+			for (int d=0; d < docCount; d++) {
+				int slot = mix(idHashes[d]) & (idSlots - 1);
+				while (slots[2 * slot + 1] != 0) slot = (slot + 1) & (idSlots - 1);
+				slots[2 * slot] = idHashes[d];
+				slots[2 * slot + 1] = d + 1;
+			}
+			for (int s: slots)
+				out.writeInt(s);
+			offset += (long)ID_SLOT * idSlots;
+
+			int termCount = terms.size();
+			long termTableOffset = offset;
+			int termSlots = tableSize(termCount);
+			long entriesOffset = termTableOffset + (long)TERM_SLOT * termSlots;
+			byte[][] termBytes = new byte[termCount][];
+			long[] entries = new long[termCount];
+			long[] cursors = new long[termCount];
+			long entry = entriesOffset;
+			for (int t=0; t < termCount; t++) {
+				termBytes[t] = terms.get(t).getBytes(StandardCharsets.UTF_8);
+				entries[t] = entry;
+				entry += 4 + termBytes[t].length + 4 + 8;
+			}
+			long sentenceTableOffset = entry;
+			long postingsOffset = sentenceTableOffset + 8L * sentenceCount;
+			long posting = postingsOffset;
+			for (int t=0; t < termCount; t++) {
+				cursors[t] = posting;
+				posting += POSTING * frequencies[t];
+			}
+			int[] termHashes = new int[termSlots];
+			long[] termEntries = new long[termSlots];
+			for (int t=0; t < termCount; t++) {
+				int hash = hash(termBytes[t]);
+				int slot = mix(hash) & (termSlots - 1);
+				while (termEntries[slot] != 0) slot = (slot + 1) & (termSlots - 1);
+				termHashes[slot] = hash;
+				termEntries[slot] = entries[t];
+			}
+			for (int s=0; s < termSlots; s++) {
+				out.writeInt(termHashes[s]);
+				out.writeLong(termEntries[s]);
+			}
+			for (int t=0; t < termCount; t++) {
+				out.writeInt(termBytes[t].length);
+				out.write(termBytes[t]);
+				out.writeInt((int)Math.min(frequencies[t], Integer.MAX_VALUE));
+				out.writeLong(cursors[t]);
+			}
+			out.close();
+
+			// the sentence offsets and the postings are filled in a second pass over the records, in sentence order
+			try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(MAGIC).putInt(VERSION).putInt(docCount).putInt(idSlots).putInt(termCount).putInt(termSlots);
+				header.putInt(sentenceCount).putInt(0);
+				header.putLong(idTableOffset).putLong(docTableOffset).putLong(termTableOffset).putLong(sentenceTableOffset).putLong(postingsOffset);
+				header.flip();
+				channel.write(header, 0);
+				if (posting > sentenceTableOffset) {
+					Mapped recordMap = new Mapped(channel, FileChannel.MapMode.READ_ONLY, 0, docTableOffset);
+					Mapped tableMap = new Mapped(channel, FileChannel.MapMode.READ_WRITE, sentenceTableOffset, posting - sentenceTableOffset);
+					int sentence = 0;
+					for (int d=0; d < docCount; d++) {
+						long pos = records[d];
+						pos += 4 + recordMap.getInt(pos);
+						int count = recordMap.getInt(pos);
+						pos += 4;
+						for (int s=0; s < count; s++, sentence++) {
+							tableMap.putInt(8L * sentence, (int)(pos >>> 32));
+							tableMap.putInt(8L * sentence + 4, (int)pos);
+							int length = recordMap.getInt(pos);
+							String sent = recordMap.getString(pos + 4, length);
+							pos += 4 + length;
+							for (String term: terms(sent)) {
+								int t = termIds.get(term);
+								tableMap.putInt(cursors[t] - sentenceTableOffset, sentence);
+								cursors[t] += POSTING;
+							}
+						}
+					}
+					tableMap.force();
+				}
+			}
+			log.info("Index written to " + filename + ": " + docCount + " documents, " + sentenceCount + " sentences, " + termCount + " terms, " +
+					(posting - postingsOffset) / POSTING + " postings.");
+		}
+	}
+
+	/**
+	 * Writes an index of summaries.
+	 *
+	 * @param sums		the summaries
+	 * @param filename	the index file
+	 * @throws IOException	if the file cannot be written
+	 */
+	public static void write(List<LimitationSummary> sums, String filename) throws IOException {
+		try (Writer writer = new Writer(filename)) {
+			for (LimitationSummary sum: sums)
+				writer.add(sum);
+		}
+	}
+
+	/**
+	 * Writes an index of the JSON output of a recognizer, reading the JSON one summary at a time.
+	 *
+	 * @param json		the JSON file, an array of summaries
+	 * @param filename	the index file
+	 * @throws IOException	if the JSON cannot be read or the index cannot be written
+	 */
+	public static void build(String json, String filename) throws IOException {
+		try (Writer writer = new Writer(filename)) {
+			writer.addJson(json);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2 || (args[0].equals("build") && args.length < 3)) {
+			System.err.println("Usage: build summaries.json indexFile | get indexFile docId... | search indexFile query [limit]");
+			System.exit(1);
+		}
+		if (args[0].equals("build")) {
+			long start = System.nanoTime();
+			build(args[1], args[2]);
+			System.err.printf("Built %s in %.1f s (%.1f MB)%n", args[2], (System.nanoTime() - start) / 1e9, new File(args[2]).length() / (1024.0 * 1024.0));
+			return;
+		}
+		try (LimitationIndex index = new LimitationIndex(args[1])) {
+			if (args[0].equals("get")) {
+				for (int i=2; i < args.length; i++) {
+					long start = System.nanoTime();
+					LimitationSummary sum = index.get(args[i]);
+					double ms = (System.nanoTime() - start) / 1e6;
+					if (sum == null) System.out.println(args[i] + "\tnot found");
+					else {
+						System.out.println(sum.getDocId() + "\t" + sum.getSentCount());
+						for (String sent: sum.getSents())
+							System.out.println("\t" + sent);
+					}
+					System.err.printf("(%.3f ms)%n", ms);
+				}
+			} else if (args[0].equals("search")) {
+				int limit = (args.length > 3 ? Integer.parseInt(args[3]) : 20);
+				long start = System.nanoTime();
+				List<Hit> hits = index.search(args[2], limit);
+				double ms = (System.nanoTime() - start) / 1e6;
+				for (Hit hit: hits)
+					System.out.println(hit.getDocId() + "\t" + hit.getSentence() + "\t" + hit.getText());
+				System.err.printf("%d sentences (%.3f ms)%n", hits.size(), ms);
+			} else {
+				System.err.println("Unknown command: " + args[0]);
+				System.exit(1);
+			}
+		}
+	}
+}
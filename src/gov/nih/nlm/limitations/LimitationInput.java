@@ -0,0 +1,90 @@
+package gov.nih.nlm.limitations;
+
+import java.nio.charset.StandardCharsets;
+
+import gov.nih.nlm.ling.core.Document;
+
+/**
+ * A document to be processed by a {@link LimitationProcessor}: the plain text of a preprint,
+ * the XML of a PMC article, or a document that has already been parsed.
+ *
+ * @author Halil Kilicoglu
+ *
+ */
+public class LimitationInput {
+
+	public enum Kind { TEXT, PMC_XML, DOCUMENT };
+
+	private final Kind kind;
+	private final String id;
+	private final String text;
+	private final byte[] xml;
+	private final Document document;
+
+	private LimitationInput(Kind kind, String id, String text, byte[] xml, Document document) {
+		this.kind = kind;
+		this.id = id;
+		this.text = text;
+		this.xml = xml;
+		this.document = document;
+	}
+
+	/**
+	 *
+	 * @param id	the document id
+	 * @param text	the plain text, labeled with the preprint rules
+	 * @return the input
+	 */
+	public static LimitationInput text(String id, String text) {
+		return new LimitationInput(Kind.TEXT, id, text, null, null);
+	}
+
+	/**
+	 *
+	 * @param id	the document id
+	 * @param xml	the PMC article XML
+	 * @return the input
+	 */
+	public static LimitationInput pmcXml(String id, byte[] xml) {
+		return new LimitationInput(Kind.PMC_XML, id, null, xml, null);
+	}
+
+	/**
+	 *
+	 * @param id	the document id
+	 * @param xml	the PMC article XML
+	 * @return the input
+	 */
+	public static LimitationInput pmcXml(String id, String xml) {
+		return pmcXml(id, xml.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 *
+	 * @param doc	a parsed document with sections, labeled with the PMC rules
+	 * @return the input
+	 */
+	public static LimitationInput document(Document doc) {
+		return new LimitationInput(Kind.DOCUMENT, doc.getId(), null, null, doc);
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public byte[] getXml() {
+		return xml;
+	}
+
+	public Document getDocument() {
+		return document;
+	}
+}
@@ -0,0 +1,222 @@
+package gov.nih.nlm.limitations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+import gov.nih.nlm.ling.core.Document;
+import gov.nih.nlm.ling.core.Sentence;
+
+/**
+ * Recognizes limitation sentences in documents streamed from within the same JVM, as a
+ * {@link java.util.concurrent.Flow.Processor}: it subscribes to a publisher of {@link LimitationInput}
+ * and publishes a {@link LimitationSummary} per document to its own subscribers, with no files written
+ * for plain text or parsed documents. <p>
+ *
+ * Documents are processed on <code>processorThreads</code> threads (default 1), and only that many are
+ * requested from upstream at a time; a new document is requested when a summary has been accepted downstream.
+ * Each subscriber has a buffer of <code>processorBuffer</code> summaries (default {@link Flow#defaultBufferSize()}),
+ * and processing waits while a subscriber's buffer is full, so that a slow subscriber slows the upstream down
+ * rather than summaries piling up. Summaries are published in the order that documents finish. Subscribers
+ * need to subscribe before the processor subscribes upstream. <p>
+ *
+ * A document that cannot be processed is passed to the error handler (which logs a warning by default) and is
+ * left out of the output; it does not end the stream. PMC XML is read through the same per-thread scratch file as
+ * in batch runs, since the PMC article reader only reads from files. The processing properties are those of
+ * {@link CorpusParser} and {@link PreprintParser}, over the defaults of the command-line tools.
+ *
+ * @author Halil Kilicoglu
+ *
+ */
+public class LimitationProcessor implements Flow.Processor<LimitationInput, LimitationSummary>, AutoCloseable {
+	private static Logger log = Logger.getLogger(LimitationProcessor.class.getName());
+
+	private final int parallelism;
+	private final ExecutorService workers;
+	private final SubmissionPublisher<LimitationSummary> publisher;
+	private BiConsumer<LimitationInput, Throwable> errorHandler = (in, t) ->
+		log.warning("Error processing " + in.getId() + ". Skipping... " + t);
+
+	private Flow.Subscription upstream = null;
+	private boolean started = false;
+	private volatile boolean upstreamDone = false;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicBoolean finished = new AtomicBoolean();
+
+	/**
+	 * Initializes the processing components.
+	 *
+	 * @param props	the processing properties, over the defaults
+	 *
+	 * @throws ClassNotFoundException	if the sentence segmenter class cannot be found
+	 * @throws IllegalAccessException	if the sentence segmenter cannot be accessed
+	 * @throws InstantiationException	if the sentence segmenter cannot be initializaed
+	 */
+	public LimitationProcessor(Properties props)
+			throws InstantiationException, IllegalAccessException, ClassNotFoundException {
+		Properties all = new Properties();
+		all.put("sentenceSegmenter","gov.nih.nlm.pmc.PMCSentenceSegmenter");
+		all.put("annotators","tokenize,ssplit,pos,lemma");
+		all.put("tokenize.options","invertible=true");
+		all.put("ssplit.isOneSentence","true");
+		if (props != null) all.putAll(props);
+		init(all);
+		parallelism = Math.max(1, Integer.parseInt(all.getProperty("processorThreads", "1")));
+		int buffer = Integer.parseInt(all.getProperty("processorBuffer", String.valueOf(Flow.defaultBufferSize())));
+		AtomicInteger threadNum = new AtomicInteger();
+		workers = Executors.newFixedThreadPool(parallelism, r -> {
+			Thread t = new Thread(r, "limitation-processor-" + threadNum.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		// summaries are delivered on other threads than the workers, which may be waiting for buffer space
+		publisher = new SubmissionPublisher<>(Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "limitation-delivery");
+			t.setDaemon(true);
+			return t;
+		}), buffer);
+	}
+
+	private static synchronized void init(Properties props)
+			throws InstantiationException, IllegalAccessException, ClassNotFoundException {
+		CorpusParser.init(props);
+		PreprintParser.init(props);
+	}
+
+	/**
+	 * Replaces the handler of the documents that cannot be processed.
+	 *
+	 * @param handler	receives the input and the error
+	 */
+	public void setErrorHandler(BiConsumer<LimitationInput, Throwable> handler) {
+		this.errorHandler = handler;
+	}
+
+	/**
+	 * Processes a single document on the calling thread.
+	 *
+	 * @param in	the document
+	 * @return the limitation sentences of the document
+	 * @throws Exception	if the document cannot be parsed
+	 */
+	public static LimitationSummary process(LimitationInput in) throws Exception {
+		Document doc;
+		boolean preprint = false;
+		switch (in.getKind()) {
+		case TEXT:
+			doc = PreprintParser.processText(in.getId(), in.getText());
+			if (doc == null) throw new Exception("Cannot parse " + in.getId());
+			preprint = true;
+			break;
+		case PMC_XML:
+			String articleFile = CorpusIO.toFile(new DocumentRecord(in.getId(), in.getId() + ".xml", in.getXml()));
+			doc = CorpusParser.parseArticle(in.getId(), articleFile);
+			break;
+		default:
+			doc = in.getDocument();
+		}
+		DocumentEvent.Labeling labeling = new DocumentEvent.Labeling().start(in.getId());
+		List<String> sents = new ArrayList<>();
+		if (doc.getSentences() != null) {
+			for (Sentence sent: doc.getSentences()) {
+				String lbl = (preprint ? CombinedPreprintLimitationRecognizer.label(sent) : RuleBasedLimitationSentenceRecognizer.label(sent));
+				if (lbl.equals("POS")) sents.add(sent.getText());
+			}
+		}
+		labeling.finish(doc, sents.size());
+		return new LimitationSummary(in.getId(), sents.size(), sents);
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super LimitationSummary> subscriber) {
+		publisher.subscribe(subscriber);
+		start();
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		synchronized (this) {
+			if (upstream != null) {
+				subscription.cancel();
+				return;
+			}
+			upstream = subscription;
+		}
+		start();
+	}
+
+	// documents are requested once there is somewhere to send the summaries
+	private synchronized void start() {
+		if (started || upstream == null || publisher.hasSubscribers() == false) return;
+		started = true;
+		upstream.request(parallelism);
+	}
+
+	@Override
+	public void onNext(LimitationInput item) {
+		inFlight.incrementAndGet();
+		try {
+			workers.execute(() -> run(item));
+		} catch (RuntimeException re) {
+			inFlight.decrementAndGet();
+			errorHandler.accept(item, re);
+		}
+	}
+
+	private void run(LimitationInput item) {
+		try {
+			LimitationSummary summary = process(item);
+			// blocks while a subscriber's buffer is full
+			if (publisher.isClosed() == false) publisher.submit(summary);
+		} catch (Exception | Error e) {
+			// as in DocumentSupervisor, errors such as StackOverflowError only fail the document
+			errorHandler.accept(item, e);
+		} finally {
+			if (publisher.hasSubscribers() == false) {
+				upstream.cancel();
+				upstreamDone = true;
+			} else if (upstreamDone == false) {
+				upstream.request(1);
+			}
+			if (inFlight.decrementAndGet() == 0 && upstreamDone) finish(null);
+		}
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		upstreamDone = true;
+		finish(throwable);
+	}
+
+	@Override
+	public void onComplete() {
+		upstreamDone = true;
+		if (inFlight.get() == 0) finish(null);
+	}
+
+	private void finish(Throwable throwable) {
+		if (finished.getAndSet(true)) return;
+		if (throwable == null) publisher.close();
+		else publisher.closeExceptionally(throwable);
+		workers.shutdown();
+	}
+
+	/**
+	 * Stops processing, cancels the upstream subscription and completes the subscribers.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (upstream != null && upstreamDone == false) upstream.cancel();
+		}
+		upstreamDone = true;
+		finish(null);
+	}
+}
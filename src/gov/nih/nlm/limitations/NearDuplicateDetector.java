@@ -0,0 +1,340 @@
+package gov.nih.nlm.limitations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+import gov.nih.nlm.ling.core.Document;
+import gov.nih.nlm.ling.core.Sentence;
+
+/**
+ * Finds preprints that are near-duplicates of preprints seen earlier in a run (later versions of a manuscript,
+ * cross-posted copies), so that only what changed is processed again. <p>
+ *
+ * Each document is summarized by a MinHash signature of its word <code>dedupShingleSize</code>-grams (default 5),
+ * with <code>dedupHashes</code> hash functions (default 128), and the signatures are indexed by locality-sensitive
+ * hashing in <code>dedupBands</code> bands (default 32). A document whose estimated similarity (Jaccard) to an
+ * earlier document is at least <code>dedupThreshold</code> is a near-duplicate of it; 0, the default, turns detection
+ * off. <p>
+ *
+ * Since a preprint sentence is labeled from its own paragraph (its line of text, see
+ * {@link Utils#inLimitationParagraph2(Sentence, boolean)}), the results of an earlier document are kept per paragraph,
+ * and a near-duplicate is processed for its new or changed paragraphs only. Its limitation sentences are the
+ * sentences of these paragraphs, merged in document order with those of the unchanged paragraphs. The index keeps
+ * the <code>dedupCacheDocuments</code> documents (default 5000) added or matched most recently, each with its
+ * signature (about 2 KB) and paragraph results; older documents are removed from the index with their bands, so
+ * that memory does not grow with the corpus.
+ *
+ * @author Halil Kilicoglu
+ *
+ */
+public class NearDuplicateDetector {
+	private static Logger log = Logger.getLogger(NearDuplicateDetector.class.getName());
+
+	private static double threshold = 0;
+	private static int shingleSize = 5;
+	private static int numHashes = 128;
+	private static int bands = 32;
+	private static int cacheDocuments = 5000;
+
+	private final long[] seeds;
+	private final int rows;
+	private int next = 0;
+	private Map<Integer,IndexedDocument> entries = new HashMap<>();
+	private Map<Long,List<Integer>> buckets = new HashMap<>();
+	private LinkedHashMap<Integer,IndexedDocument> recent;
+
+	private int documents = 0;
+	private int duplicates = 0;
+	private long paragraphsReused = 0;
+	private long paragraphsProcessed = 0;
+	private long charsTotal = 0;
+	private long charsProcessed = 0;
+
+	/**
+	 * Sets the near-duplicate detection options from properties.
+	 *
+	 * @param props	the properties
+	 */
+	public static void init(Properties props) {
+		threshold = Double.parseDouble(props.getProperty("dedupThreshold", "0"));
+		shingleSize = Integer.parseInt(props.getProperty("dedupShingleSize", "5"));
+		numHashes = Integer.parseInt(props.getProperty("dedupHashes", "128"));
+		bands = Integer.parseInt(props.getProperty("dedupBands", "32"));
+		cacheDocuments = Integer.parseInt(props.getProperty("dedupCacheDocuments", "5000"));
+		if (numHashes % bands != 0)
+			throw new IllegalArgumentException("dedupHashes (" + numHashes + ") needs to be a multiple of dedupBands (" + bands + ").");
+	}
+
+	public static boolean isEnabled() {
+		return threshold > 0;
+	}
+
+	public NearDuplicateDetector() {
+		Random random = new Random(42);
+		seeds = new long[numHashes];
+		for (int i=0; i < numHashes; i++)
+			seeds[i] = random.nextLong();
+		rows = numHashes / bands;
+		recent = new LinkedHashMap<Integer,IndexedDocument>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			protected boolean removeEldestEntry(Map.Entry<Integer,IndexedDocument> eldest) {
+				if (size() <= cacheDocuments) return false;
+				evict(eldest.getKey(), eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * An earlier document in the index.
+	 */
+	private static class IndexedDocument {
+		private final String id;
+		private final int[] signature;
+		private final Map<Long,List<String>> results;
+
+		private IndexedDocument(String id, int[] signature, Map<Long,List<String>> results) {
+			this.id = id;
+			this.signature = signature;
+			this.results = results;
+		}
+	}
+
+	/**
+	 * The part of a document that needs processing, given the most similar earlier document.
+	 */
+	public class Match {
+		private final String id;
+		private final String[] paragraphs;
+		private final long[] hashes;
+		private final int[] signature;
+		private final String original;
+		private final double similarity;
+		private final Map<Long,List<String>> reused;
+		private final List<Integer> changed = new ArrayList<>();
+		private final String changedText;
+
+		private Match(String id, String text, String[] paragraphs, int[] signature, int original, double similarity) {
+			this.id = id;
+			this.paragraphs = paragraphs;
+			this.signature = signature;
+			IndexedDocument entry = (original < 0 ? null : recent.get(original));
+			this.original = (entry == null ? null : entry.id);
+			this.similarity = similarity;
+			this.reused = (entry == null ? Collections.emptyMap() : entry.results);
+			hashes = new long[paragraphs.length];
+			for (int i=0; i < paragraphs.length; i++)
+				hashes[i] = hash(paragraphs[i]);
+			if (this.original == null) {
+				for (int i=0; i < paragraphs.length; i++)
+					changed.add(i);
+				changedText = text;
+				return;
+			}
+			// changed paragraphs keep their line ends, so that each one is still a paragraph of its own
+			StringBuilder buf = new StringBuilder();
+			for (int i=0; i < paragraphs.length; i++) {
+				if (reused.containsKey(hashes[i])) continue;
+				changed.add(i);
+				buf.append(paragraphs[i]);
+				if (i < paragraphs.length - 1) buf.append('\n');
+			}
+			changedText = buf.toString();
+		}
+
+		/**
+		 *
+		 * @return the earlier document that this document is a near-duplicate of, or null
+		 */
+		public String getOriginal() {
+			return original;
+		}
+
+		/**
+		 *
+		 * @return the text to process: the whole text, or the changed paragraphs of a near-duplicate
+		 */
+		public String getText() {
+			return changedText;
+		}
+
+		/**
+		 * Merges the limitation sentences of the processed and the unchanged paragraphs, and keeps the
+		 * paragraph results for later documents.
+		 *
+		 * @param doc			the processed text, or null if there was nothing to process
+		 * @param positive		whether a sentence of the processed text is a limitation sentence
+		 * @return the limitation sentences of the document, in document order
+		 */
+		public List<String> complete(Document doc, Predicate<Sentence> positive) {
+			Map<Long,List<String>> results = new HashMap<>(reused);
+			List<List<String>> changedSentences = new ArrayList<>();
+			for (int i=0; i < changed.size(); i++)
+				changedSentences.add(new ArrayList<>());
+			if (doc != null && doc.getSentences() != null) {
+				String text = doc.getText();
+				List<Integer> lineStarts = new ArrayList<>();
+				lineStarts.add(0);
+				for (int i=text.indexOf('\n'); i >= 0; i=text.indexOf('\n', i+1))
+					lineStarts.add(i+1);
+				for (Sentence sent: doc.getSentences()) {
+					if (positive.test(sent) == false) continue;
+					int line = Collections.binarySearch(lineStarts, sent.getSpan().getBegin());
+					if (line < 0) line = -line - 2;
+					changedSentences.get(Math.min(line, changed.size()-1)).add(sent.getText());
+				}
+			}
+			for (int i=0; i < changed.size(); i++) {
+				List<String> sents = changedSentences.get(i);
+				results.put(hashes[changed.get(i)], sents.isEmpty() ? Collections.emptyList() : sents);
+			}
+			List<String> positives = new ArrayList<>();
+			for (int i=0; i < paragraphs.length; i++)
+				positives.addAll(results.get(hashes[i]));
+
+			documents++;
+			paragraphsReused += paragraphs.length - changed.size();
+			paragraphsProcessed += changed.size();
+			charsProcessed += changedText.length();
+			if (original != null) {
+				duplicates++;
+				DocumentLog.event(log, "duplicate", "id", id, "of", original, "similarity", String.format("%.3f", similarity),
+						"reusedParagraphs", paragraphs.length - changed.size(), "processedParagraphs", changed.size());
+			}
+			if (signature != null) add(id, signature, results);
+			return positives;
+		}
+	}
+
+	/**
+	 * Finds the earlier document most similar to a document, if it is a near-duplicate.
+	 *
+	 * @param id	the document id
+	 * @param text	the document text
+	 * @return the part of the document to process
+	 */
+	public Match match(String id, String text) {
+		charsTotal += text.length();
+		String[] paragraphs = text.split("\n", -1);
+		int[] signature = signature(text);
+		if (signature == null) return new Match(id, text, paragraphs, null, -1, 0);
+		int best = -1;
+		double bestSimilarity = 0;
+		for (int b=0; b < bands; b++) {
+			List<Integer> candidates = buckets.get(bandKey(signature, b));
+			if (candidates == null) continue;
+			for (int candidate: candidates) {
+				if (candidate == best) continue;
+				double similarity = similarity(signature, entries.get(candidate).signature);
+				if (similarity >= threshold && similarity > bestSimilarity) {
+					best = candidate;
+					bestSimilarity = similarity;
+				}
+			}
+		}
+		return new Match(id, text, paragraphs, signature, best, bestSimilarity);
+	}
+
+	private void add(String id, int[] signature, Map<Long,List<String>> results) {
+		int index = next++;
+		IndexedDocument entry = new IndexedDocument(id, signature, results);
+		entries.put(index, entry);
+		for (int b=0; b < bands; b++)
+			buckets.computeIfAbsent(bandKey(signature, b), k -> new ArrayList<>(1)).add(index);
+		recent.put(index, entry);
+	}
+
+	// removes a document that has not been used recently from the index
+	private void evict(int index, IndexedDocument entry) {
+		entries.remove(index);
+		for (int b=0; b < bands; b++) {
+			long key = bandKey(entry.signature, b);
+			List<Integer> bucket = buckets.get(key);
+			if (bucket == null) continue;
+			bucket.remove(Integer.valueOf(index));
+			if (bucket.isEmpty()) buckets.remove(key);
+		}
+	}
+
+	private int[] signature(String text) {
+		List<Long> words = new ArrayList<>();
+		long h = FNV_OFFSET;
+		boolean inWord = false;
+		for (int i=0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (Character.isLetterOrDigit(c)) {
+				h = (h ^ Character.toLowerCase(c)) * FNV_PRIME;
+				inWord = true;
+			} else if (inWord) {
+				words.add(h);
+				h = FNV_OFFSET;
+				inWord = false;
+			}
+		}
+		if (inWord) words.add(h);
+		if (words.isEmpty()) return null;
+		int[] signature = new int[numHashes];
+		Arrays.fill(signature, Integer.MAX_VALUE);
+		int n = Math.max(1, words.size() - shingleSize + 1);
+		for (int i=0; i < n; i++) {
+			long shingle = 0;
+			for (int j=i; j < Math.min(words.size(), i + shingleSize); j++)
+				shingle = shingle * 0x9E3779B97F4A7C15L + words.get(j);
+			for (int k=0; k < numHashes; k++) {
+				int v = (int)(mix(shingle ^ seeds[k]) >>> 33);
+				if (v < signature[k]) signature[k] = v;
+			}
+		}
+		return signature;
+	}
+
+	private long bandKey(int[] signature, int band) {
+		long key = band;
+		for (int r=band * rows; r < (band + 1) * rows; r++)
+			key = mix(key * 31 + signature[r]);
+		return key;
+	}
+
+	private static double similarity(int[] s1, int[] s2) {
+		int same = 0;
+		for (int i=0; i < s1.length; i++)
+			if (s1[i] == s2[i]) same++;
+		return (double)same / s1.length;
+	}
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private static long hash(String s) {
+		long h = FNV_OFFSET;
+		for (int i=0; i < s.length(); i++)
+			h = (h ^ s.charAt(i)) * FNV_PRIME;
+		return h;
+	}
+
+	// the splitmix64 finalizer
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 *
+	 * @return a summary of the near-duplicates found and of the processing they saved
+	 */
+	public String report() {
+		return String.format("Near-duplicates: %d of %d documents, %d of %d paragraphs reused, %.1f%% of the text not processed",
+				duplicates, documents, paragraphsReused, paragraphsReused + paragraphsProcessed,
+				(charsTotal == 0 ? 0.0 : 100.0 * (charsTotal - charsProcessed) / charsTotal));
+	}
+}
@@ -7,6 +7,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.logging.Logger;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -15,7 +16,6 @@ import gov.nih.nlm.ling.core.Document;
 import gov.nih.nlm.ling.core.Sentence;
 import gov.nih.nlm.ling.io.XMLReader;
 import gov.nih.nlm.ling.sem.SemanticItem;
-import gov.nih.nlm.ling.sem.SemanticItemFactory;
 import gov.nih.nlm.ling.util.FileUtils;
 
 
@@ -47,7 +47,7 @@ public class PreprintLimitationRecognizer {
 		Document doc = sent.getDocument();
 //		if (Utils.inLimitationParagraph(sent,false)) { // More strict version 
 		if (Utils.inLimitationParagraph2(sent,false)) {			// Looser version
-			log.fine("In limitation paragraph:" + doc.getId() + "|" + sent.getId() + "|" +  sent.getText());
+			log.fine(() -> "In limitation paragraph:" + doc.getId() + "|" + sent.getId() + "|" +  sent.getText());
 			return "POS";
 		}
 		else {
@@ -57,27 +57,30 @@ public class PreprintLimitationRecognizer {
 
 	private static void processSingleArticle(String inFile,String outFile) throws Exception {
 		Document doc = null;
-		doc = xmlReader.load(inFile, true, SemanticItemFactory.class,annTypes, null);			
+		doc = CorpusIO.loadDocument(xmlReader, inFile, annTypes);			
+		DocumentEvent.Labeling labeling = new DocumentEvent.Labeling().start(doc.getId());
 		for (Sentence sent: doc.getSentences()) {
 			labelSentence(sent);
 		}
+		labeling.finish(doc, posSentences.containsKey(doc.getId()) ? posSentences.get(doc.getId()).size() : 0);
 	}
 
 	private static void processDir(String dir, String out) throws Exception {
-		List<String> files = FileUtils.listFiles(dir, false, "xml");
 		int fileNum = 0;
-		for (String filename: files) {
-			if (new File(filename).length() == 0) continue;
-			String filenameNoExt = filename.replace(".xml", "");
-			filenameNoExt = filenameNoExt.substring(filenameNoExt.lastIndexOf(File.separator)+1);
-			log.info("Processing " + filenameNoExt + ":" + ++fileNum);
-			processSingleArticle(filename,out);
-		}	
+		List<String> ids = new ArrayList<>();
+		try (DocumentSource source = CorpusIO.openSource(dir, "xml")) {
+			while (source.hasNext()) {
+				DocumentRecord rec = source.next();
+				ids.add(rec.getId());
+				if (rec.length() == 0) continue;
+				String filenameNoExt = rec.getId();
+				log.info("Processing " + filenameNoExt + ":" + ++fileNum);
+				processSingleArticle(CorpusIO.toFile(rec),out);
+			}
+		}
 		List<LimitationSummary> sums = new ArrayList<>();
 		int posCount = 0;
-		for (String filename: files) {
-			String filenameNoExt = filename.replace(".xml", "");
-			String notei = filenameNoExt.substring(filenameNoExt.lastIndexOf("/")+1);
+		for (String notei: ids) {
 			if (posSentences.containsKey(notei)) {
 				List<String> sents = posSentences.get(notei);
 				LimitationSummary sum = new LimitationSummary(notei.replace(".tei", "").replace("_","/"),sents.size(),sents);
@@ -90,17 +93,27 @@ public class PreprintLimitationRecognizer {
 		
 		ObjectMapper mapper = new ObjectMapper();
 		mapper.writerWithDefaultPrettyPrinter().writeValue(Paths.get(out).toFile(), sums);
+		if (LimitationIndex.isEnabled()) LimitationIndex.write(sums, out + ".idx");
 		System.out.println("ARTICLES WITH LIMITATIONS: " + posCount);
 	}
 
 
 
+	/**
+	 * Sets the output options from properties: with <code>resultIndex=true</code>, a {@link LimitationIndex}
+	 * of the output is also written (<code>outFile.idx</code>).
+	 * 
+	 * @param props	the properties
+	 */
+	public static void init(Properties props) {
+		LimitationIndex.init(props);
+	}
 
 	public static void main(String[] args) 
 			throws IOException, InstantiationException, 
 			IllegalAccessException, ClassNotFoundException, Exception {
 		if (args.length < 2) {
-			System.err.print("Usage: inputDirectory outFile");
+			System.err.print("Usage: inputDirectory outFile [propertiesFile]");
 		}
 
 		String in = args[0];
@@ -111,6 +124,9 @@ public class PreprintLimitationRecognizer {
 			System.exit(1);
 		}
 
+		Properties props = new Properties();
+		if (args.length > 2) props.putAll(FileUtils.loadPropertiesFromFile(args[2]));
+		init(props);
 		annTypes = Utils.getAnnotationTypes();
 		xmlReader = Utils.getXMLReader();
 		processDir(in,out);
@@ -1,7 +1,6 @@
 package gov.nih.nlm.limitations;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
@@ -16,10 +15,10 @@ import gov.nih.nlm.ling.process.ComponentLoader;
 import gov.nih.nlm.ling.process.SentenceSegmenter;
 import gov.nih.nlm.ling.util.FileUtils;
 import gov.nih.nlm.ling.wrappers.CoreNLPWrapper;
-import nu.xom.Element;
-import nu.xom.Serializer;
 
 /**
+ * Parses preprints into XML. The preprints are plain text, or GROBID TEI XML with <code>preprintFormat=tei</code>,
+ * in which case the sections read by {@link TeiReader} are kept in the parsed XML.
  * 
  * @author Halil Kilicoglu
  *
@@ -28,94 +27,127 @@ public class PreprintParser {
 	private static Logger log = Logger.getLogger(PreprintParser.class.getName());	
 
 	private static SentenceSegmenter segmenter = null;
+	private static String outputExtension = ".xml";
+	private static boolean teiInput = false;
 
 
-	private static String stripNonValidXML(String in) {
-	    StringBuffer out = new StringBuffer(); // Used to hold the output.
-	    char current; // Used to reference the current character.
-
-	    if (in == null || ("".equals(in))) return ""; // vacancy test.
-	    for (int i = 0; i < in.length(); i++) {
-	        current = in.charAt(i); // NOTE: No IndexOutOfBoundsException caught here; it should not happen.
-	        if ((current == 0x9) ||
-	            (current == 0xA) ||
-	            (current == 0xD) ||
-	            ((current >= 0x20) && (current <= 0xD7FF)) ||
-	            ((current >= 0xE000) && (current <= 0xFFFD)) ||
-	            ((current >= 0x10000) && (current <= 0x10FFFF)))
-	            out.append(current);
-	    }
-	    return out.toString();
-	} 
-	
-	private static Document parseArticle(String id, String filename) throws Exception {
-		String allText = stripNonValidXML(FileUtils.stringFromFile(filename, "UTF-8"));
-		Document doc = new Document(id, allText);
-		log.info("Full-text: " + allText);
+	private static Document parseArticle(String id, String text) throws Exception {
+		return parseDocument(new Document(id, TextDecoder.sanitize(text)));
+	}
+
+	private static Document parseDocument(Document doc) throws Exception {
+		long start = System.nanoTime();
+		String id = doc.getId();
+		String allText = doc.getText();
+		DocumentLog.text(log, id, "Full-text", () -> allText);
 
 		List<Sentence> sentences = new ArrayList<>();
 
+		DocumentEvent segmentation = new DocumentEvent.Segmentation().start(id);
 		segmenter.segment(doc.getText(), sentences);
+		segmentation.finish(doc.getText().length(), sentences.size(), null);
+		DocumentEvent annotation = new DocumentEvent.Annotation().start(id);
+		SentenceAnnotator.annotate(sentences);
+		annotation.finish(doc.getText().length(), sentences.size(), null);
 		for (Sentence sentence: sentences) {
-			CoreNLPWrapper.coreNLP(sentence);
 			doc.addSentence(sentence);
 			sentence.setDocument(doc);
 		}
-
+		DocumentLog.event(log, "parsed", "id", id, "chars", allText.length(), "sentences", sentences.size(),
+				"ms", DocumentLog.millisSince(start));
 		return doc;
 	}
 
-	public static Element processSingleFile(String id, String articleFile) throws IOException {
+	public static Document processSingleFile(String id, String articleFile) throws IOException {
+		return processText(id, new DocumentRecord(id, articleFile).getText());
+	}
+
+	/**
+	 * Parses a GROBID TEI document, keeping its sections.
+	 * 
+	 * @param rec	the TEI file or content
+	 * @return the parsed document, or null if it cannot be parsed
+	 */
+	public static Document processTei(DocumentRecord rec) {
 		Document articleDoc = null;
-		Element articleXml = null;
 		try {
-			articleDoc = parseArticle(id,articleFile);
-			articleXml = articleDoc.toXml();
+			articleDoc = parseDocument(TeiReader.read(rec));
+		} catch (Exception e) {
+			log.severe("Cannot parse " + rec.getId());
+			e.printStackTrace();
+		}
+		return articleDoc;
+	}
+
+	public static Document processText(String id, String text) {
+		Document articleDoc = null;
+		try {
+			articleDoc = parseArticle(id,text);
 		} catch (Exception e) {
 			log.severe("Cannot parse " + id);
 			e.printStackTrace();
 		}
-		return articleXml;
+		return articleDoc;
 	}
 
 
-	public static void processDirectory(String article, String out) throws IOException {
-		File articleDir = new File(article);
-		if (articleDir.isDirectory() == false) return;
+	/**
+	 * 
+	 * @param article	the input corpus: a directory, a tar/zip archive or a JSON Lines file of plain text
+	 * @param out		the output directory
+	 * @throws IOException	if there is a problem with file reading/writing
+	 */
+	public static void processDirectory(String article, String out) throws IOException, InterruptedException {
+		if (CorpusIO.isSource(article) == false) return;
 		File outDir = new File(out);
 		if (outDir.isDirectory() == false) return;
 		int fileNum = 0;
-		List<String> files = FileUtils.listFiles(article,false, "txt");
-
-		for (String filename: files) {
-//			if (new File(filename).length() == 0) continue;
-			String id = filename.substring(filename.lastIndexOf(File.separator)+1).replace(".txt", "");
-			log.log(Level.INFO,"Processing {0}: {1}.", new Object[]{id,++fileNum});
-			String outFilename = outDir.getAbsolutePath() + File.separator + id + ".xml";
-//			if (filename.contains("2020.04.13.20063792")) continue;
-			if (new File(outFilename).exists()) continue;
-			if (new File(filename).length() == 0) {
-				PrintWriter pw = new PrintWriter(outFilename);
-				pw.flush(); pw.close();
-				continue;
-			}
-			PrintWriter pw = new PrintWriter(outFilename);
-			try {
-				Element docEl = processSingleFile(id, filename);
-				nu.xom.Document xmlDoc = new nu.xom.Document(docEl);
-				Serializer serializer = new Serializer(new FileOutputStream(outFilename));
-				serializer.setIndent(4);
-				serializer.write(xmlDoc); 
-			} catch (Exception e) {
-				log.warning("Error processing file. Skipping... " + id);
+		CorpusIO.initOutputDirectory(outDir.getAbsolutePath());
+
+		try (DocumentSource source = CorpusIO.openSource(article, teiInput ? "xml" : "txt");
+				DocumentSupervisor supervisor = new DocumentSupervisor(outDir.getAbsolutePath() + File.separator + "quarantine.tsv");
+				DocumentScheduler scheduler = new DocumentScheduler()) {
+			while (source.hasNext()) {
+				DocumentRecord rec = source.next();
+				String id = rec.getId();
+				if (supervisor.isQuarantined(id)) {
+					log.log(Level.INFO,"Skipping quarantined document {0}.", new Object[]{id});
+					continue;
+				}
+				log.log(Level.INFO,"Processing {0}: {1}.", new Object[]{id,++fileNum});
+				String outFilename = CorpusIO.outputFile(outDir.getAbsolutePath(), id, outputExtension);
+//				if (filename.contains("2020.04.13.20063792")) continue;
+				if (new File(outFilename).exists()) continue;
+				if (rec.length() == 0) {
+					PrintWriter pw = new PrintWriter(outFilename);
+					pw.flush(); pw.close();
+					continue;
+				}
+				scheduler.submit(rec, r -> {
+					try {
+						Document doc;
+						if (teiInput) doc = supervisor.run(id, () -> processTei(r));
+						else {
+							String text = r.getText();
+							doc = supervisor.run(id, () -> processText(id, text));
+						}
+						if (doc != null) StreamingXmlWriter.write(doc, outFilename);
+					} catch (Exception e) {
+						log.warning("Error processing file. Skipping... " + id);
+					}
+				});
 			}
-			pw.flush();
-			pw.close();
 		}
+		if (SentenceAnnotator.hasReport())
+			System.out.println(SentenceAnnotator.report());
+		SentenceAnnotator.saveCache();
 	}
 
 	/**
-	 * Initializes CoreNLP and the sentence segmenter from properties.
+	 * Initializes CoreNLP and the sentence segmenter from properties. The <code>preprintFormat</code> property 
+	 * (<code>txt</code>, the default, or <code>tei</code>) gives the input format. The <code>outputCompression</code>
+	 * property (<code>gzip</code>, <code>deflate</code> or <code>none</code>) determines whether the 
+	 * parsed XML is compressed.
 	 * 
 	 * @param props	the properties to use for initialization
 	 * 
@@ -126,19 +158,27 @@ public class PreprintParser {
 	public static void init(Properties props) 
 			throws InstantiationException, IllegalAccessException, ClassNotFoundException {
 		CoreNLPWrapper.getInstance(props);
+		SentenceAnnotator.init(props);
 		segmenter = ComponentLoader.getSentenceSegmenter(props);
+		CorpusIO.init(props);
+		StreamingXmlWriter.init(props);
+		DocumentSupervisor.init(props);
+		DocumentLog.init(props);
+		DocumentScheduler.init(props);
+		WorkerController.init(props);
+		outputExtension = ".xml" + CorpusIO.compressionExtension(props.getProperty("outputCompression"));
+		teiInput = props.getProperty("preprintFormat", "txt").equals("tei");
 	}
 
 	public static void main(String[] args) 
 			throws  Exception {
 		if (args.length < 2) {
-			System.err.print("Usage: articleDirectory outputDirectory");
+			System.err.print("Usage: articleDirectory|archive|jsonl outputDirectory [propertiesFile]");
 		}
 		String articleIn = args[0];
 		String out = args[1];
-		File articleDir = new File(articleIn);
-		if (articleDir.isDirectory() == false) {
-			System.err.println("First argument is required to be an input directory:" + articleIn);
+		if (CorpusIO.isSource(articleIn) == false) {
+			System.err.println("First argument is required to be an input directory, archive or JSON Lines file:" + articleIn);
 			System.exit(1);
 		}
 		File outDir = new File(out);
@@ -153,6 +193,7 @@ public class PreprintParser {
 		props.put("annotators","tokenize,ssplit,pos,lemma");	
 		props.put("tokenize.options","invertible=true");
 		props.put("ssplit.isOneSentence","true");
+		if (args.length > 2) props.putAll(FileUtils.loadPropertiesFromFile(args[2]));
 		init(props);
 		processDirectory(articleIn,out);
 	}
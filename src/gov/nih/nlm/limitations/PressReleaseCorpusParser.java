@@ -0,0 +1,142 @@
+package gov.nih.nlm.limitations;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import gov.nih.nlm.ling.core.Document;
+import gov.nih.nlm.ling.core.Sentence;
+import gov.nih.nlm.ling.process.ComponentLoader;
+import gov.nih.nlm.ling.process.SentenceSegmenter;
+import gov.nih.nlm.ling.util.FileUtils;
+import gov.nih.nlm.ling.wrappers.CoreNLPWrapper;
+
+/**
+ * 
+ * @author Halil Kilicoglu
+ *
+ */
+public class PressReleaseCorpusParser {
+	private static Logger log = Logger.getLogger(PressReleaseCorpusParser.class.getName());	
+
+	private static SentenceSegmenter segmenter = null;
+
+
+	private static Document parseArticle(String id, String filename) throws Exception {
+		long start = System.nanoTime();
+		String allText = new DocumentRecord(id, filename).getText();
+		Document doc = new Document(id, allText);
+		DocumentLog.text(log, id, "Full-text", () -> allText);
+
+		List<Sentence> sentences = new ArrayList<>();
+
+		DocumentEvent segmentation = new DocumentEvent.Segmentation().start(id);
+		segmenter.segment(doc.getText(), sentences);
+		segmentation.finish(allText.length(), sentences.size(), null);
+		DocumentEvent annotation = new DocumentEvent.Annotation().start(id);
+		for (Sentence sentence: sentences) {
+			CoreNLPWrapper.coreNLP(sentence);
+			doc.addSentence(sentence);
+			sentence.setDocument(doc);
+		}
+		annotation.finish(allText.length(), sentences.size(), null);
+		DocumentLog.event(log, "parsed", "id", id, "chars", allText.length(), "sentences", sentences.size(),
+				"ms", DocumentLog.millisSince(start));
+		return doc;
+	}
+
+	public static Document processSingleFile(String id, String articleFile) throws IOException {
+		Document articleDoc = null;
+		try {
+			articleDoc = parseArticle(id,articleFile);
+		} catch (Exception e) {
+			log.severe("Cannot parse " + id);
+			e.printStackTrace();
+		}
+		return articleDoc;
+	}
+
+
+	public static void processDirectory(String article, String out) throws IOException, InterruptedException {
+		File articleDir = new File(article);
+		if (articleDir.isDirectory() == false) return;
+		File outDir = new File(out);
+		if (outDir.isDirectory() == false) return;
+		int fileNum = 0;
+		List<String> files = FileUtils.listFiles(article,false, "txt");
+
+		try (DocumentSupervisor supervisor = new DocumentSupervisor(outDir.getAbsolutePath() + File.separator + "quarantine.tsv");
+				DocumentScheduler scheduler = new DocumentScheduler()) {
+			for (String filename: files) {
+				String id = filename.substring(filename.lastIndexOf(File.separator)+1).replace(".txt", "");
+				if (supervisor.isQuarantined(id)) {
+					log.log(Level.INFO,"Skipping quarantined document {0}.", new Object[]{id});
+					continue;
+				}
+				log.log(Level.INFO,"Processing {0}: {1}.", new Object[]{id,++fileNum});
+				String outFilename = outDir.getAbsolutePath() + File.separator + id + ".xml";
+				scheduler.submit(new DocumentRecord(id, filename), r -> {
+					try {
+						Document doc = supervisor.run(id, () -> processSingleFile(id, filename));
+						if (doc != null) StreamingXmlWriter.write(doc, outFilename);
+					} catch (Exception e) {
+						log.warning("Error processing file. Skipping... " + id);
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * Initializes CoreNLP and the sentence segmenter from properties.
+	 * 
+	 * @param props	the properties to use for initialization
+	 * 
+	 * @throws ClassNotFoundException	if the sentence segmenter class cannot be found
+	 * @throws IllegalAccessException	if the sentence segmenter cannot be accessed
+	 * @throws InstantiationException	if the sentence segmenter cannot be initializaed
+	 */
+	public static void init(Properties props) 
+			throws InstantiationException, IllegalAccessException, ClassNotFoundException {
+		CoreNLPWrapper.getInstance(props);
+		segmenter = ComponentLoader.getSentenceSegmenter(props);
+		DocumentSupervisor.init(props);
+		DocumentLog.init(props);
+		DocumentScheduler.init(props);
+		WorkerController.init(props);
+		StreamingXmlWriter.init(props);
+	}
+
+	public static void main(String[] args) 
+			throws  Exception {
+		if (args.length < 2) {
+			System.err.print("Usage: articleDirectory outputDirectory [propertiesFile]");
+		}
+		String articleIn = args[0];
+		String out = args[1];
+		File articleDir = new File(articleIn);
+		if (articleDir.isDirectory() == false) {
+			System.err.println("First argument is required to be an input directory:" + articleIn);
+			System.exit(1);
+		}
+		File outDir = new File(out);
+		if (outDir.isDirectory() == false) {
+			System.err.println("The directory " + outDir + " doesn't exist. Creating a new directory..");
+			outDir.mkdir();
+		}
+		// add processing properties
+		Properties props = new Properties();
+		props.put("sentenceSegmenter","gov.nih.nlm.pmc.PMCSentenceSegmenter");
+		//		props.put("sentenceSegmenter","gov.nih.nlm.ling.process.StanfordCoreNLPSentenceSegmenter");
+		props.put("annotators","tokenize,ssplit,pos,lemma,parse");	
+		props.put("tokenize.options","invertible=true");
+		props.put("ssplit.isOneSentence","true");
+		if (args.length > 2) props.putAll(FileUtils.loadPropertiesFromFile(args[2]));
+		init(props);
+		processDirectory(articleIn,out);
+	}
+}
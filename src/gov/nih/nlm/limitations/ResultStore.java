@@ -0,0 +1,490 @@
+package gov.nih.nlm.limitations;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * A store of recognizer results that grows by runs: the results of each run are added as an immutable
+ * segment (a {@link LimitationIndex} file), and a document found in several segments is read from the
+ * latest. The segments are listed, oldest first, in a manifest file, which is replaced atomically when a
+ * segment is added or segments are merged, so readers always see a complete set of segments. A reader takes
+ * a {@link View} of the segments listed at the time and keeps reading them until it is closed. <p>
+ *
+ * Each document is stored with a version; the recognizers use a fingerprint of the input content (its length
+ * and CRC32C checksum), so that a later run over the same input, or a daily delta that includes it again,
+ * processes only the documents that are new or whose content changed. With the <code>resultStore</code>
+ * property set to a directory, <code>CombinedPreprintLimitationRecognizer</code> and
+ * <code>CombinedPMCLimitationRecognizer</code> skip the documents that are in the store with the same
+ * fingerprint, write only the other documents to their output, and add the ones that were processed to the store
+ * as a segment (a document that fails or is quarantined is left out, so its earlier result stays the latest). <p>
+ *
+ * Adding a segment starts a compaction in the background, which merges the newest run of consecutive small
+ * segments (smaller than <code>storeSmallSegment</code> megabytes, default 64) into one when there are at
+ * least <code>storeMergeSegments</code> of them (default 4), keeping the latest version of each document. Segments
+ * that are no longer listed are deleted; views that are open keep reading them (on file systems that allow
+ * deleting open files). Adding and merging segments take a lock on the store directory, so several
+ * programs can write to the same store. <p>
+ *
+ * The <code>main</code> method adds JSON output to a store (<code>add</code>), looks up documents
+ * (<code>get</code>), searches sentences (<code>search</code>), lists the segments (<code>list</code>) and
+ * merges segments (<code>compact</code>, or <code>compact all</code> to merge all segments into one).
+ *
+ * @author Halil Kilicoglu
+ *
+ */
+public class ResultStore implements AutoCloseable {
+	private static Logger log = Logger.getLogger(ResultStore.class.getName());
+
+	private static final String MANIFEST = "MANIFEST";
+	private static final String LOCK = "LOCK";
+	private static final String SEGMENT_PREFIX = "seg-";
+	private static final String SEGMENT_SUFFIX = ".idx";
+	// writers in the same JVM are serialized here, file locks are held per JVM
+	private static final Object writeLock = new Object();
+
+	private static String storeDir = null;
+	private static long smallSegment = 64L << 20;
+	private static int mergeSegments = 4;
+
+	private final Path dir;
+	private final ExecutorService compactor;
+
+	/**
+	 * Sets the store options from properties.
+	 *
+	 * @param props	the properties
+	 */
+	public static void init(Properties props) {
+		storeDir = props.getProperty("resultStore");
+		smallSegment = (long)(Double.parseDouble(props.getProperty("storeSmallSegment", "64")) * (1 << 20));
+		mergeSegments = Math.max(2, Integer.parseInt(props.getProperty("storeMergeSegments", "4")));
+	}
+
+	/**
+	 * Opens the store given in the <code>resultStore</code> property.
+	 *
+	 * @return the store, or null if no store is configured
+	 * @throws IOException	if the store cannot be opened
+	 */
+	public static ResultStore configured() throws IOException {
+		return (storeDir == null ? null : new ResultStore(storeDir));
+	}
+
+	/**
+	 * Opens a store, creating its directory if needed.
+	 *
+	 * @param directory	the store directory
+	 * @throws IOException	if the directory cannot be created
+	 */
+	public ResultStore(String directory) throws IOException {
+		dir = Paths.get(directory);
+		Files.createDirectories(dir);
+		compactor = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "result-store-compaction");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * The segments listed in the manifest, oldest first, and the number of the next segment.
+	 */
+	private static class Manifest {
+		private long next = 1;
+		private final List<String> segments = new ArrayList<>();
+	}
+
+	private Manifest readManifest() throws IOException {
+		Manifest manifest = new Manifest();
+		Path file = dir.resolve(MANIFEST);
+		if (Files.exists(file) == false) return manifest;
+		for (String line: Files.readAllLines(file, StandardCharsets.UTF_8)) {
+			if (line.startsWith("next=")) manifest.next = Long.parseLong(line.substring(5));
+			else if (line.startsWith("segment=")) manifest.segments.add(line.substring(8));
+		}
+		return manifest;
+	}
+
+	private void writeManifest(Manifest manifest) throws IOException {
+		StringBuilder buf = new StringBuilder();
+		buf.append("next=").append(manifest.next).append('\n');
+		for (String segment: manifest.segments)
+			buf.append("segment=").append(segment).append('\n');
+		Path tmp = dir.resolve(MANIFEST + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			channel.write(StandardCharsets.UTF_8.encode(buf.toString()));
+			channel.force(true);
+		}
+		Files.move(tmp, dir.resolve(MANIFEST), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static String segmentName(long number) {
+		return String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * Writes to the store under the store lock.
+	 */
+	private interface Update {
+		void run(Manifest manifest) throws IOException;
+	}
+
+	private void update(Update update) throws IOException {
+		synchronized (writeLock) {
+			try (FileChannel channel = FileChannel.open(dir.resolve(LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+				FileLock lock = channel.lock();
+				try {
+					update.run(readManifest());
+				} finally {
+					lock.release();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a segment with the next number.
+	 */
+	private interface SegmentWriter {
+		void write(LimitationIndex.Writer writer) throws IOException;
+	}
+
+	private String writeSegment(Manifest manifest, SegmentWriter content) throws IOException {
+		String name = segmentName(manifest.next++);
+		Path file = dir.resolve(name);
+		try (LimitationIndex.Writer writer = new LimitationIndex.Writer(file.toString())) {
+			content.write(writer);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(file);
+			throw e;
+		}
+		return name;
+	}
+
+	/**
+	 * Adds the results of a run as a new segment. Only the documents with a version are added: a document that
+	 * was not processed (it failed, timed out or is quarantined) has no result to store, and its earlier result,
+	 * if any, stays the latest one. Since it is not stored with its current version, a failed document is
+	 * processed again in the next run.
+	 *
+	 * @param sums		the summaries of the documents
+	 * @param versions	the versions of the documents that were processed, by id
+	 * @throws IOException	if the segment cannot be written
+	 */
+	public void add(List<LimitationSummary> sums, Map<String,Long> versions) throws IOException {
+		List<LimitationSummary> processed = new ArrayList<>();
+		for (LimitationSummary sum: sums)
+			if (versions.containsKey(sum.getDocId())) processed.add(sum);
+		if (processed.size() < sums.size())
+			log.info((sums.size() - processed.size()) + " documents without a result are not added to " + dir);
+		if (processed.isEmpty()) return;
+		update(manifest -> {
+			String name = writeSegment(manifest, writer -> {
+				for (LimitationSummary sum: processed)
+					writer.add(sum, versions.get(sum.getDocId()));
+			});
+			manifest.segments.add(name);
+			writeManifest(manifest);
+			log.info("Added segment " + name + " with " + processed.size() + " documents to " + dir);
+		});
+		scheduleCompaction();
+	}
+
+	private void scheduleCompaction() {
+		compactor.submit(() -> {
+			try {
+				compact(false);
+			} catch (IOException ioe) {
+				log.log(Level.WARNING, "Cannot compact " + dir, ioe);
+			}
+		});
+	}
+
+	/**
+	 * Adds the JSON output of a run as a new segment. The documents get version 0.
+	 *
+	 * @param json	the JSON file, an array of summaries
+	 * @throws IOException	if the JSON cannot be read or the segment cannot be written
+	 */
+	public void addJson(String json) throws IOException {
+		update(manifest -> {
+			String name = writeSegment(manifest, writer -> writer.addJson(json));
+			manifest.segments.add(name);
+			writeManifest(manifest);
+			log.info("Added segment " + name + " from " + json + " to " + dir);
+		});
+		scheduleCompaction();
+	}
+
+	/**
+	 * Merges segments. Without <code>all</code>, the newest run of consecutive small segments is merged if it is
+	 * long enough, as in the background compaction.
+	 *
+	 * @param all	whether to merge all the segments into one
+	 * @return the number of segments merged
+	 * @throws IOException	if the segments cannot be read or the merged segment cannot be written
+	 */
+	public int compact(boolean all) throws IOException {
+		int[] merged = new int[1];
+		update(manifest -> {
+			List<String> segments = manifest.segments;
+			int end = segments.size();
+			int begin = end;
+			if (all) begin = 0;
+			else {
+				while (begin > 0 && Files.size(dir.resolve(segments.get(begin - 1))) < smallSegment)
+					begin--;
+				if (end - begin < mergeSegments) begin = end;
+			}
+			if (end - begin >= 2) {
+				List<String> merging = new ArrayList<>(segments.subList(begin, end));
+				String name = writeSegment(manifest, writer -> merge(merging, writer));
+				segments.subList(begin, end).clear();
+				segments.add(begin, name);
+				writeManifest(manifest);
+				log.info("Merged " + merging.size() + " segments into " + name + " in " + dir);
+				merged[0] = merging.size();
+			}
+			deleteUnlisted(manifest);
+		});
+		return merged[0];
+	}
+
+	// the latest version of each document, newest segment first
+	private void merge(List<String> segments, LimitationIndex.Writer writer) throws IOException {
+		Set<String> seen = new HashSet<>();
+		for (int s=segments.size() - 1; s >= 0; s--) {
+			try (LimitationIndex segment = new LimitationIndex(dir.resolve(segments.get(s)).toString())) {
+				for (int d=0; d < segment.size(); d++) {
+					LimitationSummary sum = segment.document(d);
+					if (seen.add(sum.getDocId())) writer.add(sum, segment.version(d));
+				}
+			}
+		}
+	}
+
+	private void deleteUnlisted(Manifest manifest) throws IOException {
+		Set<String> listed = new HashSet<>(manifest.segments);
+		File[] files = dir.toFile().listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+		if (files == null) return;
+		for (File file: files) {
+			if (listed.contains(file.getName())) continue;
+			try {
+				Files.delete(file.toPath());
+			} catch (IOException ioe) {
+				// e.g., still open on file systems that do not allow deleting open files, retried after the next update
+				log.fine(() -> "Cannot delete " + file + " yet: " + ioe);
+			}
+		}
+	}
+
+	/**
+	 * Opens a view of the segments currently in the store. A compaction can replace the manifest and delete the
+	 * merged segments after the manifest is read; the manifest is then read again.
+	 *
+	 * @return the view, to be closed after use
+	 * @throws IOException	if a segment cannot be opened
+	 */
+	public View view() throws IOException {
+		List<String> segments = readManifest().segments;
+		while (true) {
+			try {
+				return new View(dir, segments);
+			} catch (NoSuchFileException nsfe) {
+				List<String> current = readManifest().segments;
+				// a segment that is still listed is really missing
+				if (current.equals(segments)) throw nsfe;
+				segments = current;
+			}
+		}
+	}
+
+	/**
+	 * Waits for a running compaction to finish.
+	 */
+	@Override
+	public void close() {
+		compactor.shutdown();
+		try {
+			compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * The results in a fixed set of segments. A document is read from the newest segment that has it.
+	 */
+	public static class View implements AutoCloseable {
+		private final List<LimitationIndex> segments = new ArrayList<>();
+
+		private View(Path dir, List<String> names) throws IOException {
+			try {
+				// newest first
+				for (int i=names.size() - 1; i >= 0; i--)
+					segments.add(new LimitationIndex(dir.resolve(names.get(i)).toString()));
+			} catch (IOException ioe) {
+				close();
+				throw ioe;
+			}
+		}
+
+		/**
+		 * @param docId	the document id
+		 * @return the latest summary of the document, or null if the document is not in the store
+		 */
+		public LimitationSummary get(String docId) {
+			for (LimitationIndex segment: segments) {
+				LimitationSummary sum = segment.get(docId);
+				if (sum != null) return sum;
+			}
+			return null;
+		}
+
+		/**
+		 * @param docId	the document id
+		 * @return the latest version of the document, or -1 if the document is not in the store
+		 */
+		public long version(String docId) {
+			for (LimitationIndex segment: segments) {
+				long version = segment.version(docId);
+				if (version >= 0) return version;
+			}
+			return -1;
+		}
+
+		/**
+		 * Finds the limitation sentences that contain all the terms of a query, in the latest summaries
+		 * of the documents, newest segment first.
+		 *
+		 * @param query	the query
+		 * @param limit	the maximum number of sentences to return
+		 * @return the sentences
+		 */
+		public List<LimitationIndex.Hit> search(String query, int limit) {
+			List<LimitationIndex.Hit> hits = new ArrayList<>();
+			for (int s=0; s < segments.size() && hits.size() < limit; s++) {
+				List<LimitationIndex> newer = segments.subList(0, s);
+				hits.addAll(segments.get(s).search(query, limit - hits.size(),
+						docId -> newer.stream().noneMatch(segment -> segment.contains(docId))));
+			}
+			return hits;
+		}
+
+		/**
+		 * @return the number of segments
+		 */
+		public int segments() {
+			return segments.size();
+		}
+
+		@Override
+		public void close() throws IOException {
+			for (LimitationIndex segment: segments)
+				segment.close();
+		}
+	}
+
+	/**
+	 * Computes the version that the recognizers store a document with, from its length and CRC32C checksum.
+	 *
+	 * @param rec	the input document
+	 * @return the fingerprint of the content
+	 * @throws IOException	if the content cannot be read
+	 */
+	public static long fingerprint(DocumentRecord rec) throws IOException {
+		CRC32C crc = new CRC32C();
+		long length = 0;
+		byte[] buf = new byte[1 << 16];
+		try (InputStream in = rec.openStream()) {
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				crc.update(buf, 0, n);
+				length += n;
+			}
+		}
+		return ((length & 0x7FFFFFFFL) << 32) | crc.getValue();
+	}
+
+	private static int requiredArgs(String command) {
+		switch (command) {
+		case "add":
+		case "get":
+		case "search":
+			return 3;
+		default:
+			return 2;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2 || args.length < requiredArgs(args[0])) {
+			System.err.println("Usage: add storeDir summaries.json | get storeDir docId... | search storeDir query [limit] | list storeDir | compact storeDir [all]");
+			System.exit(1);
+		}
+		String command = args[0];
+		try (ResultStore store = new ResultStore(args[1])) {
+			switch (command) {
+			case "add":
+				store.addJson(args[2]);
+				break;
+			case "compact":
+				System.out.println("Merged " + store.compact(args.length > 2 && args[2].equals("all")) + " segments");
+				break;
+			case "list":
+				for (String name: store.readManifest().segments) {
+					try (LimitationIndex segment = new LimitationIndex(store.dir.resolve(name).toString())) {
+						System.out.printf("%s\t%d documents\t%d sentences\t%.1f MB%n", name, segment.size(), segment.sentences(),
+								Files.size(store.dir.resolve(name)) / (1024.0 * 1024.0));
+					}
+				}
+				break;
+			case "get":
+			case "search":
+				try (View view = store.view()) {
+					if (command.equals("get")) {
+						for (int i=2; i < args.length; i++) {
+							LimitationSummary sum = view.get(args[i]);
+							if (sum == null) System.out.println(args[i] + "\tnot found");
+							else {
+								System.out.println(sum.getDocId() + "\t" + sum.getSentCount());
+								for (String sent: sum.getSents())
+									System.out.println("\t" + sent);
+							}
+						}
+					} else {
+						int limit = (args.length > 3 ? Integer.parseInt(args[3]) : 20);
+						for (LimitationIndex.Hit hit: view.search(args[2], limit))
+							System.out.println(hit.getDocId() + "\t" + hit.getSentence() + "\t" + hit.getText());
+					}
+				}
+				break;
+			default:
+				System.err.println("Unknown command: " + command);
+				System.exit(1);
+			}
+		}
+	}
+}
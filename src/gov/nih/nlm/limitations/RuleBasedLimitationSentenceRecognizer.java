@@ -11,6 +11,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import gov.nih.nlm.ling.core.Document;
@@ -20,7 +21,6 @@ import gov.nih.nlm.ling.core.Span;
 import gov.nih.nlm.ling.core.Word;
 import gov.nih.nlm.ling.io.XMLReader;
 import gov.nih.nlm.ling.sem.SemanticItem;
-import gov.nih.nlm.ling.sem.SemanticItemFactory;
 import gov.nih.nlm.ling.util.FileUtils;
 
 /**
@@ -91,18 +91,25 @@ public class RuleBasedLimitationSentenceRecognizer {
 		predictLabels.put(key,label(sent));
 	}
 
+	/**
+	 * Checks whether a top-level section can contain limitation sentences, i.e., whether its title mentions 
+	 * discussion, conclusions, limitations or weaknesses. The sentences of other sections are labeled negative.
+	 * 
+	 * @param topSect	the top-level section
+	 * @return true if the section title is one of those
+	 */
+	public static boolean isCandidateSection(Section topSect) {
+		if (topSect == null) return false;
+		String topTitle = topSect.getTitle();
+		if (topTitle == null) return false;
+		topTitle = topTitle.toLowerCase();
+		return (topTitle.contains("discussion") || topTitle.contains("conclusion") || topTitle.contains("limitation") || topTitle.contains("weakness"));
+	}
+
 	public static String label(Sentence sent) {
 		Document doc = sent.getDocument();
 		Section topSect = Utils.getTopSection(sent);
-		if (topSect == null) {
-			return "NEG";
-		}
-		String topTitle = topSect.getTitle();
-		if (topTitle == null) {
-			return "NEG";
-		}
-		topTitle = topTitle.toLowerCase();
-		if 	(topTitle.contains("discussion") == false  && topTitle.contains("conclusion") == false && topTitle.contains("limitation") == false && topTitle.contains("weakness") == false) {
+		if (isCandidateSection(topSect) == false) {
 			return "NEG";
 		}
 		Section sect = doc.getSection(sent);
@@ -127,7 +134,7 @@ public class RuleBasedLimitationSentenceRecognizer {
 				if (Utils.limitationIntroductorySentence(sent)  || 
 						nonListInListParagraph(sent) || Utils.isCitationSentence(sent)/*  || furtherStudies(sent)*/ || contrastWithPrevious(sent)) return "NEG";
 				else {
-					log.fine("In limitation paragraph:" + doc.getId() + "|" + sent.getText());
+					log.fine(() -> "In limitation paragraph:" + doc.getId() + "|" + sent.getText());
 					return "POS";
 				}
 			}
@@ -184,18 +191,22 @@ public class RuleBasedLimitationSentenceRecognizer {
 
 	private static void processSingleArticle(String inFile,String outFile) throws Exception {
 		Document doc = null;
-		doc = xmlReader.load(inFile, true, SemanticItemFactory.class,annTypes, null);			
+		doc = CorpusIO.loadDocument(xmlReader, inFile, annTypes);			
+		DocumentEvent.Labeling labeling = new DocumentEvent.Labeling().start(doc.getId());
+		int positives = 0;
 		for (Sentence sent: doc.getSentences()) {
 			String key = doc.getId() + "_" + sent.getId();
 			if (goldLabels.containsKey(key) == false) continue;
 			String text = sent.getText();
 			if (goldSentences.get(key).equals(text)) {
 				labelSentence(sent);
+				if ("POS".equals(predictLabels.get(key))) positives++;
 			} else {
 				log.warning("ERROR: " + key + " " + text);
 				continue;
 			}
 		}
+		labeling.finish(doc, positives);
 	}
 
 	/**
@@ -205,15 +216,16 @@ public class RuleBasedLimitationSentenceRecognizer {
 	 * @throws IOException if there is a problem with file reading/writing
 	 */
 	private static void processDir(String dir, String out) throws Exception {
-		List<String> files = FileUtils.listFiles(dir, false, "xml");
 		int fileNum = 0;
-		for (String filename: files) {
-			String filenameNoExt = filename.replace(".xml", "");
-			filenameNoExt = filenameNoExt.substring(filenameNoExt.lastIndexOf(File.separator)+1);
-			if (goldDocs.contains(filenameNoExt) == false) continue;
-			log.info("Processing " + filenameNoExt + ":" + ++fileNum);
-			processSingleArticle(filename,out);
-		}	
+		try (DocumentSource source = CorpusIO.openSource(dir, "xml")) {
+			while (source.hasNext()) {
+				DocumentRecord rec = source.next();
+				String filenameNoExt = rec.getId();
+				if (goldDocs.contains(filenameNoExt) == false) continue;
+				log.info("Processing " + filenameNoExt + ":" + ++fileNum);
+				processSingleArticle(CorpusIO.toFile(rec),out);
+			}
+		}
 		calculatePerformance(out);
 	}
 
@@ -230,26 +242,30 @@ public class RuleBasedLimitationSentenceRecognizer {
 			String predict =predictLabels.get(k);
 			if (gold.equals("POS") && predict.equals("POS")) {
 				TP++;
-				log.fine("TP|" + k + "|" + predict + "|" + gold + "|" +  goldSentences.get(k));
-				pw.write("TP|" + k + "|" + predict + "|" + gold + "|" +  goldSentences.get(k));
+				String line = "TP|" + k + "|" + predict + "|" + gold + "|" +  goldSentences.get(k);
+				log.fine(line);
+				pw.write(line);
 				pw.write("\n");
 			}
 			else if (gold.equals("NEG") && predict.equals("POS")) {
 				FP++;
-				log.fine("FP|" + k + "|" + predict + "|" + gold + "|" +  goldSentences.get(k));
-				pw.write("FP|" + k + "|" + predict + "|" + gold + "|" +  goldSentences.get(k));
+				String line = "FP|" + k + "|" + predict + "|" + gold + "|" +  goldSentences.get(k);
+				log.fine(line);
+				pw.write(line);
 				pw.write("\n");
 			}
 			else if (gold.equals("POS") && predict.equals("NEG")) {
 				FN++;
-				log.fine("FN|" + k + "|" + predict + "|" + gold + "|" +  goldSentences.get(k));
-				pw.write("FN|" + k + "|" + predict + "|" + gold + "|" +  goldSentences.get(k));
+				String line = "FN|" + k + "|" + predict + "|" + gold + "|" +  goldSentences.get(k);
+				log.fine(line);
+				pw.write(line);
 				pw.write("\n");
 			}
 			else if (gold.equals("NEG") && predict.equals("NEG")) {
 				TN++;
-				log.fine("TN|" + k + "|" + predict + "|" + gold + "|" +  goldSentences.get(k));
-				pw.write("TN|" + k + "|" + predict + "|" + gold + "|" +  goldSentences.get(k));
+				String line = "TN|" + k + "|" + predict + "|" + gold + "|" +  goldSentences.get(k);
+				log.fine(line);
+				pw.write(line);
 				pw.write("\n");
 			}
 		}
@@ -292,8 +308,9 @@ public class RuleBasedLimitationSentenceRecognizer {
 			goldSentences.put(key, sent);
 			goldDocs.add(docid);
 		}
-		for (String key: goldLabels.keySet()) {
-			log.fine(key + " " + goldLabels.get(key));
+		if (log.isLoggable(Level.FINE)) {
+			for (String key: goldLabels.keySet())
+				log.fine(key + " " + goldLabels.get(key));
 		}
 	} 
 
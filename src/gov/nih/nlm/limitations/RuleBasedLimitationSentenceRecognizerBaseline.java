@@ -11,6 +11,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import gov.nih.nlm.ling.core.Document;
@@ -18,7 +19,6 @@ import gov.nih.nlm.ling.core.Section;
 import gov.nih.nlm.ling.core.Sentence;
 import gov.nih.nlm.ling.io.XMLReader;
 import gov.nih.nlm.ling.sem.SemanticItem;
-import gov.nih.nlm.ling.sem.SemanticItemFactory;
 import gov.nih.nlm.ling.util.FileUtils;
 
 /**
@@ -69,7 +69,7 @@ public class RuleBasedLimitationSentenceRecognizerBaseline {
 		else if (status.equals("NONE"))  {
 			if (Utils.inLimitationParagraph(sent,true)) {
 				predictLabels.put(key, "POS");
-				log.fine("In limitation paragraph: " + doc.getId() + "|" + sent.getText());
+				log.fine(() -> "In limitation paragraph: " + doc.getId() + "|" + sent.getText());
 			}
 			else {
 				predictLabels.put(key, "NEG");
@@ -84,31 +84,36 @@ public class RuleBasedLimitationSentenceRecognizerBaseline {
 
 	private static void processSingleArticle(String inFile, Properties props, String outFile) throws Exception {
 		Document doc = null;
-		doc = xmlReader.load(inFile, true, SemanticItemFactory.class,annTypes, null);
+		doc = CorpusIO.loadDocument(xmlReader, inFile, annTypes);
+		DocumentEvent.Labeling labeling = new DocumentEvent.Labeling().start(doc.getId());
+		int positives = 0;
 		for (Sentence sent: doc.getSentences()) {
 			String key = doc.getId() + "_" + sent.getId();
 			if (goldLabels.containsKey(key) == false) continue;
 			String text = sent.getText();
 			if (goldSentences.get(key).equals(text)) {
 				labelSentence(sent);
+				if ("POS".equals(predictLabels.get(key))) positives++;
 			} else {
 				log.warning("ERROR " + key + " " + text);
 				continue;
 			}
 
 		}
+		labeling.finish(doc, positives);
 	}
 
 	private static void processDir(String dir, Properties props, String out) throws Exception {
-		List<String> files = FileUtils.listFiles(dir, false, "xml");
 		int fileNum = 0;
-		for (String filename: files) {
-			String filenameNoExt = filename.replace(".xml", "");
-			filenameNoExt = filenameNoExt.substring(filenameNoExt.lastIndexOf(File.separator)+1);
-			if (goldDocs.contains(filenameNoExt) == false) continue;
-			log.info("Processing " + filenameNoExt + ":" + ++fileNum);
-			processSingleArticle(filename,props, out);
-		}	
+		try (DocumentSource source = CorpusIO.openSource(dir, "xml")) {
+			while (source.hasNext()) {
+				DocumentRecord rec = source.next();
+				String filenameNoExt = rec.getId();
+				if (goldDocs.contains(filenameNoExt) == false) continue;
+				log.info("Processing " + filenameNoExt + ":" + ++fileNum);
+				processSingleArticle(CorpusIO.toFile(rec),props, out);
+			}
+		}
 		calculatePerformance(out);
 	}
 
@@ -129,26 +134,30 @@ public class RuleBasedLimitationSentenceRecognizerBaseline {
 			String predict =predictLabels.get(k);
 			if (gold.equals("POS") && predict.equals("POS")) {
 				TP++;
-				log.fine("TP|" + k + "|" + predict + "|" + gold + "|" +  goldSentences.get(k));
-				pw.write("TP|" + k + "|" + predict + "|" + gold + "|" +  goldSentences.get(k));
+				String line = "TP|" + k + "|" + predict + "|" + gold + "|" +  goldSentences.get(k);
+				log.fine(line);
+				pw.write(line);
 				pw.write("\n");
 			}
 			else if (gold.equals("NEG") && predict.equals("POS")) {
 				FP++;
-				log.fine("FP|" + k + "|" + predict + "|" + gold + "|" +  goldSentences.get(k));
-				pw.write("FP|" + k + "|" + predict + "|" + gold + "|" +  goldSentences.get(k));
+				String line = "FP|" + k + "|" + predict + "|" + gold + "|" +  goldSentences.get(k);
+				log.fine(line);
+				pw.write(line);
 				pw.write("\n");
 			}
 			else if (gold.equals("POS") && predict.equals("NEG")) {
 				FN++;
-				log.fine("FN|" + k + "|" + predict + "|" + gold + "|" +  goldSentences.get(k));
-				pw.write("FN|" + k + "|" + predict + "|" + gold + "|" +  goldSentences.get(k));
+				String line = "FN|" + k + "|" + predict + "|" + gold + "|" +  goldSentences.get(k);
+				log.fine(line);
+				pw.write(line);
 				pw.write("\n");
 			}
 			else if (gold.equals("NEG") && predict.equals("NEG")) {
 				TN++;
-				log.fine("TN|" + k + "|" + predict + "|" + gold + "|" +  goldSentences.get(k));
-				pw.write("TN|" + k + "|" + predict + "|" + gold + "|" +  goldSentences.get(k));
+				String line = "TN|" + k + "|" + predict + "|" + gold + "|" +  goldSentences.get(k);
+				log.fine(line);
+				pw.write(line);
 				pw.write("\n");
 			}
 		}
@@ -182,8 +191,9 @@ public class RuleBasedLimitationSentenceRecognizerBaseline {
 			goldSentences.put(key, sent);
 			goldDocs.add(docid);
 		}
-		for (String key: goldLabels.keySet()) {
-			log.fine(key + " " + goldLabels.get(key));
+		if (log.isLoggable(Level.FINE)) {
+			for (String key: goldLabels.keySet())
+				log.fine(key + " " + goldLabels.get(key));
 		}
 	} 
 
@@ -0,0 +1,112 @@
+package gov.nih.nlm.limitations;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import gov.nih.nlm.ling.core.Document;
+import gov.nih.nlm.ling.core.Sentence;
+import gov.nih.nlm.ling.io.XMLReader;
+import gov.nih.nlm.ling.sem.SemanticItem;
+
+/**
+ * Document-level limitation recognizer for press releases. A press release is labeled POS if any of its sentences
+ * is in a limitation paragraph, and NEG otherwise. <p>
+ * 
+ * Press releases are processed one at a time: labeling stops at the first POS sentence, and the label is written
+ * as soon as the press release has been read, so memory use does not grow with the number of press releases.
+ * 
+ * @author Halil Kilicoglu
+ *
+ */
+public class RuleBasedLimitationSentenceRecognizerPressRelease {
+	private static Logger log = Logger.getLogger(RuleBasedLimitationSentenceRecognizerPressRelease.class.getName());	
+
+	private static XMLReader xmlReader;
+	private static Map<Class<? extends SemanticItem>,List<String>> annTypes;
+
+	public static String label(Sentence sent) {
+		Document doc = sent.getDocument();
+		if (Utils.inLimitationParagraph(sent,false)) {
+			log.fine(() -> "In limitation paragraph:" + doc.getId() + "|" + sent.getId() + "|" +  sent.getText());
+			return "POS";
+		}
+		else {
+			return "NEG";
+		}
+	}
+
+	/**
+	 * 
+	 * @param doc	the press release
+	 * @return POS if any sentence of the press release is labeled POS, NEG otherwise
+	 */
+	public static String labelDocument(Document doc) {
+		DocumentEvent.Labeling labeling = new DocumentEvent.Labeling().start(doc.getId());
+		String result = "NEG";
+		if (doc.getSentences() != null) {
+			for (Sentence sent: doc.getSentences()) {
+				if (label(sent).equals("POS")) {
+					result = "POS";
+					break;
+				}
+			}
+		}
+		labeling.finish(doc, () -> (doc.getSentences() == null ? 0 :
+			(int)doc.getSentences().stream().filter(s -> label(s).equals("POS")).count()));
+		return result;
+	}
+
+	private static String processSingleArticle(String inFile) throws Exception {
+		Document doc = CorpusIO.loadDocument(xmlReader, inFile, annTypes);
+		if (doc == null) {
+			log.warning("Unable to load " + inFile + ", labeling it NEG.");
+			return "NEG";
+		}
+		return labelDocument(doc);
+	}
+
+	private static void processDir(String dir, String out) throws Exception {
+		int fileNum = 0;
+		int posCount = 0;
+		try (DocumentSource source = CorpusIO.openSource(dir, "xml");
+				PrintWriter pw = new PrintWriter(Files.newBufferedWriter(Paths.get(out), StandardCharsets.UTF_8))) {
+			while (source.hasNext()) {
+				DocumentRecord rec = source.next();
+				String id = rec.getId();
+				log.info("Processing " + id + ":" + ++fileNum);
+				String lbl = processSingleArticle(CorpusIO.toFile(rec));
+				if (lbl.equals("POS")) posCount++;
+				pw.write(id + "\t" + lbl + "\n");
+			}
+		}
+		System.out.println("Press releases with limitations: " + posCount + " of " + fileNum);
+	}
+
+	public static void main(String[] args) 
+			throws IOException, InstantiationException, 
+			IllegalAccessException, ClassNotFoundException, Exception {
+		if (args.length < 2) {
+			System.err.print("Usage: inputDirectory outFile");
+		}
+
+		String in = args[0];
+		String out = args[1];
+		File inDir = new File(in);
+		if (inDir.isDirectory()== false) {
+			System.err.println("Parsed XML directory does not exist:" + in);
+			System.exit(1);
+		}
+
+		annTypes = Utils.getAnnotationTypes();
+		xmlReader = Utils.getXMLReader();
+		processDir(in,out);
+	}
+
+}
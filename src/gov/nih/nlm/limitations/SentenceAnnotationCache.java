@@ -0,0 +1,260 @@
+package gov.nih.nlm.limitations;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.trees.Tree;
+import edu.stanford.nlp.trees.TreeCoreAnnotations;
+import edu.stanford.nlp.util.ArrayCoreMap;
+import edu.stanford.nlp.util.CoreMap;
+import gov.nih.nlm.ling.core.SynDependency;
+import gov.nih.nlm.ling.core.Word;
+import gov.nih.nlm.ling.wrappers.CoreNLPWrapper;
+
+/**
+ * Cache of CoreNLP sentence annotations, so that sentences that repeat word for word across documents
+ * (licence and funding statements, ethics approvals, section headings, etc.) are annotated only once. <p>
+ *
+ * Entries are looked up by sentence text, within a cache that belongs to a single annotator configuration.
+ * An entry keeps the CoreNLP tokens (with offsets relative to the sentence), the parse tree and the dependencies
+ * in the order they were extracted, and is attached to a new sentence at its own offsets by {@link SentenceAnnotator}.
+ * The cache is bounded by an estimate of its memory use, and the least recently used sentences are evicted
+ * first. It can be saved to a file and loaded in a later run; a file written with a different annotator
+ * configuration is ignored.
+ *
+ * @author Halil Kilicoglu
+ *
+ */
+public class SentenceAnnotationCache {
+	private static Logger log = Logger.getLogger(SentenceAnnotationCache.class.getName());
+
+	// rough heap use of an entry, measured on loaded caches (about 8 KB per sentence with
+	// tokenize,ssplit,pos,lemma and 28 KB with parse added, for sentences of 20-30 tokens)
+	private static final int ENTRY_BYTES = 1024;
+	private static final int TOKEN_BYTES = 384;
+	private static final int TREE_BYTES_PER_TOKEN = 1024;
+
+	private final String config;
+	private final long maxBytes;
+	private long bytes = 0;
+	private LinkedHashMap<String,Entry> entries = new LinkedHashMap<>(1024, 0.75f, true);
+
+	private long hits = 0;
+	private long lookups = 0;
+	private long evictions = 0;
+	private int loaded = 0;
+
+	/**
+	 *
+	 * @param config	the annotator configuration, see {@link #configuration(Properties)}
+	 * @param maxBytes	the memory budget of the cache
+	 */
+	public SentenceAnnotationCache(String config, long maxBytes) {
+		this.config = config;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Summarizes the properties that affect the annotations: the annotator list and the annotator options.
+	 *
+	 * @param props	the CoreNLP properties
+	 * @return	the configuration string
+	 */
+	public static String configuration(Properties props) {
+		String annotators = props.getProperty("annotators", "");
+		Map<String,String> options = new TreeMap<>();
+		for (String name: props.stringPropertyNames()) {
+			for (String annotator: annotators.split("\\s*,\\s*")) {
+				if (annotator.length() > 0 && name.startsWith(annotator + "."))
+					options.put(name, props.getProperty(name));
+			}
+		}
+		return "annotators=" + annotators + options;
+	}
+
+	/**
+	 * The cached annotation of a sentence.
+	 */
+	public static class Entry implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private final List<CoreLabel> tokens;
+		private final Tree tree;
+		private final int[] governors;
+		private final int[] dependents;
+		private final String[] types;
+
+		private Entry(CoreMap annotation, List<Word> words, List<SynDependency> deps) {
+			this.tokens = annotation.get(CoreAnnotations.TokensAnnotation.class);
+			Tree tree = annotation.get(TreeCoreAnnotations.TreeAnnotation.class);
+			this.tree = (tree == null ? null : tree.deepCopy());
+			Map<Object,Integer> indexes = new IdentityHashMap<>();
+			for (int i=0; i < words.size(); i++)
+				indexes.put(words.get(i), i);
+			governors = new int[deps.size()];
+			dependents = new int[deps.size()];
+			types = new String[deps.size()];
+			for (int i=0; i < deps.size(); i++) {
+				governors[i] = indexes.get(deps.get(i).getGovernor());
+				dependents[i] = indexes.get(deps.get(i).getDependent());
+				types[i] = deps.get(i).getType();
+			}
+		}
+
+		/**
+		 *
+		 * @return the tokens, as a CoreNLP sentence annotation
+		 */
+		public CoreMap getTokens() {
+			CoreMap annotation = new ArrayCoreMap(1);
+			annotation.set(CoreAnnotations.TokensAnnotation.class, tokens);
+			return annotation;
+		}
+
+		/**
+		 *
+		 * @return a copy of the parse tree, or null if the sentence was not parsed
+		 */
+		public Tree getTree() {
+			// the tree can be modified downstream, so it is not shared
+			return (tree == null ? null : tree.deepCopy());
+		}
+
+		/**
+		 * Recreates the dependencies over the words of a new sentence, as
+		 * {@link CoreNLPWrapper#getSentenceDependencies(CoreMap, List)} does.
+		 *
+		 * @param words	the words created from {@link #getTokens()}
+		 * @return the dependencies
+		 */
+		public List<SynDependency> getDependencies(List<Word> words) {
+			List<SynDependency> deps = new ArrayList<>(types.length);
+			for (int i=0; i < types.length; i++)
+				deps.add(new SynDependency("SD" + (i+1), types[i], words.get(governors[i]), words.get(dependents[i])));
+			return deps;
+		}
+
+		private long size(String text) {
+			return ENTRY_BYTES + 2L * text.length() + (long)tokens.size() * (TOKEN_BYTES + (tree == null ? 0 : TREE_BYTES_PER_TOKEN));
+		}
+	}
+
+	/**
+	 *
+	 * @param text	the sentence text
+	 * @return the cached annotation of the sentence, or null if the sentence is not in the cache
+	 */
+	public synchronized Entry get(String text) {
+		lookups++;
+		Entry entry = entries.get(text);
+		if (entry != null) hits++;
+		return entry;
+	}
+
+	/**
+	 * Adds the annotation of a sentence, evicting the least recently used sentences if the cache is full.
+	 *
+	 * @param text			the sentence text
+	 * @param annotation	the CoreNLP annotation of the sentence, with offsets relative to the sentence
+	 * @param words			the words of the sentence, created from the annotation
+	 * @param deps			the dependencies of the sentence, created from the annotation
+	 */
+	public void put(String text, CoreMap annotation, List<Word> words, List<SynDependency> deps) {
+		synchronized (this) {
+			if (entries.containsKey(text)) return;
+		}
+		put(text, new Entry(annotation, words, deps));
+	}
+
+	private synchronized void put(String text, Entry entry) {
+		if (entries.containsKey(text)) return;
+		long size = entry.size(text);
+		if (size > maxBytes) return;
+		entries.put(text, entry);
+		bytes += size;
+		Iterator<Map.Entry<String,Entry>> it = entries.entrySet().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			Map.Entry<String,Entry> eldest = it.next();
+			bytes -= eldest.getValue().size(eldest.getKey());
+			it.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Loads the entries saved by an earlier run with the same configuration.
+	 *
+	 * @param filename	the cache file, compressed if its extension indicates compression
+	 * @throws IOException	if the file cannot be read
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized void load(String filename) throws IOException {
+		if (Files.exists(Paths.get(filename)) == false) return;
+		try (InputStream is = CorpusIO.openInputStream(filename);
+				ObjectInputStream in = new ObjectInputStream(is)) {
+			String fileConfig = (String)in.readObject();
+			if (fileConfig.equals(config) == false) {
+				log.warning("The annotation cache " + filename + " was written with a different configuration, ignoring it.");
+				return;
+			}
+			List<String> texts = (List<String>)in.readObject();
+			List<Entry> annotations = (List<Entry>)in.readObject();
+			for (int i=0; i < texts.size(); i++)
+				put(texts.get(i), annotations.get(i));
+			loaded = entries.size();
+		} catch (ClassNotFoundException cnfe) {
+			throw new IOException("Unable to read the annotation cache " + filename, cnfe);
+		}
+		log.info("Loaded " + loaded + " sentences into the annotation cache from " + filename + ".");
+	}
+
+	/**
+	 * Saves the entries, least recently used first, so that loading them keeps the eviction order.
+	 *
+	 * @param filename	the cache file, compressed if its extension indicates compression
+	 * @throws IOException	if the file cannot be written
+	 */
+	public synchronized void save(String filename) throws IOException {
+		List<String> texts = new ArrayList<>(entries.keySet());
+		List<Entry> annotations = new ArrayList<>(entries.values());
+		Path temp = CorpusIO.temporaryFile(filename);
+		try {
+			try (OutputStream os = CorpusIO.openOutputStream(temp, filename);
+					ObjectOutputStream out = new ObjectOutputStream(os)) {
+				out.writeObject(config);
+				out.writeObject(texts);
+				out.writeObject(annotations);
+			}
+			CorpusIO.publish(temp, filename);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		log.info("Saved " + texts.size() + " sentences of the annotation cache to " + filename + ".");
+	}
+
+	/**
+	 *
+	 * @return a summary of cache use in this run
+	 */
+	public synchronized String report() {
+		return String.format("Sentence annotation cache: %d hits of %d lookups (%.1f%%), %d sentences (~%d MB, %d loaded), %d evicted",
+				hits, lookups, (lookups == 0 ? 0.0 : 100.0 * hits / lookups), entries.size(), bytes >> 20, loaded, evictions);
+	}
+}
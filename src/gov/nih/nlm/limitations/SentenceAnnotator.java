@@ -0,0 +1,529 @@
+package gov.nih.nlm.limitations;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.pipeline.StanfordCoreNLP;
+import edu.stanford.nlp.util.CoreMap;
+import gov.nih.nlm.ling.core.Document;
+import gov.nih.nlm.ling.core.Sentence;
+import gov.nih.nlm.ling.core.SynDependency;
+import gov.nih.nlm.ling.core.Word;
+import gov.nih.nlm.ling.wrappers.CoreNLPWrapper;
+import nu.xom.Attribute;
+import nu.xom.Element;
+import nu.xom.Elements;
+
+/**
+ * Preprocesses the sentences of a document with Stanford CoreNLP. <p>
+ *
+ * Sentences are normally annotated one by one with {@link CoreNLPWrapper}. For documents with many
+ * sentences (more than <code>parallelSentenceThreshold</code>, 500 by default), the sentences are split
+ * into chunks that are annotated on a fork-join pool of <code>annotationThreads</code> workers
+ * (the number of processors by default). The annotations are attached to each sentence object,
+ * so the sentences stay in document order. <p>
+ *
+ * The workers share a pipeline built from the same properties as the wrapper's, so the models are
+ * loaded only once; CoreNLP annotators can be used from several threads at once. <p>
+ *
+ * Parsing can be limited with a budget: <code>parseMaxTokens</code> (the longest sentence to parse, in tokens),
+ * <code>parseMaxTime</code> (the parse time allowed per sentence, in milliseconds) and <code>parseDocumentBudget</code>
+ * (the total parse time allowed per document, in milliseconds). With a budget, sentences are first tokenized,
+ * tagged and lemmatized, and then parsed separately under a timer that interrupts the parser. A sentence that
+ * goes over the budget keeps its tokens and lemmas, but has no parse tree or dependencies. It is marked with a
+ * <code>parseFallback</code> attribute in the XML written by {@link StreamingXmlWriter} or {@link #toXml(Document)}. <p>
+ *
+ * With <code>annotationBatchSize</code> (a number of sentences, or <code>document</code>), the sentences are
+ * sent to CoreNLP in batches rather than one at a time. Each sentence is still tokenized on its own, which keeps
+ * the segmenter's boundaries and the tokenization exactly as before, and the tokenized sentences of a batch then
+ * go through the remaining annotators (part-of-speech tagging, lemmatization, etc.) in a single call. Parsing,
+ * which dominates the cost and is done sentence by sentence by CoreNLP anyway, stays per sentence. <p>
+ *
+ * With <code>annotationCacheSize</code> (in megabytes), the annotations of sentences are kept in a
+ * {@link SentenceAnnotationCache}, and sentences that repeat across documents are not annotated again. The cache
+ * can be kept between runs with <code>annotationCacheFile</code>; it is written by {@link #saveCache()}.
+ *
+ * @author Halil Kilicoglu
+ *
+ */
+public class SentenceAnnotator {
+	private static Logger log = Logger.getLogger(SentenceAnnotator.class.getName());
+
+	private static final int CHUNK_SIZE = 16;
+
+	private static int parallelThreshold = 500;
+	private static int threads = 1;
+	private static ForkJoinPool pool = null;
+	private static StanfordCoreNLP pipeline = null;
+
+	private static int parseMaxTokens = 0;
+	private static long parseMaxTime = 0;
+	private static long parseDocumentBudget = 0;
+	private static StanfordCoreNLP lexicalPipeline = null;
+	private static StanfordCoreNLP parsePipeline = null;
+	private static ScheduledExecutorService timer = null;
+
+	private static Map<Sentence,String> fallbacks = Collections.synchronizedMap(new WeakHashMap<>());
+	private static AtomicInteger tokenFallbacks = new AtomicInteger();
+	private static AtomicInteger timeFallbacks = new AtomicInteger();
+	private static AtomicInteger budgetFallbacks = new AtomicInteger();
+	private static AtomicInteger fallbackDocuments = new AtomicInteger();
+
+	private static int batchSize = 0;
+	private static StanfordCoreNLP tokenizePipeline = null;
+	private static StanfordCoreNLP batchPipeline = null;
+	private static AtomicInteger batchCalls = new AtomicInteger();
+	private static AtomicInteger batchedSentences = new AtomicInteger();
+
+	private static SentenceAnnotationCache cache = null;
+	private static String cacheFile = null;
+
+	/**
+	 * Initializes the parallel annotation options from properties. {@link CoreNLPWrapper} needs to
+	 * be initialized with the same properties.
+	 *
+	 * @param props	the properties to use for initialization
+	 */
+	public static synchronized void init(Properties props) {
+		parallelThreshold = Integer.parseInt(props.getProperty("parallelSentenceThreshold", "500"));
+		threads = Integer.parseInt(props.getProperty("annotationThreads",
+				String.valueOf(Runtime.getRuntime().availableProcessors())));
+		parseMaxTokens = Integer.parseInt(props.getProperty("parseMaxTokens", "0"));
+		parseMaxTime = Long.parseLong(props.getProperty("parseMaxTime", "0"));
+		parseDocumentBudget = Long.parseLong(props.getProperty("parseDocumentBudget", "0"));
+		List<String> annotators = new ArrayList<>(Arrays.asList(props.getProperty("annotators", "").split("\\s*,\\s*")));
+		boolean budgeted = (parseMaxTokens > 0 || parseMaxTime > 0 || parseDocumentBudget > 0) && annotators.contains("parse");
+		String batch = props.getProperty("annotationBatchSize", "0").trim();
+		batchSize = (batch.equals("document") ? Integer.MAX_VALUE : Integer.parseInt(batch));
+		// with a budget or with batches, sentences are parsed one at a time after the other annotators
+		Properties lexicalProps = new Properties();
+		lexicalProps.putAll(props);
+		if ((budgeted || batchSize > 0) && annotators.contains("parse") && parsePipeline == null) {
+			annotators.remove("parse");
+			lexicalProps.setProperty("annotators", String.join(",", annotators));
+			Properties parseProps = new Properties();
+			parseProps.putAll(props);
+			parseProps.setProperty("annotators", "parse");
+			parsePipeline = new StanfordCoreNLP(parseProps, false);
+		}
+		if (budgeted && lexicalPipeline == null) {
+			lexicalPipeline = new StanfordCoreNLP(lexicalProps);
+			timer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "parse-timer");
+				t.setDaemon(true);
+				return t;
+			});
+			log.info("Parse budget: " + parseMaxTokens + " tokens, " + parseMaxTime + " ms per sentence, " + parseDocumentBudget + " ms per document.");
+		}
+		if (batchSize > 0 && batchPipeline == null) {
+			List<String> tokenizers = new ArrayList<>();
+			List<String> rest = new ArrayList<>();
+			for (String annotator: annotators) {
+				if (annotator.equals("tokenize") || annotator.equals("cleanxml") || annotator.equals("ssplit")) tokenizers.add(annotator);
+				else rest.add(annotator);
+			}
+			if (rest.size() > 0) {
+				Properties tokenizeProps = new Properties();
+				tokenizeProps.putAll(props);
+				tokenizeProps.setProperty("annotators", String.join(",", tokenizers));
+				tokenizePipeline = new StanfordCoreNLP(tokenizeProps);
+				Properties batchProps = new Properties();
+				batchProps.putAll(props);
+				batchProps.setProperty("annotators", String.join(",", rest));
+				batchPipeline = new StanfordCoreNLP(batchProps, false);
+				log.info("Sentences will be annotated in batches of up to " + (batchSize == Integer.MAX_VALUE ? "a document" : batchSize) + ".");
+			}
+		}
+		long cacheSize = Long.parseLong(props.getProperty("annotationCacheSize", "0"));
+		if (cacheSize > 0 && cache == null) {
+			cache = new SentenceAnnotationCache(SentenceAnnotationCache.configuration(props), cacheSize << 20);
+			cacheFile = props.getProperty("annotationCacheFile");
+			if (cacheFile != null) {
+				try {
+					cache.load(cacheFile);
+				} catch (IOException ioe) {
+					log.warning("Unable to load the annotation cache " + cacheFile + ": " + ioe.getMessage());
+				}
+			}
+		}
+		if (threads > 1 && pool == null) {
+			pool = new ForkJoinPool(threads);
+			log.info("Documents with more than " + parallelThreshold + " sentences will be annotated with " + threads + " threads.");
+		}
+		// the cache needs the CoreNLP annotations, which CoreNLPWrapper does not return
+		if ((pool != null || cache != null) && lexicalPipeline == null && pipeline == null)
+			pipeline = new StanfordCoreNLP(props);
+	}
+
+	/**
+	 * Annotates the sentences of a document, in parallel if there are enough of them.
+	 *
+	 * @param sentences	the sentences of a document
+	 */
+	public static void annotate(List<Sentence> sentences) {
+		ParseBudget budget = new ParseBudget(parseDocumentBudget);
+		if (pool == null || sentences.size() <= parallelThreshold) {
+			annotateChunk(sentences, budget);
+		} else {
+			log.fine(() -> "Annotating " + sentences.size() + " sentences in parallel.");
+			pool.invoke(new AnnotateTask(sentences, 0, sentences.size(), budget));
+		}
+		if (budget.fallbacks.get() > 0) fallbackDocuments.incrementAndGet();
+	}
+
+	private static class AnnotateTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final List<Sentence> sentences;
+		private final int begin;
+		private final int end;
+		private final ParseBudget budget;
+
+		AnnotateTask(List<Sentence> sentences, int begin, int end, ParseBudget budget) {
+			this.sentences = sentences;
+			this.begin = begin;
+			this.end = end;
+			this.budget = budget;
+		}
+
+		protected void compute() {
+			if (end - begin <= CHUNK_SIZE) {
+				annotateChunk(sentences.subList(begin, end), budget);
+				return;
+			}
+			int mid = (begin + end) >>> 1;
+			invokeAll(new AnnotateTask(sentences, begin, mid, budget), new AnnotateTask(sentences, mid, end, budget));
+		}
+	}
+
+	private static void annotateChunk(List<Sentence> sentences, ParseBudget budget) {
+		if (cache != null) {
+			List<Sentence> misses = new ArrayList<>();
+			for (Sentence sentence: sentences) {
+				if (sentence.getText().trim().equals("")) continue;
+				SentenceAnnotationCache.Entry entry = cache.get(sentence.getText());
+				if (entry == null) misses.add(sentence);
+				else attach(sentence, entry);
+			}
+			sentences = misses;
+		}
+		if (batchPipeline == null) {
+			for (Sentence sentence: sentences)
+				annotateOne(sentence, budget);
+			return;
+		}
+		int end = 0;
+		for (int begin=0; begin < sentences.size(); begin = end) {
+			end = (int)Math.min(sentences.size(), (long)begin + batchSize);
+			annotateBatch(sentences.subList(begin, end), budget);
+		}
+	}
+
+	private static void annotateOne(Sentence sentence, ParseBudget budget) {
+		if (lexicalPipeline != null) annotateWithBudget(sentence, budget);
+		else if (pipeline != null) annotate(pipeline, sentence);
+		else CoreNLPWrapper.coreNLP(sentence);
+	}
+
+	/**
+	 * Annotates a batch of sentences with a single CoreNLP call, after tokenizing them one by one.
+	 */
+	private static void annotateBatch(List<Sentence> sentences, ParseBudget budget) {
+		List<Sentence> batch = new ArrayList<>();
+		List<CoreMap> annotated = new ArrayList<>();
+		List<CoreLabel> tokens = new ArrayList<>();
+		for (Sentence sentence: sentences) {
+			if (sentence.getText().trim().equals("")) continue;
+			Annotation annotation = new Annotation(sentence.getText());
+			tokenizePipeline.annotate(annotation);
+			List<CoreMap> sentenceAnnotations = annotation.get(CoreAnnotations.SentencesAnnotation.class);
+			if (sentenceAnnotations.size() != 1) continue;
+			batch.add(sentence);
+			annotated.add(sentenceAnnotations.get(0));
+			tokens.addAll(sentenceAnnotations.get(0).get(CoreAnnotations.TokensAnnotation.class));
+		}
+		if (batch.size() == 0) return;
+		// the character offsets remain relative to each sentence, the batch annotators only look at the tokens
+		Annotation annotation = new Annotation("");
+		annotation.set(CoreAnnotations.SentencesAnnotation.class, annotated);
+		annotation.set(CoreAnnotations.TokensAnnotation.class, tokens);
+		batchPipeline.annotate(annotation);
+		batchCalls.incrementAndGet();
+		batchedSentences.addAndGet(batch.size());
+		for (int i=0; i < batch.size(); i++) {
+			Sentence sentence = batch.get(i);
+			if (parsePipeline == null) attach(sentence, annotated.get(i), sentence.getSpan().getBegin(), null);
+			else parseAndAttach(sentence, annotated.get(i), sentence.getSpan().getBegin(), budget);
+		}
+	}
+
+	/**
+	 * The parse time left for a document, shared by the threads annotating it.
+	 */
+	private static class ParseBudget {
+		private final AtomicLong remaining;
+		private final AtomicInteger fallbacks = new AtomicInteger();
+
+		ParseBudget(long budget) {
+			this.remaining = (budget > 0 ? new AtomicLong(budget) : null);
+		}
+
+		boolean exhausted() {
+			return remaining != null && remaining.get() <= 0;
+		}
+
+		long remaining() {
+			return (remaining == null ? 0 : Math.max(remaining.get(), 1));
+		}
+
+		void spend(long millis) {
+			if (remaining != null) remaining.addAndGet(-millis);
+		}
+	}
+
+	/**
+	 * Interrupts a parsing thread once its time is up, unless the parse is done by then.
+	 */
+	private static class ParseWatch implements Runnable {
+		private final Thread thread;
+		private boolean done = false;
+		private boolean fired = false;
+
+		ParseWatch(Thread thread) {
+			this.thread = thread;
+		}
+
+		public synchronized void run() {
+			if (done) return;
+			fired = true;
+			thread.interrupt();
+		}
+
+		synchronized boolean finish() {
+			done = true;
+			return fired;
+		}
+	}
+
+	private static void annotateWithBudget(Sentence sentence, ParseBudget budget) {
+		if (sentence.getText().trim().equals("")) return;
+		Annotation annotation = new Annotation(sentence.getText());
+		lexicalPipeline.annotate(annotation);
+		List<CoreMap> annotated = annotation.get(CoreAnnotations.SentencesAnnotation.class);
+		if (annotated == null || annotated.size() == 0) {
+			log.warning("No sentence annotations were generated. Skipping coreNLP..");
+			return;
+		}
+		if (annotated.size() != 1) return;
+		parseAndAttach(sentence, annotated.get(0), sentence.getSpan().getBegin(), budget);
+	}
+
+	private static void parseAndAttach(Sentence sentence, CoreMap cm, int offset, ParseBudget budget) {
+		String fallback = null;
+		int tokenCount = cm.get(CoreAnnotations.TokensAnnotation.class).size();
+		if (parseMaxTokens > 0 && tokenCount > parseMaxTokens) fallback = "tokens";
+		else if (budget.exhausted()) fallback = "budget";
+		else fallback = parse(cm, budget);
+		if (fallback != null) {
+			budget.fallbacks.incrementAndGet();
+			log.log(Level.FINE, "Parse fallback ({0}, {1} tokens): {2}", new Object[]{fallback, tokenCount, sentence.getId()});
+		}
+		attach(sentence, cm, offset, fallback);
+	}
+
+	/**
+	 * Parses an annotated sentence within the time limits.
+	 *
+	 * @return null if the sentence was parsed, otherwise the budget that ran out (<code>time</code> or <code>budget</code>)
+	 */
+	private static String parse(CoreMap cm, ParseBudget budget) {
+		Annotation annotation = new Annotation(cm.get(CoreAnnotations.TextAnnotation.class));
+		annotation.set(CoreAnnotations.TokensAnnotation.class, cm.get(CoreAnnotations.TokensAnnotation.class));
+		annotation.set(CoreAnnotations.SentencesAnnotation.class, Collections.singletonList(cm));
+		long limit = parseMaxTime;
+		boolean documentLimit = false;
+		if (parseDocumentBudget > 0 && (limit == 0 || budget.remaining() < limit)) {
+			limit = budget.remaining();
+			documentLimit = true;
+		}
+		ParseWatch watch = new ParseWatch(Thread.currentThread());
+		ScheduledFuture<?> alarm = (limit > 0 ? timer.schedule(watch, limit, TimeUnit.MILLISECONDS) : null);
+		long start = System.currentTimeMillis();
+		boolean fired = false;
+		try {
+			parsePipeline.annotate(annotation);
+		} catch (RuntimeException re) {
+			// the interrupt surfaces as RuntimeInterruptedException, or wrapped from CoreNLP's index locks
+			if (watch.finish() == false) throw re;
+		} finally {
+			fired = watch.finish();
+			if (alarm != null) alarm.cancel(false);
+			if (fired) Thread.interrupted();
+			budget.spend(System.currentTimeMillis() - start);
+		}
+		if (fired == false) return null;
+		return (documentLimit ? "budget" : "time");
+	}
+
+	/**
+	 *
+	 * @param sentence	the sentence
+	 * @return the reason the sentence was not parsed (<code>tokens</code>, <code>time</code> or <code>budget</code>),
+	 * 			or null if it was parsed
+	 */
+	public static String getParseFallback(Sentence sentence) {
+		return fallbacks.get(sentence);
+	}
+
+	/**
+	 * Generates the XML representation of a document, marking the sentences that were not parsed
+	 * because of the parse budget with a <code>parseFallback</code> attribute.
+	 *
+	 * @param doc	the document
+	 * @return the XML element of the document
+	 */
+	public static Element toXml(Document doc) {
+		Element docEl = doc.toXml();
+		if (doc.getSentences() == null || fallbacks.isEmpty()) return docEl;
+		Map<String,String> reasons = new HashMap<>();
+		for (Sentence sentence: doc.getSentences()) {
+			String reason = getParseFallback(sentence);
+			if (reason != null) reasons.put(sentence.getId(), reason);
+		}
+		if (reasons.isEmpty()) return docEl;
+		Elements sentEls = docEl.getChildElements("sentence");
+		for (int i=0; i < sentEls.size(); i++) {
+			Element sentEl = sentEls.get(i);
+			String reason = reasons.get(sentEl.getAttributeValue("id"));
+			if (reason != null) sentEl.addAttribute(new Attribute("parseFallback", reason));
+		}
+		return docEl;
+	}
+
+	/**
+	 *
+	 * @return whether the parser runs under a budget
+	 */
+	public static boolean isBudgeted() {
+		return lexicalPipeline != null;
+	}
+
+	/**
+	 *
+	 * @return whether there is anything to report at the end of a run (parse budget, batch annotation or cache)
+	 */
+	public static boolean hasReport() {
+		return lexicalPipeline != null || batchPipeline != null || cache != null;
+	}
+
+	/**
+	 * Saves the sentence annotation cache, if it is to be kept between runs.
+	 *
+	 * @throws IOException	if the cache file cannot be written
+	 */
+	public static void saveCache() throws IOException {
+		if (cache != null && cacheFile != null) cache.save(cacheFile);
+	}
+
+	/**
+	 *
+	 * @return a summary of the sentences that were not parsed because of the budget, of batch annotation and of the cache
+	 */
+	public static String report() {
+		StringBuilder buf = new StringBuilder();
+		if (lexicalPipeline != null) {
+			int total = tokenFallbacks.get() + timeFallbacks.get() + budgetFallbacks.get();
+			buf.append("Sentences not parsed: " + total + " (token ceiling: " + tokenFallbacks.get() + ", sentence time limit: " +
+					timeFallbacks.get() + ", document budget: " + budgetFallbacks.get() + ") in " + fallbackDocuments.get() + " documents");
+		}
+		if (batchPipeline != null) {
+			if (buf.length() > 0) buf.append("\n");
+			buf.append("Sentences annotated in batches: " + batchedSentences.get() + " in " + batchCalls.get() + " CoreNLP calls");
+		}
+		if (cache != null) {
+			if (buf.length() > 0) buf.append("\n");
+			buf.append(cache.report());
+		}
+		return buf.toString();
+	}
+
+	/**
+	 * Annotates a single sentence with the given pipeline, the same way as {@link CoreNLPWrapper#coreNLP(Sentence)}.
+	 *
+	 * @param pipeline	the CoreNLP pipeline
+	 * @param sentence	the sentence to annotate
+	 */
+	static void annotate(StanfordCoreNLP pipeline, Sentence sentence) {
+		if (sentence.getText().trim().equals("")) return;
+		Annotation annotation = new Annotation(sentence.getText());
+		pipeline.annotate(annotation);
+		List<CoreMap> annotated = annotation.get(CoreAnnotations.SentencesAnnotation.class);
+		if (annotated == null || annotated.size() == 0) {
+			log.warning("No sentence annotations were generated. Skipping coreNLP..");
+			return;
+		}
+		if (annotated.size() != 1) return;
+		attach(sentence, annotated.get(0), sentence.getSpan().getBegin(), null);
+	}
+
+	private static void attach(Sentence sentence, SentenceAnnotationCache.Entry entry) {
+		List<Word> words = CoreNLPWrapper.getSentenceWords(entry.getTokens(), sentence.getSpan().getBegin());
+		sentence.setWords(words);
+		for (Word w: words)
+			w.setSentence(sentence);
+		sentence.setTree(entry.getTree());
+		List<SynDependency> deps = entry.getDependencies(words);
+		sentence.setDependencyList(deps);
+		sentence.setSurfaceElements(new ArrayList<>(words));
+		sentence.setEmbeddings(new ArrayList<>(deps));
+	}
+
+	/**
+	 * Attaches the CoreNLP annotations of a sentence to the sentence object, the same way as
+	 * {@link CoreNLPWrapper#coreNLP(Sentence)}.
+	 *
+	 * @param sentence	the sentence
+	 * @param cm		the CoreNLP sentence annotation
+	 * @param offset	the offset to add to CoreNLP character offsets to get document offsets
+	 * @param fallback	null if the sentence is fully annotated, otherwise the reason it was not parsed
+	 */
+	private static void attach(Sentence sentence, CoreMap cm, int offset, String fallback) {
+		List<Word> words = CoreNLPWrapper.getSentenceWords(cm, offset);
+		sentence.setWords(words);
+		for (Word w: words)
+			w.setSentence(sentence);
+		List<SynDependency> deps = new ArrayList<>();
+		if (fallback == null) {
+			sentence.setTree(CoreNLPWrapper.getSentenceTree(cm));
+			deps = CoreNLPWrapper.getSentenceDependencies(cm, words);
+			if (cache != null) cache.put(sentence.getText(), cm, words, deps);
+		} else {
+			fallbacks.put(sentence, fallback);
+			if (fallback.equals("tokens")) tokenFallbacks.incrementAndGet();
+			else if (fallback.equals("time")) timeFallbacks.incrementAndGet();
+			else budgetFallbacks.incrementAndGet();
+		}
+		sentence.setDependencyList(deps);
+		sentence.setSurfaceElements(new ArrayList<>(words));
+		sentence.setEmbeddings(new ArrayList<>(deps));
+	}
+}
@@ -0,0 +1,261 @@
+package gov.nih.nlm.limitations;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import gov.nih.nlm.ling.core.Document;
+import gov.nih.nlm.ling.core.Section;
+import gov.nih.nlm.ling.core.Sentence;
+import gov.nih.nlm.ling.core.SynDependency;
+import gov.nih.nlm.ling.core.Word;
+import gov.nih.nlm.ling.sem.SemanticItem;
+import gov.nih.nlm.ling.wrappers.CoreNLPWrapper;
+import nu.xom.Attribute;
+import nu.xom.Element;
+import nu.xom.Node;
+import nu.xom.Text;
+
+/**
+ * Writes the XML representation of a parsed document with a StAX writer, without building the XOM tree
+ * of the whole document. The document and sentence structure is streamed directly; tokens, dependencies,
+ * sections and semantic items are serialized one at a time from the small elements the core library generates
+ * for them, so the output is the same as that of {@link Document#toXml()} with 4-space indentation, including the
+ * <code>parseFallback</code> attribute of {@link SentenceAnnotator}. <p>
+ *
+ * Indentation can be turned off with the <code>xmlIndent</code> property. The XML is written to a temporary
+ * file next to the output file, which is then renamed, so that an output file is either complete or absent.
+ *
+ * @author Halil Kilicoglu
+ *
+ */
+public class StreamingXmlWriter {
+	private static final String XML_NS = "http://www.w3.org/XML/1998/namespace";
+	private static final String LINE_SEPARATOR = "\r\n";
+	private static final int INDENT = 4;
+	private static final int MAX_CACHED_DEPTH = 16;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private static XMLOutputFactory factory = XMLOutputFactory.newInstance();
+	private static boolean indent = true;
+	private static String[] breaks = new String[MAX_CACHED_DEPTH];
+
+	static {
+		StringBuilder buf = new StringBuilder(LINE_SEPARATOR);
+		for (int i=0; i < MAX_CACHED_DEPTH; i++) {
+			breaks[i] = buf.toString();
+			for (int j=0; j < INDENT; j++) buf.append(' ');
+		}
+	}
+
+	/**
+	 * Sets the serialization options from properties.
+	 *
+	 * @param props	the properties
+	 */
+	public static void init(Properties props) {
+		indent = Boolean.parseBoolean(props.getProperty("xmlIndent", "true"));
+	}
+
+	/**
+	 * Writes a document to a file, compressing it if the file extension indicates compression.
+	 *
+	 * @param doc			the document
+	 * @param outFilename	the output file
+	 * @throws IOException	if the file cannot be written
+	 */
+	public static void write(Document doc, String outFilename) throws IOException {
+		DocumentEvent event = new DocumentEvent.Serialization().start(doc.getId());
+		String result = "failed";
+		Path temp = CorpusIO.temporaryFile(outFilename);
+		try {
+			try (OutputStream os = CorpusIO.openOutputStream(temp, outFilename)) {
+				// the StAX writer writes in small pieces, which are costly to encode one by one
+				Writer writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), BUFFER_SIZE);
+				XMLStreamWriter xw = factory.createXMLStreamWriter(writer);
+				writeDocument(xw, doc);
+				xw.close();
+				writer.flush();
+			}
+			CorpusIO.publish(temp, outFilename);
+			result = outFilename;
+		} catch (XMLStreamException xse) {
+			throw new IOException("Unable to write " + outFilename, xse);
+		} finally {
+			Files.deleteIfExists(temp);
+			event.finish(doc, result);
+		}
+	}
+
+	private static void writeDocument(XMLStreamWriter xw, Document doc) throws XMLStreamException {
+		xw.writeStartDocument("UTF-8", "1.0");
+		xw.writeCharacters(LINE_SEPARATOR);
+		xw.writeStartElement("document");
+		xw.writeAttribute("id", doc.getId());
+		writePreserved(xw, "text", doc.getText(), 1);
+		if (doc.getSentences() != null) {
+			for (Sentence sentence: doc.getSentences())
+				writeSentence(xw, sentence, 1);
+		}
+		if (doc.getSections() != null) {
+			for (Section section: doc.getSections())
+				writeElement(xw, section.toXml(), 1, false);
+		}
+		if (doc.getSemanticItems() != null) {
+			for (Class<? extends SemanticItem> c: doc.getSemanticItems().keySet()) {
+				Set<SemanticItem> items = doc.getSemanticItems().get(c);
+				for (SemanticItem item: items)
+					writeElement(xw, item.toXml(), 1, false);
+			}
+		}
+		newline(xw, 0);
+		xw.writeEndElement();
+		xw.writeEndDocument();
+		xw.writeCharacters(LINE_SEPARATOR);
+	}
+
+	private static void writeSentence(XMLStreamWriter xw, Sentence sentence, int depth) throws XMLStreamException {
+		newline(xw, depth);
+		xw.writeStartElement("sentence");
+		xw.writeAttribute("charOffset", sentence.getSpan().toString());
+		xw.writeAttribute("id", sentence.getId());
+		String fallback = SentenceAnnotator.getParseFallback(sentence);
+		if (fallback != null) xw.writeAttribute("parseFallback", fallback);
+		writePreserved(xw, "text", sentence.getText(), depth+1);
+		List<Word> words = sentence.getWords();
+		if (words != null) {
+			newline(xw, depth+1);
+			if (words.size() == 0) xw.writeEmptyElement("tokens");
+			else {
+				xw.writeStartElement("tokens");
+				int i = 1;
+				for (Word w: words)
+					writeElement(xw, w.toXml(i++), depth+2, false);
+				newline(xw, depth+1);
+				xw.writeEndElement();
+			}
+		}
+		List<SynDependency> deps = sentence.getDependencyList();
+		if (deps != null) {
+			newline(xw, depth+1);
+			if (deps.size() == 0) xw.writeEmptyElement("dependencies");
+			else {
+				xw.writeStartElement("dependencies");
+				int i = 1;
+				for (SynDependency d: deps)
+					writeElement(xw, d.toXml(i++), depth+2, false);
+				newline(xw, depth+1);
+				xw.writeEndElement();
+			}
+		}
+		if (sentence.getTree() != null) {
+			newline(xw, depth+1);
+			xw.writeStartElement("tree");
+			writeText(xw, CoreNLPWrapper.printTree(sentence.getTree()), indent);
+			xw.writeEndElement();
+		}
+		newline(xw, depth);
+		xw.writeEndElement();
+	}
+
+	private static void writePreserved(XMLStreamWriter xw, String name, String text, int depth) throws XMLStreamException {
+		newline(xw, depth);
+		xw.writeStartElement(name);
+		xw.writeAttribute("xml", XML_NS, "space", "preserve");
+		writeText(xw, text == null ? "" : text, false);
+		xw.writeEndElement();
+	}
+
+	/**
+	 * Streams a (small) XOM element, indenting it as the XOM serializer would.
+	 */
+	private static void writeElement(XMLStreamWriter xw, Element el, int depth, boolean preserve) throws XMLStreamException {
+		if (preserve == false) newline(xw, depth);
+		String space = el.getAttributeValue("space", XML_NS);
+		if (space != null) preserve = space.equals("preserve");
+		if (el.getChildCount() == 0) {
+			xw.writeEmptyElement(el.getQualifiedName());
+			writeAttributes(xw, el);
+			return;
+		}
+		xw.writeStartElement(el.getQualifiedName());
+		writeAttributes(xw, el);
+		boolean elementChildren = false;
+		for (int i=0; i < el.getChildCount(); i++) {
+			Node child = el.getChild(i);
+			if (child instanceof Element) {
+				writeElement(xw, (Element)child, depth+1, preserve);
+				elementChildren = true;
+			} else if (child instanceof Text) {
+				String value = child.getValue();
+				// the XOM serializer drops whitespace between elements when indenting
+				if (indent && preserve == false && value.trim().length() == 0) continue;
+				writeText(xw, value, indent && preserve == false);
+			}
+		}
+		if (elementChildren && preserve == false) newline(xw, depth);
+		xw.writeEndElement();
+	}
+
+	private static void writeAttributes(XMLStreamWriter xw, Element el) throws XMLStreamException {
+		for (int i=0; i < el.getAttributeCount(); i++) {
+			Attribute att = el.getAttribute(i);
+			if (att.getNamespaceURI().equals("")) xw.writeAttribute(att.getLocalName(), att.getValue());
+			else xw.writeAttribute(att.getNamespacePrefix(), att.getNamespaceURI(), att.getLocalName(), att.getValue());
+		}
+	}
+
+	/**
+	 * Writes character data. Carriage returns are written as character references, so that they survive parsing.
+	 * Outside <code>xml:space="preserve"</code>, the XOM serializer collapses white space when indenting, which is
+	 * done here with <var>normalize</var>.
+	 */
+	private static void writeText(XMLStreamWriter xw, String text, boolean normalize) throws XMLStreamException {
+		StringBuilder buf = null;
+		int start = 0;
+		for (int i=0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			boolean space = (c == ' ' || c == '\n' || c == '\t' || c == '\r');
+			if (normalize && space) {
+				if (buf == null) buf = new StringBuilder(text.length());
+				buf.append(text, start, i).append(' ');
+				while (i+1 < text.length() && " \n\t\r".indexOf(text.charAt(i+1)) >= 0) i++;
+				start = i + 1;
+				continue;
+			}
+			if (c >= 0x20 && c < 0xFFFE || c == '\n' || c == '\t') continue;
+			if (c != '\r') throw new XMLStreamException("Character 0x" + Integer.toHexString(c) + " is not allowed in XML.");
+			if (buf != null) {
+				buf.append(text, start, i);
+				xw.writeCharacters(buf.toString());
+				buf.setLength(0);
+			} else xw.writeCharacters(text.substring(start, i));
+			xw.writeEntityRef("#x0D");
+			start = i + 1;
+		}
+		if (buf != null) xw.writeCharacters(buf.append(text, start, text.length()).toString());
+		else xw.writeCharacters(start == 0 ? text : text.substring(start));
+	}
+
+	private static void newline(XMLStreamWriter xw, int depth) throws XMLStreamException {
+		if (indent == false) return;
+		if (depth < MAX_CACHED_DEPTH) xw.writeCharacters(breaks[depth]);
+		else {
+			StringBuilder buf = new StringBuilder(LINE_SEPARATOR);
+			for (int i=0; i < depth * INDENT; i++) buf.append(' ');
+			xw.writeCharacters(buf.toString());
+		}
+	}
+}
@@ -0,0 +1,619 @@
+package gov.nih.nlm.limitations;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import gov.nih.nlm.ling.core.Document;
+import gov.nih.nlm.ling.core.Sentence;
+import gov.nih.nlm.ling.io.XMLReader;
+import gov.nih.nlm.ling.sem.SemanticItem;
+import gov.nih.nlm.ling.util.FileUtils;
+import nu.xom.Builder;
+import nu.xom.Element;
+import nu.xom.Elements;
+
+/**
+ * Generates synthetic parsed XML corpora of any size from a directory of parsed XML documents (e.g., <code>DATA/XML</code>)
+ * used as templates, for load testing without real full texts. The generated documents can be read by all the
+ * recognizers. <p>
+ *
+ * The templates are broken into section blocks: the paragraphs of a top-level section, and its subsections with
+ * their titles and paragraphs. A synthetic document takes its title and its top-level sections from a random template,
+ * and fills each section, in proportion to its size in the template, with blocks drawn at random from sections of the
+ * same kind (abstract, introduction, methods, results, discussion, other) across all templates. Sentences keep their
+ * tokens, dependencies and parse trees, with their offsets moved to the new text. Blocks about limitations (a subsection
+ * with <i>limitation</i> or <i>weakness</i> in its title, or blocks with sentences that
+ * {@link RuleBasedLimitationSentenceRecognizer} labels as limitation sentences in the template) are kept apart, and one
+ * of them is added to the discussion of a document with probability <code>synthLimitationRate</code>.
+ * The options are:
+ * <ul>
+ * <li><code>synthDocuments</code>: the number of documents to generate (default 1000)
+ * <li><code>synthSizeMedian</code>, <code>synthSizeSigma</code>: the number of sentences of a document is drawn from a
+ * log-normal distribution with this median and log-scale standard deviation (default: those of the templates)
+ * <li><code>synthMaxSentences</code>: the largest number of sentences in a document (default 50000)
+ * <li><code>synthLimitationRate</code>: the proportion of documents with a limitation block (default: that of the templates)
+ * <li><code>synthLongSentenceRate</code>: the proportion of sentences replaced by a very long sentence, which joins
+ * sentences into one until it has <code>synthLongSentenceTokens</code> tokens (default 0 and 500)
+ * <li><code>synthIdPrefix</code>: the prefix of the document ids, which are numbered from 1 (default <code>SYN</code>)
+ * <li><code>synthSeed</code>: the random seed, so that a corpus can be generated again (default 1)
+ * </ul>
+ * The output options (<code>outputLayout</code>, <code>outputCompression</code>) are those of {@link CorpusParser}.
+ *
+ * @author Halil Kilicoglu
+ *
+ */
+public class SyntheticCorpusGenerator {
+	private static Logger log = Logger.getLogger(SyntheticCorpusGenerator.class.getName());
+
+	private static final Pattern LIMITATION_TITLE = Pattern.compile("limitation|weakness", Pattern.CASE_INSENSITIVE);
+	private static final String DISCUSSION = "discussion";
+
+	private static int documents = 1000;
+	private static double sizeMedian = 0;
+	private static double sizeSigma = 0;
+	private static int maxSentences = 50000;
+	private static double limitationRate = -1;
+	private static double longSentenceRate = 0;
+	private static int longSentenceTokens = 500;
+	private static String idPrefix = "SYN";
+	private static long seed = 1;
+	private static String outputExtension = ".xml";
+
+	/**
+	 * A template sentence, with its token offsets relative to the sentence begin.
+	 */
+	private static class TemplateSentence {
+		private final String text;
+		private final String tokens;
+		private final String dependencies;
+		private final String tree;
+		private final int tokenCount;
+		private final int dependencyCount;
+		private boolean limitation = false;
+
+		private TemplateSentence(String text, String tokens, String dependencies, String tree, int tokenCount, int dependencyCount) {
+			this.text = text;
+			this.tokens = tokens;
+			this.dependencies = dependencies;
+			this.tree = tree;
+			this.tokenCount = tokenCount;
+			this.dependencyCount = dependencyCount;
+		}
+	}
+
+	/**
+	 * The paragraphs of a section or subsection, with the subsection title if any.
+	 */
+	private static class Block {
+		private final String title;
+		private final TemplateSentence titleSentence;
+		private final List<List<TemplateSentence>> paragraphs = new ArrayList<>();
+		private int size = 0;
+
+		private Block(String title, TemplateSentence titleSentence) {
+			this.title = title;
+			this.titleSentence = titleSentence;
+		}
+	}
+
+	/**
+	 * A top-level section of a template, with its share of the template sentences.
+	 */
+	private static class SkeletonSection {
+		private final String title;
+		private final TemplateSentence titleSentence;
+		private final String kind;
+		private double share;
+
+		private SkeletonSection(String title, TemplateSentence titleSentence, String kind, double share) {
+			this.title = title;
+			this.titleSentence = titleSentence;
+			this.kind = kind;
+			this.share = share;
+		}
+	}
+
+	private static Map<String,List<Block>> blocks = new HashMap<>();
+	private static List<Block> limitationBlocks = new ArrayList<>();
+	private static List<List<SkeletonSection>> skeletons = new ArrayList<>();
+	private static List<TemplateSentence> titles = new ArrayList<>();
+	private static List<TemplateSentence> allSentences = new ArrayList<>();
+	private static List<Integer> templateSizes = new ArrayList<>();
+	private static int templatesWithLimitations = 0;
+
+	/**
+	 * Sets the generation options from properties.
+	 *
+	 * @param props	the properties
+	 */
+	public static void init(Properties props) {
+		CorpusIO.init(props);
+		documents = Integer.parseInt(props.getProperty("synthDocuments", "1000"));
+		sizeMedian = Double.parseDouble(props.getProperty("synthSizeMedian", "0"));
+		sizeSigma = Double.parseDouble(props.getProperty("synthSizeSigma", "0"));
+		maxSentences = Integer.parseInt(props.getProperty("synthMaxSentences", "50000"));
+		limitationRate = Double.parseDouble(props.getProperty("synthLimitationRate", "-1"));
+		longSentenceRate = Double.parseDouble(props.getProperty("synthLongSentenceRate", "0"));
+		longSentenceTokens = Integer.parseInt(props.getProperty("synthLongSentenceTokens", "500"));
+		idPrefix = props.getProperty("synthIdPrefix", "SYN");
+		seed = Long.parseLong(props.getProperty("synthSeed", "1"));
+		outputExtension = ".xml" + CorpusIO.compressionExtension(props.getProperty("outputCompression"));
+	}
+
+	private static String kind(String title) {
+		String t = title.toLowerCase();
+		if (t.contains("abstract") || t.contains("summary")) return "abstract";
+		if (t.contains("introduction") || t.contains("background")) return "introduction";
+		if (t.contains("discussion") || t.contains("conclusion") || LIMITATION_TITLE.matcher(t).find()) return DISCUSSION;
+		if (t.contains("result") || t.contains("finding")) return "results";
+		if (t.contains("method") || t.contains("material") || t.contains("patient") || t.contains("design")) return "methods";
+		return "other";
+	}
+
+	private static int[] span(String value) {
+		int dash = value.indexOf('-');
+		return new int[]{Integer.parseInt(value.substring(0, dash)), Integer.parseInt(value.substring(dash+1))};
+	}
+
+	/**
+	 * Reads a template document into the block pools.
+	 *
+	 * @param root		the document element
+	 * @param positives	the ids of the limitation sentences
+	 */
+	private static void loadTemplate(Element root, Set<String> positives) {
+		String text = root.getFirstChildElement("text").getValue();
+		Elements sentEls = root.getChildElements("sentence");
+		int n = sentEls.size();
+		int[] begins = new int[n];
+		TemplateSentence[] sents = new TemplateSentence[n];
+		for (int i=0; i < n; i++) {
+			Element s = sentEls.get(i);
+			int begin = span(s.getAttributeValue("charOffset"))[0];
+			begins[i] = begin;
+			Element tokens = s.getFirstChildElement("tokens");
+			Elements tokenEls = tokens.getChildElements("token");
+			for (int j=0; j < tokenEls.size(); j++) {
+				int[] sp = span(tokenEls.get(j).getAttributeValue("charOffset"));
+				tokenEls.get(j).getAttribute("charOffset").setValue((sp[0] - begin) + "-" + (sp[1] - begin));
+			}
+			Element deps = s.getFirstChildElement("dependencies");
+			Element tree = s.getFirstChildElement("tree");
+			sents[i] = new TemplateSentence(s.getFirstChildElement("text").getValue(), tokens.toXML(),
+					(deps == null ? "<dependencies/>" : deps.toXML()), (tree == null ? "" : tree.getValue().trim()),
+					tokenEls.size(), (deps == null ? 0 : deps.getChildElements("dependency").size()));
+			sents[i].limitation = positives.contains(s.getAttributeValue("id"));
+			allSentences.add(sents[i]);
+		}
+		if (n == 0) return;
+		templateSizes.add(n);
+
+		Elements top = root.getChildElements("section");
+		if (top.size() == 0) return;
+		int firstSection = span(top.get(0).getAttributeValue("textSpan"))[0];
+		if (begins[0] < firstSection) titles.add(sents[0]);
+		boolean limitations = false;
+		List<SkeletonSection> skeleton = new ArrayList<>();
+		for (int i=0; i < top.size(); i++) {
+			Element sect = top.get(i);
+			String title = sect.getAttributeValue("title");
+			if (title == null || title.trim().isEmpty()) continue;
+			String kind = kind(title);
+			boolean limitationSection = LIMITATION_TITLE.matcher(title).find();
+			int[] titleSpan = (sect.getAttribute("titleSpan") == null ? null : span(sect.getAttributeValue("titleSpan")));
+			int[] textSpan = span(sect.getAttributeValue("textSpan"));
+			TemplateSentence titleSentence = sentenceAt(begins, sents, titleSpan);
+			// a top-level limitations section is taken whole
+			if (limitationSection) {
+				Block block = new Block(title, titleSentence);
+				addParagraphs(block, text, begins, sents, textSpan, Collections.singletonList(titleSpan));
+				if (block.size > 0) limitationBlocks.add(block);
+				limitations = true;
+				continue;
+			}
+			List<int[]> excluded = new ArrayList<>();
+			excluded.add(titleSpan);
+			Elements subs = sect.getChildElements("section");
+			int size = 0;
+			for (int j=0; j < subs.size(); j++) {
+				Element sub = subs.get(j);
+				int[] subSpan = span(sub.getAttributeValue("textSpan"));
+				int[] subTitleSpan = (sub.getAttribute("titleSpan") == null ? null : span(sub.getAttributeValue("titleSpan")));
+				excluded.add(subSpan);
+				String subTitle = sub.getAttributeValue("title");
+				// subsections without a title are kept as paragraphs
+				if (subTitle != null && subTitle.trim().isEmpty()) subTitle = null;
+				Block block = new Block(subTitle, (subTitle == null ? null : sentenceAt(begins, sents, subTitleSpan)));
+				addParagraphs(block, text, begins, sents, subSpan, Collections.singletonList(subTitleSpan));
+				if (block.size == 0) continue;
+				size += block.size;
+				if ((subTitle != null && LIMITATION_TITLE.matcher(subTitle).find()) || hasLimitations(block)) {
+					limitationBlocks.add(block);
+					limitations = true;
+				} else blocks.computeIfAbsent(kind, k -> new ArrayList<>()).add(block);
+			}
+			// the paragraphs outside subsections are blocks of their own
+			Block rest = new Block(null, null);
+			addParagraphs(rest, text, begins, sents, textSpan, excluded);
+			for (List<TemplateSentence> paragraph: rest.paragraphs) {
+				Block block = new Block(null, null);
+				block.paragraphs.add(paragraph);
+				block.size = paragraph.size();
+				size += block.size;
+				if (hasLimitations(block)) {
+					limitationBlocks.add(block);
+					limitations = true;
+				} else blocks.computeIfAbsent(kind, k -> new ArrayList<>()).add(block);
+			}
+			skeleton.add(new SkeletonSection(title, titleSentence, kind, size));
+		}
+		if (limitations) templatesWithLimitations++;
+		double total = 0;
+		for (SkeletonSection s: skeleton) total += s.share;
+		if (total == 0) return;
+		for (SkeletonSection s: skeleton) s.share /= total;
+		skeletons.add(skeleton);
+	}
+
+	private static boolean hasLimitations(Block block) {
+		for (List<TemplateSentence> paragraph: block.paragraphs)
+			for (TemplateSentence s: paragraph)
+				if (s.limitation) return true;
+		return false;
+	}
+
+	private static TemplateSentence sentenceAt(int[] begins, TemplateSentence[] sents, int[] sp) {
+		if (sp == null) return null;
+		for (int i=0; i < begins.length; i++)
+			if (begins[i] >= sp[0] && begins[i] < sp[1]) return sents[i];
+		return null;
+	}
+
+	private static boolean inAny(int offset, List<int[]> spans) {
+		for (int[] sp: spans)
+			if (sp != null && offset >= sp[0] && offset < sp[1]) return true;
+		return false;
+	}
+
+	/**
+	 * Adds the sentences in a span to a block, as paragraphs of the sentences on the same line.
+	 */
+	private static void addParagraphs(Block block, String text, int[] begins, TemplateSentence[] sents, int[] sp, List<int[]> excluded) {
+		int line = -2;
+		List<TemplateSentence> paragraph = null;
+		for (int i=0; i < begins.length; i++) {
+			if (begins[i] < sp[0] || begins[i] >= sp[1] || inAny(begins[i], excluded)) continue;
+			int sentLine = text.lastIndexOf('\n', begins[i]);
+			if (paragraph == null || sentLine != line) {
+				paragraph = new ArrayList<>();
+				block.paragraphs.add(paragraph);
+				line = sentLine;
+			}
+			paragraph.add(sents[i]);
+			block.size++;
+		}
+	}
+
+	/**
+	 * Reads the templates.
+	 *
+	 * @param dir	the directory (or archive) of parsed XML documents
+	 * @throws Exception	if a template cannot be read
+	 */
+	public static void loadTemplates(String dir) throws Exception {
+		Builder builder = new Builder();
+		XMLReader xmlReader = Utils.getXMLReader();
+		Map<Class<? extends SemanticItem>,List<String>> annTypes = Utils.getAnnotationTypes();
+		try (DocumentSource source = CorpusIO.openSource(dir, "xml")) {
+			while (source.hasNext()) {
+				DocumentRecord rec = source.next();
+				String file = CorpusIO.toFile(rec);
+				Document doc = CorpusIO.loadDocument(xmlReader, file, annTypes);
+				if (doc == null) continue;
+				Set<String> positives = new HashSet<>();
+				for (Sentence sent: doc.getSentences())
+					if (RuleBasedLimitationSentenceRecognizer.label(sent).equals("POS")) positives.add(sent.getId());
+				try (InputStream in = CorpusIO.openInputStream(file)) {
+					loadTemplate(builder.build(in).getRootElement(), positives);
+				}
+			}
+		}
+		if (skeletons.isEmpty()) throw new IllegalArgumentException("No templates with sections in " + dir);
+		List<Integer> sorted = new ArrayList<>(templateSizes);
+		Collections.sort(sorted);
+		double mean = 0;
+		for (int s: templateSizes) mean += Math.log(s);
+		mean /= templateSizes.size();
+		double var = 0;
+		for (int s: templateSizes) var += (Math.log(s) - mean) * (Math.log(s) - mean);
+		if (sizeMedian <= 0) sizeMedian = sorted.get(sorted.size()/2);
+		if (sizeSigma <= 0) sizeSigma = Math.sqrt(var / templateSizes.size());
+		if (limitationRate < 0) limitationRate = (double)templatesWithLimitations / templateSizes.size();
+		log.info(String.format("Templates: %d documents, %d sentences, %d limitation blocks; median %.0f sentences, sigma %.2f, limitation rate %.2f",
+				templateSizes.size(), allSentences.size(), limitationBlocks.size(), sizeMedian, sizeSigma, limitationRate));
+	}
+
+	/**
+	 * The text, sentences and sections of a synthetic document, as they are generated.
+	 */
+	private static class Synthesis {
+		private final Random random;
+		private final StringBuilder text = new StringBuilder();
+		private final StringBuilder sentences = new StringBuilder();
+		private final StringBuilder sections = new StringBuilder();
+		private int sentenceCount = 0;
+		private int longSentences = 0;
+
+		private Synthesis(Random random) {
+			this.random = random;
+		}
+
+		private void addSentence(TemplateSentence s) {
+			if (longSentenceRate > 0 && random.nextDouble() < longSentenceRate) {
+				s = longSentence(s, random);
+				longSentences++;
+			}
+			int begin = text.length();
+			text.append(s.text);
+			sentenceCount++;
+			sentences.append("<sentence charOffset=\"").append(begin).append('-').append(text.length())
+				.append("\" id=\"S").append(sentenceCount).append("\">")
+				.append("<text xml:space=\"preserve\">").append(escape(s.text)).append("</text>")
+				.append(shiftOffsets(s.tokens, begin)).append(s.dependencies)
+				.append("<tree>").append(escape(s.tree)).append("</tree></sentence>\n");
+		}
+
+		private void addParagraph(List<TemplateSentence> paragraph) {
+			for (int i=0; i < paragraph.size(); i++) {
+				if (i > 0) text.append(' ');
+				addSentence(paragraph.get(i));
+			}
+			text.append('\n');
+		}
+
+		/**
+		 * Adds a title line.
+		 *
+		 * @return the title span
+		 */
+		private int[] addTitle(String title, TemplateSentence titleSentence) {
+			int begin = text.length();
+			if (titleSentence != null) addSentence(titleSentence);
+			else text.append(title);
+			int[] sp = new int[]{begin, text.length()};
+			text.append('\n');
+			return sp;
+		}
+
+		private void addBlock(Block block) {
+			int begin = text.length();
+			int[] titleSpan = (block.title == null ? null : addTitle(block.title, block.titleSentence));
+			for (List<TemplateSentence> paragraph: block.paragraphs)
+				addParagraph(paragraph);
+			if (titleSpan != null) sections.append(section(begin, text.length() - 1, titleSpan, block.title, null));
+		}
+	}
+
+	private static String section(int begin, int end, int[] titleSpan, String title, String children) {
+		StringBuilder buf = new StringBuilder("<section textSpan=\"").append(begin).append('-').append(end).append('"');
+		buf.append(" titleSpan=\"").append(titleSpan[0]).append('-').append(titleSpan[1]).append('"');
+		buf.append(" title=\"").append(escape(title).replace("\"", "&quot;")).append('"');
+		if (children == null || children.isEmpty()) return buf.append("/>\n").toString();
+		return buf.append(">\n").append(children).append("</section>\n").toString();
+	}
+
+	/**
+	 * Joins a sentence with random sentences into a sentence of at least <code>synthLongSentenceTokens</code> tokens.
+	 */
+	private static TemplateSentence longSentence(TemplateSentence first, Random random) {
+		StringBuilder text = new StringBuilder();
+		StringBuilder tokens = new StringBuilder("<tokens>");
+		StringBuilder deps = new StringBuilder("<dependencies>");
+		StringBuilder tree = new StringBuilder("(ROOT (S");
+		int tokenCount = 0;
+		int depCount = 0;
+		TemplateSentence s = first;
+		while (true) {
+			if (text.length() > 0) text.append(' ');
+			String t = shiftOffsets(s.tokens, text.length());
+			tokens.append(shiftIds(t.substring("<tokens>".length(), t.length() - "</tokens>".length()), "stt_", tokenCount));
+			if (s.dependencyCount > 0) {
+				String d = shiftIds(shiftIds(s.dependencies, "stt_", tokenCount), "stp_", depCount);
+				deps.append(d, "<dependencies>".length(), d.length() - "</dependencies>".length());
+			}
+			String inner = s.tree.trim();
+			if (inner.startsWith("(ROOT")) inner = inner.substring("(ROOT".length(), inner.lastIndexOf(')'));
+			tree.append(' ').append(inner.trim());
+			text.append(s.text);
+			tokenCount += s.tokenCount;
+			depCount += s.dependencyCount;
+			if (tokenCount >= longSentenceTokens || s.tokenCount == 0 && tokenCount == 0) break;
+			s = allSentences.get(random.nextInt(allSentences.size()));
+		}
+		return new TemplateSentence(text.toString(), tokens.append("</tokens>").toString(),
+				(depCount == 0 ? "<dependencies/>" : deps.append("</dependencies>").toString()), tree.append("))").toString(), tokenCount, depCount);
+	}
+
+	// adds delta to the charOffset attributes
+	private static String shiftOffsets(String xml, int delta) {
+		if (delta == 0) return xml;
+		StringBuilder buf = new StringBuilder(xml.length() + 256);
+		String attr = "charOffset=\"";
+		int last = 0;
+		for (int i=xml.indexOf(attr); i >= 0; i=xml.indexOf(attr, last)) {
+			int b = i + attr.length();
+			int dash = xml.indexOf('-', b);
+			int e = xml.indexOf('"', dash);
+			buf.append(xml, last, b);
+			buf.append(Integer.parseInt(xml.substring(b, dash)) + delta).append('-').append(Integer.parseInt(xml.substring(dash+1, e)) + delta);
+			last = e;
+		}
+		return buf.append(xml, last, xml.length()).toString();
+	}
+
+	// adds delta to the numbers of the token (stt_) or dependency (stp_) ids
+	private static String shiftIds(String xml, String prefix, int delta) {
+		if (delta == 0) return xml;
+		StringBuilder buf = new StringBuilder(xml.length() + 256);
+		String start = "\"" + prefix;
+		int last = 0;
+		for (int i=xml.indexOf(start); i >= 0; i=xml.indexOf(start, last)) {
+			int b = i + start.length();
+			int e = xml.indexOf('"', b);
+			buf.append(xml, last, b).append(Integer.parseInt(xml.substring(b, e)) + delta);
+			last = e;
+		}
+		return buf.append(xml, last, xml.length()).toString();
+	}
+
+	private static String escape(String s) {
+		StringBuilder buf = null;
+		for (int i=0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			String rep = (c == '&' ? "&amp;" : c == '<' ? "&lt;" : c == '>' ? "&gt;" : null);
+			if (rep == null) {
+				if (buf != null) buf.append(c);
+				continue;
+			}
+			if (buf == null) buf = new StringBuilder(s.length() + 16).append(s, 0, i);
+			buf.append(rep);
+		}
+		return (buf == null ? s : buf.toString());
+	}
+
+	private static <T> T pick(List<T> list, Random random) {
+		return list.get(random.nextInt(list.size()));
+	}
+
+	/**
+	 * Generates a document.
+	 *
+	 * @param random	the random number generator
+	 * @param limitation	whether the document has a limitation block
+	 * @return the document
+	 */
+	private static Synthesis generate(Random random, boolean limitation) {
+		Synthesis syn = new Synthesis(random);
+		int size = (int)Math.round(sizeMedian * Math.exp(sizeSigma * random.nextGaussian()));
+		size = Math.max(10, Math.min(maxSentences, size));
+		if (titles.isEmpty() == false) {
+			syn.addSentence(pick(titles, random));
+			syn.text.append('\n');
+		}
+		List<SkeletonSection> skeleton = pick(skeletons, random);
+		int discussion = -1;
+		for (int i=0; i < skeleton.size(); i++)
+			if (skeleton.get(i).kind.equals(DISCUSSION)) discussion = i;
+		boolean appendDiscussion = (limitation && discussion < 0);
+		for (int i=0; i < skeleton.size() + (appendDiscussion ? 1 : 0); i++) {
+			SkeletonSection sect = (i < skeleton.size() ? skeleton.get(i) : new SkeletonSection("Discussion", null, DISCUSSION, 0));
+			int begin = syn.text.length();
+			int[] titleSpan = syn.addTitle(sect.title, sect.titleSentence);
+			int childStart = syn.sections.length();
+			List<Block> pool = blocks.get(sect.kind);
+			if (pool == null) pool = blocks.values().iterator().next();
+			List<Block> chosen = new ArrayList<>();
+			int quota = (int)Math.round(size * sect.share);
+			for (int n=0; n < quota || chosen.isEmpty(); ) {
+				Block block = pick(pool, random);
+				chosen.add(block);
+				n += block.size;
+			}
+			if (limitation && (i == discussion || i == skeleton.size()) && limitationBlocks.isEmpty() == false)
+				chosen.add(random.nextInt(chosen.size() + 1), pick(limitationBlocks, random));
+			for (Block block: chosen)
+				syn.addBlock(block);
+			String children = syn.sections.substring(childStart);
+			syn.sections.setLength(childStart);
+			syn.sections.append(section(begin, syn.text.length() - 1, titleSpan, sect.title, children));
+		}
+		return syn;
+	}
+
+	private static long write(String id, Synthesis syn, String outFilename) throws Exception {
+		Path temp = CorpusIO.temporaryFile(outFilename);
+		try {
+			try (Writer w = new BufferedWriter(new OutputStreamWriter(CorpusIO.openOutputStream(temp, outFilename), StandardCharsets.UTF_8), 1 << 16)) {
+				w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<document id=\"");
+				w.write(id);
+				w.write("\">\n<text xml:space=\"preserve\">");
+				w.write(escape(syn.text.toString()));
+				w.write("</text>\n");
+				w.append(syn.sentences);
+				w.append(syn.sections);
+				w.write("</document>\n");
+			}
+			long size = Files.size(temp);
+			CorpusIO.publish(temp, outFilename);
+			return size;
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Generates the synthetic corpus.
+	 *
+	 * @param outDir	the output directory
+	 * @throws Exception	if a document cannot be written
+	 */
+	public static void generate(String outDir) throws Exception {
+		CorpusIO.initOutputDirectory(outDir);
+		Random random = new Random(seed);
+		long sentences = 0, longSentences = 0, bytes = 0;
+		int withLimitations = 0;
+		int digits = Math.max(7, String.valueOf(documents).length());
+		for (int i=1; i <= documents; i++) {
+			String id = idPrefix + String.format("%0" + digits + "d", i);
+			boolean limitation = random.nextDouble() < limitationRate;
+			Synthesis syn = generate(random, limitation);
+			bytes += write(id, syn, CorpusIO.outputFile(outDir, id, outputExtension));
+			sentences += syn.sentenceCount;
+			longSentences += syn.longSentences;
+			if (limitation) withLimitations++;
+			if (i % 1000 == 0) log.info("Generated " + i + " documents.");
+		}
+		log.info(String.format("Generated %d documents (%d with limitations), %d sentences (%d very long), %.1f MB",
+				documents, withLimitations, sentences, longSentences, bytes / 1e6));
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.print("Usage: templateDirectory outputDirectory [propertiesFile]");
+			System.exit(1);
+		}
+		String in = args[0];
+		String out = args[1];
+		if (CorpusIO.isSource(in) == false) {
+			System.err.println("First argument is required to be a directory or archive of parsed XML:" + in);
+			System.exit(1);
+		}
+		File outDir = new File(out);
+		if (outDir.isDirectory() == false) {
+			System.err.println("The directory " + outDir + " doesn't exist. Creating a new directory..");
+			outDir.mkdirs();
+		}
+		Properties props = new Properties();
+		if (args.length > 2) props.putAll(FileUtils.loadPropertiesFromFile(args[2]));
+		init(props);
+		loadTemplates(in);
+		generate(out);
+	}
+}
@@ -0,0 +1,247 @@
+package gov.nih.nlm.limitations;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import gov.nih.nlm.ling.core.Document;
+import gov.nih.nlm.ling.core.Section;
+import gov.nih.nlm.ling.core.Sentence;
+import gov.nih.nlm.ling.core.Span;
+import gov.nih.nlm.ling.process.SentenceSegmenter;
+
+/**
+ * Reads GROBID TEI XML into a {@link Document} with sections, the way <code>PMCSectionSegmenter</code> does
+ * for PubMed Central XML. The TEI is read with a streaming parser, and the text of the document is built from
+ * the title, the abstract and the <code>div</code> elements of the body and the back matter (without the
+ * references), with each heading and paragraph on its own line. <p>
+ *
+ * Each <code>head</code> starts a section. GROBID does not nest the <code>div</code> elements, so the section
+ * levels are taken from the heading numbers (<code>n="2.1"</code> is a subsection of the section before it
+ * numbered <code>2</code>); headings without numbers start top-level sections, and a <code>div</code> without a
+ * heading continues the section before it. The abstract is a section titled <i>Abstract</i>. Figures, tables,
+ * formulas and notes are left out. <p>
+ *
+ * The document has no sentences; {@link #segment(Document, SentenceSegmenter, Predicate)} segments only the
+ * sections that will be labeled.
+ *
+ * @author Halil Kilicoglu
+ *
+ */
+public class TeiReader {
+	private static final Set<String> SKIPPED = new HashSet<>(Arrays.asList("figure", "table", "formula", "note", "listBibl"));
+
+	private static ThreadLocal<XMLInputFactory> factories = ThreadLocal.withInitial(() -> {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+		return factory;
+	});
+
+	// a section while the text is built
+	private static class Part {
+		private final int level;
+		private final int titleBegin;
+		private final int titleEnd;
+		private int end;
+		private final List<Part> subsections = new ArrayList<>();
+
+		private Part(int level, int titleBegin, int titleEnd) {
+			this.level = level;
+			this.titleBegin = titleBegin;
+			this.titleEnd = titleEnd;
+			this.end = titleEnd;
+		}
+
+		private Section toSection(Document doc) {
+			Section section = new Section(new Span(titleBegin, titleEnd), new Span(titleBegin, end), doc);
+			for (Part sub: subsections)
+				section.addSubsection(sub.toSection(doc));
+			return section;
+		}
+	}
+
+	// the text and its sections
+	private static class Builder {
+		private final StringBuilder text = new StringBuilder();
+		private final List<Part> top = new ArrayList<>();
+		private final Deque<Part> open = new ArrayDeque<>();
+
+		private void heading(String title, int level) {
+			while (open.isEmpty() == false && open.peek().level >= level)
+				open.pop();
+			int begin = text.length();
+			line(title);
+			Part part = new Part(level, begin, begin + title.length());
+			if (open.isEmpty()) top.add(part);
+			else open.peek().subsections.add(part);
+			open.push(part);
+		}
+
+		private void paragraph(String paragraph) {
+			line(paragraph);
+			for (Part part: open)
+				part.end = text.length() - 1;
+		}
+
+		private void line(String line) {
+			text.append(line).append('\n');
+		}
+
+		private void close() {
+			open.clear();
+		}
+	}
+
+	/**
+	 * Reads a TEI document.
+	 *
+	 * @param rec	the TEI file or content
+	 * @return the document with its sections, without sentences
+	 * @throws IOException	if the TEI cannot be read or is not well-formed
+	 */
+	public static Document read(DocumentRecord rec) throws IOException {
+		DocumentEvent event = new DocumentEvent.Load().start(rec.getId());
+		try (InputStream in = rec.openStream()) {
+			Document doc = read(rec.getId(), in);
+			event.finish(doc.getText().length(), 0, null);
+			return doc;
+		} catch (XMLStreamException xse) {
+			throw new IOException("Cannot read TEI of " + rec.getId(), xse);
+		}
+	}
+
+	/**
+	 * Reads a TEI document from a stream.
+	 *
+	 * @param id	the document id
+	 * @param in	the TEI
+	 * @return the document with its sections, without sentences
+	 * @throws XMLStreamException	if the TEI is not well-formed
+	 */
+	public static Document read(String id, InputStream in) throws XMLStreamException {
+		XMLStreamReader reader = factories.get().createXMLStreamReader(in);
+		Builder builder = new Builder();
+		Deque<String> path = new ArrayDeque<>();
+		boolean titled = false;
+		boolean inAbstract = false;
+		// the title, heading or paragraph being read, its depth and heading number
+		StringBuilder block = null;
+		int blockDepth = 0;
+		String number = null;
+		int skip = 0;
+		try {
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					String name = reader.getLocalName();
+					path.push(name);
+					if (skip > 0 || SKIPPED.contains(name) ||
+							(name.equals("div") && "references".equals(reader.getAttributeValue(null, "type")))) {
+						skip++;
+					} else if (block == null) {
+						boolean start = false;
+						if (name.equals("title")) start = (titled == false && path.contains("titleStmt"));
+						else if (name.equals("abstract")) inAbstract = true;
+						else if (name.equals("p") || name.equals("head")) start = (inAbstract || (path.contains("div") && path.contains("text")));
+						if (start) {
+							block = new StringBuilder();
+							blockDepth = path.size();
+							number = reader.getAttributeValue(null, "n");
+						}
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					int depth = path.size();
+					String name = path.pop();
+					if (skip > 0) {
+						skip--;
+					} else if (block != null && depth == blockDepth) {
+						String line = normalize(block);
+						block = null;
+						if (line.isEmpty()) continue;
+						if (name.equals("title")) {
+							builder.line(line);
+							titled = true;
+						} else if (inAbstract) {
+							if (builder.open.isEmpty()) builder.heading("Abstract", 1);
+							builder.paragraph(line);
+						}
+						else if (name.equals("head")) builder.heading(line, level(number));
+						else builder.paragraph(line);
+					} else if (name.equals("abstract")) {
+						inAbstract = false;
+						builder.close();
+					}
+				} else if (block != null && skip == 0 &&
+						(event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA || event == XMLStreamConstants.SPACE)) {
+					block.append(reader.getText());
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		Document doc = new Document(id, builder.text.toString());
+		for (Part part: builder.top)
+			doc.addSection(part.toSection(doc));
+		return doc;
+	}
+
+	/**
+	 * Segments the text of some of the top-level sections of a document into sentences. The sentences have 
+	 * the offsets of the whole document and are numbered in document order, but are not added to the document.
+	 *
+	 * @param doc		the document with sections
+	 * @param segmenter	the sentence segmenter
+	 * @param include	the top-level sections to segment
+	 * @return the sentences of the sections
+	 */
+	public static List<Sentence> segment(Document doc, SentenceSegmenter segmenter, Predicate<Section> include) {
+		List<Sentence> sentences = new ArrayList<>();
+		if (doc.getSections() == null) return sentences;
+		for (Section section: doc.getSections()) {
+			if (include.test(section) == false) continue;
+			Span span = section.getTextSpan();
+			int offset = span.getBegin();
+			List<Sentence> part = new ArrayList<>();
+			segmenter.segment(doc.getText().substring(offset, span.getEnd()), part);
+			for (Sentence s: part)
+				sentences.add(new Sentence("S" + (sentences.size() + 1), s.getText(),
+						new Span(s.getSpan().getBegin() + offset, s.getSpan().getEnd() + offset)));
+		}
+		return sentences;
+	}
+
+	/**
+	 * Finds the section level from a heading number, e.g., 2 for <code>2.1</code> or <code>2.1.</code>
+	 *
+	 * @param n	the heading number, or null
+	 * @return the level, 1 for top-level sections and for headings without numbers
+	 */
+	private static int level(String n) {
+		if (n == null) return 1;
+		String number = n.trim();
+		if (number.endsWith(".")) number = number.substring(0, number.length() - 1);
+		if (number.isEmpty()) return 1;
+		int level = 1;
+		for (int i=0; i < number.length(); i++)
+			if (number.charAt(i) == '.') level++;
+		return level;
+	}
+
+	private static String normalize(StringBuilder block) {
+		return TextDecoder.sanitize(block.toString().replaceAll("\\s+", " ").trim());
+	}
+}
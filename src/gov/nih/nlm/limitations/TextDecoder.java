@@ -0,0 +1,309 @@
+package gov.nih.nlm.limitations;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Reads UTF-8 text for parsing, in one pass and into a single character array. Files are read through a
+ * {@link FileChannel}, in chunks into a per-thread buffer, or memory-mapped if they are at least
+ * <code>inputMapThreshold</code> megabytes (default 256). Compressed files and in-memory content are
+ * decoded as they are read. <p>
+ *
+ * While the text is decoded, line terminators (<code>\r\n</code>, <code>\r</code>) are normalized to
+ * <code>\n</code> and the last line is terminated, as with {@link BufferedReader#readLine()}, and the characters
+ * that are not allowed in XML are dropped, so that the text can be written to the parsed XML as is. Characters
+ * outside the Basic Multilingual Plane (surrogate pairs) are kept; unpaired surrogates are dropped. Malformed
+ * UTF-8 is replaced with U+FFFD, as by {@link InputStreamReader}. <p>
+ *
+ * The <code>main</code> method benchmarks reading on multi-megabyte files, against reading lines into a
+ * string and filtering it.
+ *
+ * @author Halil Kilicoglu
+ *
+ */
+public class TextDecoder {
+	private static final int CHUNK_SIZE = 1 << 16;
+
+	private static long mapThreshold = 256L << 20;
+	private static ThreadLocal<ByteBuffer> chunks = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(CHUNK_SIZE));
+
+	/**
+	 * Sets the reading options from properties.
+	 *
+	 * @param props	the properties
+	 */
+	public static void init(Properties props) {
+		mapThreshold = (long)(Double.parseDouble(props.getProperty("inputMapThreshold", "256")) * (1 << 20));
+	}
+
+	/**
+	 * Reads a UTF-8 text file, possibly compressed.
+	 *
+	 * @param filename	the file to read
+	 * @return the text, with normalized line terminators and without characters not allowed in XML
+	 * @throws IOException	if the file cannot be read
+	 */
+	public static String read(String filename) throws IOException {
+		if (CorpusIO.isCompressed(filename)) {
+			try (InputStream in = CorpusIO.openInputStream(filename)) {
+				return read(Channels.newChannel(in), 4 * new File(filename).length());
+			}
+		}
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			long size = channel.size();
+			// a UTF-8 byte decodes to at most one character
+			if (size >= Integer.MAX_VALUE - 1) throw new IOException("The file is too large to read as text: " + filename);
+			if (size >= mapThreshold)
+				return decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), new char[(int)size + 1]);
+			return read(channel, size);
+		}
+	}
+
+	/**
+	 * Decodes UTF-8 content.
+	 *
+	 * @param content	the content
+	 * @return the text, with normalized line terminators and without characters not allowed in XML
+	 */
+	public static String decode(byte[] content) {
+		return decode(ByteBuffer.wrap(content), new char[content.length + 1]);
+	}
+
+	private static String decode(ByteBuffer in, char[] out) {
+		CharBuffer cb = CharBuffer.wrap(out);
+		CharsetDecoder decoder = newDecoder();
+		decoder.decode(in, cb, true);
+		decoder.flush(cb);
+		return finish(out, cb.position());
+	}
+
+	/**
+	 * Reads a channel in chunks.
+	 *
+	 * @param channel	the channel
+	 * @param estimate	the expected number of characters
+	 */
+	private static String read(ReadableByteChannel channel, long estimate) throws IOException {
+		char[] out = new char[(int)Math.min(Math.max(estimate, 16) + 1, Integer.MAX_VALUE - 8)];
+		CharBuffer cb = CharBuffer.wrap(out);
+		CharsetDecoder decoder = newDecoder();
+		ByteBuffer chunk = chunks.get();
+		chunk.clear();
+		boolean end = false;
+		while (end == false) {
+			end = (channel.read(chunk) < 0);
+			chunk.flip();
+			while (true) {
+				CoderResult result = decoder.decode(chunk, cb, end);
+				if (result.isOverflow() == false) break;
+				cb = grow(cb);
+			}
+			chunk.compact();
+		}
+		while (decoder.flush(cb).isOverflow())
+			cb = grow(cb);
+		// room for the last line terminator
+		if (cb.remaining() == 0) cb = grow(cb);
+		return finish(cb.array(), cb.position());
+	}
+
+	private static CharBuffer grow(CharBuffer cb) {
+		char[] larger = Arrays.copyOf(cb.array(), (int)Math.min(2L * cb.capacity() + 16, Integer.MAX_VALUE - 8));
+		CharBuffer grown = CharBuffer.wrap(larger);
+		grown.position(cb.position());
+		return grown;
+	}
+
+	private static CharsetDecoder newDecoder() {
+		return StandardCharsets.UTF_8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	/**
+	 * Normalizes line terminators and drops the characters not allowed in XML, in place.
+	 *
+	 * @param c	the decoded characters, with room for one more
+	 * @param n	the number of decoded characters
+	 * @return	the text
+	 */
+	private static String finish(char[] c, int n) {
+		int w = 0;
+		for (int r=0; r < n; r++) {
+			char ch = c[r];
+			if (ch >= 0x20 && ch < 0xD800 || ch == '\n' || ch == '\t') c[w++] = ch;
+			else if (ch == '\r') {
+				c[w++] = '\n';
+				if (r + 1 < n && c[r+1] == '\n') r++;
+			}
+			else if (Character.isHighSurrogate(ch)) {
+				if (r + 1 < n && Character.isLowSurrogate(c[r+1])) {
+					c[w++] = ch;
+					c[w++] = c[++r];
+				}
+			}
+			else if (ch >= 0xE000 && ch <= 0xFFFD) c[w++] = ch;
+		}
+		if (w > 0 && c[w-1] != '\n') c[w++] = '\n';
+		return new String(c, 0, w);
+	}
+
+	private static boolean isValid(char ch) {
+		return (ch >= 0x20 && ch < 0xD800) || ch == '\n' || ch == '\t' || ch == '\r' || (ch >= 0xE000 && ch <= 0xFFFD);
+	}
+
+	/**
+	 * Drops the characters that are not allowed in XML from a string. Surrogate pairs are kept.
+	 *
+	 * @param in	the string
+	 * @return	the string itself if all its characters are allowed, a copy without the others otherwise
+	 */
+	public static String sanitize(String in) {
+		if (in == null) return "";
+		int n = in.length();
+		int first = 0;
+		while (first < n) {
+			char ch = in.charAt(first);
+			if (isValid(ch)) first++;
+			else if (Character.isHighSurrogate(ch) && first + 1 < n && Character.isLowSurrogate(in.charAt(first+1))) first += 2;
+			else break;
+		}
+		if (first == n) return in;
+		char[] c = in.toCharArray();
+		int w = first;
+		for (int r=first; r < n; r++) {
+			char ch = c[r];
+			if (isValid(ch)) c[w++] = ch;
+			else if (Character.isHighSurrogate(ch) && r + 1 < n && Character.isLowSurrogate(c[r+1])) {
+				c[w++] = ch;
+				c[w++] = c[++r];
+			}
+		}
+		return new String(c, 0, w);
+	}
+
+	// reading before TextDecoder: lines into a builder, then a filtered copy
+	private static String readLines(String filename) throws IOException {
+		StringBuilder buf = new StringBuilder();
+		try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(filename), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = br.readLine()) != null) {
+				buf.append(line);
+				buf.append("\n");
+			}
+		}
+		String in = buf.toString();
+		StringBuffer out = new StringBuffer();
+		for (int i = 0; i < in.length(); i++) {
+			char current = in.charAt(i);
+			if ((current == 0x9) || (current == 0xA) || (current == 0xD) ||
+					((current >= 0x20) && (current <= 0xD7FF)) || ((current >= 0xE000) && (current <= 0xFFFD)))
+				out.append(current);
+		}
+		return out.toString();
+	}
+
+	private static String withoutSurrogates(String s) {
+		StringBuilder buf = new StringBuilder(s.length());
+		for (int i=0; i < s.length(); i++)
+			if (Character.isSurrogate(s.charAt(i)) == false) buf.append(s.charAt(i));
+		return buf.toString();
+	}
+
+	// text with multi-byte, supplementary and control characters, and CRLF line ends
+	private static void writeSample(Path file, long bytes, Random random) throws IOException {
+		String[] words = {"the", "patients", "were", "randomized", "\u03b1-synuclein", "caf\u00e9", "\u00b1", "95%",
+				"CI", "\u2264", "0.05", "\u6cbb\u7642", "limitations", "of", "this", "study", "\ud835\udefc", "\ud83d\ude00", "\u0007"};
+		try (OutputStream os = Files.newOutputStream(file)) {
+			StringBuilder line = new StringBuilder();
+			long written = 0;
+			while (written < bytes) {
+				line.setLength(0);
+				int n = 20 + random.nextInt(200);
+				for (int i=0; i < n; i++)
+					line.append(words[random.nextInt(words.length)]).append(i == n - 1 ? ".\r\n" : " ");
+				byte[] b = line.toString().getBytes(StandardCharsets.UTF_8);
+				os.write(b);
+				written += b.length;
+			}
+		}
+	}
+
+	private static long allocated() {
+		return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Benchmarks reading text files.
+	 *
+	 * @param args	the files to read; if none, sample files of 4, 32 and 128 MB are generated
+	 * @throws IOException	if a file cannot be read or written
+	 */
+	public static void main(String[] args) throws IOException {
+		String[] files = args;
+		if (files.length == 0) {
+			int[] sizes = {4, 32, 128};
+			files = new String[sizes.length];
+			Random random = new Random(1);
+			for (int i=0; i < sizes.length; i++) {
+				Path file = Files.createTempFile("textdecoder", ".txt");
+				file.toFile().deleteOnExit();
+				writeSample(file, (long)sizes[i] << 20, random);
+				files[i] = file.toString();
+			}
+		}
+		int runs = 5;
+		long defaultThreshold = mapThreshold;
+		for (String file: files) {
+			double mb = new File(file).length() / (double)(1 << 20);
+			System.out.printf("%s: %.1f MB%n", file, mb);
+			String expected = readLines(file);
+			for (String method: new String[]{"readLine", "channel", "mapped"}) {
+				mapThreshold = (method.equals("mapped") ? 0 : Long.MAX_VALUE);
+				long best = Long.MAX_VALUE;
+				long bytes = 0;
+				String text = null;
+				// the first run warms up the JIT
+				for (int r=0; r <= runs; r++) {
+					long alloc = allocated();
+					long start = System.nanoTime();
+					text = (method.equals("readLine") ? readLines(file) : read(file));
+					long time = System.nanoTime() - start;
+					if (r > 0 && time < best) {
+						best = time;
+						bytes = allocated() - alloc;
+					}
+				}
+				String check = "";
+				if (method.equals("readLine") == false) {
+					long supplementary = text.codePoints().filter(cp -> cp > 0xFFFF).count();
+					check = (withoutSurrogates(text).equals(expected) ? "same text, " + supplementary + " supplementary characters kept" : "DIFFERENT TEXT");
+				}
+				System.out.printf("  %-9s %8.1f ms %8.1f MB/s %8.1f MB allocated  %s%n", method, best / 1e6, mb / (best / 1e9), bytes / (double)(1 << 20), check);
+			}
+		}
+		mapThreshold = defaultThreshold;
+	}
+}
@@ -0,0 +1,226 @@
+package gov.nih.nlm.limitations;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import nu.xom.Builder;
+
+/**
+ * Runs the recognizers end to end on the parsed XML of the test set, checks that their output is
+ * byte-identical to the reference output, and compares their throughput with a stored baseline, so that
+ * changes that alter the output or slow the recognizers down are noticed. <p>
+ *
+ * Each recognizer is run <code>benchmarkWarmup</code> times (default 1) to warm up the JIT and then
+ * <code>benchmarkRuns</code> times (default 3), in the same JVM. The output of every run is compared with the
+ * reference. For each recognizer, the median documents per second and sentences per second over the timed
+ * runs and the peak heap use are reported. A recognizer fails if its output differs from the reference, or
+ * if its median documents per second is lower than the baseline by more than <code>benchmarkTolerance</code>
+ * (a fraction, default 0.2). <p>
+ *
+ * The baseline is read from <code>benchmarkBaseline</code> (default <code>DATA/benchmark_baseline.properties</code>).
+ * Throughput depends on the machine, so the baseline should be recorded on the machine where the benchmark
+ * is run, with <code>benchmarkUpdateBaseline=true</code>; a missing baseline is recorded as well.
+ * The recognizers to run are given in <code>benchmarkRecognizers</code>, from <code>ruleBased</code>,
+ * <code>baseline</code> and <code>documentLevel</code> (default: all). The recognizers do not log during the benchmark,
+ * unless a logging configuration is given. The reference outputs are in UTF-8, so the benchmark needs to be run
+ * with <code>-Dfile.encoding=UTF-8</code> (as the <code>benchmark</code> target of the build file does). <p>
+ *
+ * The program exits with status 1 if any recognizer fails.
+ *
+ * @author Halil Kilicoglu
+ *
+ */
+public class ThroughputBenchmark {
+	private static Logger log = Logger.getLogger(ThroughputBenchmark.class.getName());
+
+	private static String dataDir = "DATA";
+	private static int warmup = 1;
+	private static int runs = 3;
+	private static double tolerance = 0.2;
+	private static String baselineFile = "DATA/benchmark_baseline.properties";
+	private static boolean updateBaseline = false;
+	private static List<String> recognizers = Arrays.asList("ruleBased", "baseline", "documentLevel");
+
+	/**
+	 * Sets the benchmark options from properties.
+	 *
+	 * @param props	the properties
+	 */
+	public static void init(Properties props) {
+		dataDir = props.getProperty("benchmarkData", "DATA");
+		warmup = Integer.parseInt(props.getProperty("benchmarkWarmup", "1"));
+		runs = Math.max(1, Integer.parseInt(props.getProperty("benchmarkRuns", "3")));
+		tolerance = Double.parseDouble(props.getProperty("benchmarkTolerance", "0.2"));
+		baselineFile = props.getProperty("benchmarkBaseline", dataDir + "/benchmark_baseline.properties");
+		updateBaseline = Boolean.parseBoolean(props.getProperty("benchmarkUpdateBaseline", "false"));
+		recognizers = Arrays.asList(props.getProperty("benchmarkRecognizers", "ruleBased,baseline,documentLevel").split("\\s*,\\s*"));
+	}
+
+	/**
+	 * Runs a recognizer once on the test set.
+	 *
+	 * @param name	the recognizer
+	 * @param out	the output file
+	 * @throws Exception	if the recognizer fails
+	 */
+	private static void run(String name, String out) throws Exception {
+		String xml = dataDir + "/XML";
+		String gold = dataDir + "/limitation_sentences_final.txt";
+		switch (name) {
+		case "ruleBased":
+			RuleBasedLimitationSentenceRecognizer.main(new String[]{xml, gold, out});
+			break;
+		case "baseline":
+			RuleBasedLimitationSentenceRecognizerBaseline.main(new String[]{xml, gold, out});
+			break;
+		case "documentLevel":
+			DocumentLevelLimitations.main(new String[]{xml, gold, dataDir + "/limitation_documents.txt", out});
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown recognizer: " + name);
+		}
+	}
+
+	private static String reference(String name) {
+		switch (name) {
+		case "ruleBased": return dataDir + "/rule_based_test_out.txt";
+		case "baseline": return dataDir + "/baseline_test_out.txt";
+		default: return dataDir + "/document_level_test_out.txt";
+		}
+	}
+
+	private static List<MemoryPoolMXBean> heapPools() {
+		List<MemoryPoolMXBean> pools = new ArrayList<>();
+		for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP) pools.add(pool);
+		return pools;
+	}
+
+	// the sum of the pool peaks is an upper bound, since the pools do not peak at the same time
+	private static long peakHeap(List<MemoryPoolMXBean> pools) {
+		long peak = 0;
+		for (MemoryPoolMXBean pool: pools)
+			peak += pool.getPeakUsage().getUsed();
+		return peak;
+	}
+
+	private static double median(List<Double> values) {
+		List<Double> sorted = new ArrayList<>(values);
+		Collections.sort(sorted);
+		int n = sorted.size();
+		return (n % 2 == 1 ? sorted.get(n/2) : (sorted.get(n/2-1) + sorted.get(n/2)) / 2);
+	}
+
+	/**
+	 * Benchmarks the recognizers.
+	 *
+	 * @param args	optionally, a properties file with the benchmark options
+	 * @throws Exception	if the test set cannot be read
+	 */
+	public static void main(String[] args) throws Exception {
+		Properties props = new Properties();
+		if (args.length > 0) {
+			try (InputStream in = new FileInputStream(args[0])) {
+				props.load(in);
+			}
+		}
+		init(props);
+		if (System.getProperty("java.util.logging.config.file") == null) {
+			Logger.getLogger("").setLevel(Level.OFF);
+			log.setLevel(Level.INFO);
+		}
+		if (Charset.defaultCharset().equals(StandardCharsets.UTF_8) == false)
+			log.warning("The default charset is " + Charset.defaultCharset() + ", the outputs will not match the UTF-8 references.");
+
+		// the recognizers process the documents in the gold standard, which are all the documents of the test set
+		int docs = 0;
+		long sentences = 0;
+		Builder builder = new Builder();
+		File[] files = new File(dataDir, "XML").listFiles((dir, name) -> name.endsWith(".xml"));
+		if (files == null) {
+			System.err.println("Parsed XML directory does not exist:" + dataDir + "/XML");
+			System.exit(1);
+		}
+		for (File file: files) {
+			docs++;
+			sentences += builder.build(file).query("//sentence").size();
+		}
+		System.out.printf("%d documents, %d sentences; %d warmup and %d timed runs%n", docs, sentences, warmup, runs);
+
+		Properties baseline = new Properties();
+		File baseFile = new File(baselineFile);
+		if (baseFile.exists() && updateBaseline == false) {
+			try (InputStream in = new FileInputStream(baseFile)) {
+				baseline.load(in);
+			}
+		}
+		Properties measured = new Properties();
+		List<MemoryPoolMXBean> pools = heapPools();
+		File out = File.createTempFile("benchmark", ".txt");
+		out.deleteOnExit();
+		boolean failed = false;
+		for (String name: recognizers) {
+			byte[] expected = Files.readAllBytes(new File(reference(name)).toPath());
+			List<Double> docsPerSecond = new ArrayList<>();
+			boolean identical = true;
+			System.gc();
+			for (MemoryPoolMXBean pool: pools)
+				pool.resetPeakUsage();
+			for (int r=0; r < warmup + runs; r++) {
+				long start = System.nanoTime();
+				run(name, out.getPath());
+				long time = System.nanoTime() - start;
+				if (Arrays.equals(expected, Files.readAllBytes(out.toPath())) == false) {
+					identical = false;
+					log.severe("Output of " + name + " differs from " + reference(name) + " in run " + (r+1));
+				}
+				if (r >= warmup) docsPerSecond.add(docs / (time / 1e9));
+			}
+			double dps = median(docsPerSecond);
+			double sps = dps * sentences / docs;
+			double heapMB = peakHeap(pools) / (1024.0 * 1024.0);
+			measured.setProperty(name + ".docsPerSecond", String.format("%.2f", dps));
+			measured.setProperty(name + ".sentencesPerSecond", String.format("%.1f", sps));
+			measured.setProperty(name + ".peakHeapMB", String.format("%.1f", heapMB));
+
+			String status = (identical ? "OK" : "OUTPUT DIFFERS");
+			String base = baseline.getProperty(name + ".docsPerSecond");
+			String comparison = "";
+			if (base != null) {
+				double baseDps = Double.parseDouble(base);
+				comparison = String.format(", %+.1f%% vs baseline %.2f", 100.0 * (dps - baseDps) / baseDps, baseDps);
+				if (dps < baseDps * (1 - tolerance)) {
+					status = (identical ? "SLOWER" : status + ", SLOWER");
+					log.severe(String.format("%s is slower than the baseline by more than %.0f%%", name, 100 * tolerance));
+				}
+			}
+			System.out.printf("%-14s %8.2f docs/s %10.1f sentences/s %8.1f MB peak heap%s  %s%n", name, dps, sps, heapMB, comparison, status);
+			failed |= (status.equals("OK") == false);
+		}
+
+		if (updateBaseline || baseFile.exists() == false) {
+			try (OutputStream os = new FileOutputStream(baseFile)) {
+				measured.store(os, "ThroughputBenchmark baseline: " + System.getProperty("os.arch") + ", " +
+						Runtime.getRuntime().availableProcessors() + " processors, Java " + System.getProperty("java.version"));
+			}
+			System.out.println("Baseline written to " + baseFile);
+		}
+		if (failed) System.exit(1);
+	}
+}
@@ -3,6 +3,7 @@ package gov.nih.nlm.limitations;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -140,13 +141,13 @@ public class Utils {
 		String text = sent.getText();
 		Matcher m = pat1.matcher(text);
 		if (m.find()) {
-			log.fine("Citation match:" + m.group());
+			log.log(Level.FINE, "Citation match:{0}", m.group());
 			return true;
 		}
 		Pattern pat2 = Pattern.compile("\\.([0-9,\\-]+)$");
 		m = pat2.matcher(text);
 		if (m.find()) {
-			log.fine("Citation match:" + m.group());
+			log.log(Level.FINE, "Citation match:{0}", m.group());
 			return true;
 		}
 		if (text.contains(" et al")) return true;
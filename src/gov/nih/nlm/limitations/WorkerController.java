@@ -0,0 +1,202 @@
+package gov.nih.nlm.limitations;
+
+import java.io.Closeable;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Adjusts the number of documents that {@link DocumentScheduler} processes at the same time while a batch runs. <p>
+ *
+ * With <code>adaptiveWorkers=true</code>, the controller starts with half of <code>documentThreads</code> workers
+ * and, every <code>controllerInterval</code> seconds (default 10), looks at the number of documents completed per
+ * second, the longest garbage collection pause, the share of time spent in garbage collection and the heap occupancy
+ * after the last collection, from the <code>java.lang.management</code> MXBeans and their collection notifications.
+ * If a pause was longer than <code>maxGcPauseMillis</code> (default 500), GC time is over <code>maxGcTimePercent</code>
+ * (default 10) or the heap occupancy over <code>maxHeapOccupancy</code> (default 0.85), a worker is removed. The
+ * pauses are those of the stop-the-world collections; the cycles that concurrent collectors (ZGC, Shenandoah) report
+ * besides their pauses are not counted. Otherwise, a worker is added as
+ * long as that increases throughput: if it does not, the worker is removed again and the count is held for a few
+ * intervals before trying again. The count stays between 1 and <code>documentThreads</code>, and each decision is logged.
+ *
+ * @author Halil Kilicoglu
+ *
+ */
+public class WorkerController implements Closeable {
+	private static Logger log = Logger.getLogger(WorkerController.class.getName());
+
+	// throughput must increase by this much for an added worker to be kept
+	private static final double MIN_GAIN = 0.05;
+	private static final int HOLD_INTERVALS = 3;
+
+	private static boolean adaptive = false;
+	private static long interval = 10;
+	private static long maxGcPause = 500;
+	private static double maxGcTime = 0.10;
+	private static double maxOccupancy = 0.85;
+
+	private DocumentScheduler scheduler;
+	private int maxWorkers;
+	private ScheduledExecutorService timer;
+	private List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+	private List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+	private NotificationListener pauses = this::collected;
+	private AtomicLong longestPause = new AtomicLong();
+
+	private long lastTime;
+	private long lastCompleted;
+	private long lastGcTime;
+	private double lastThroughput = -1;
+	private int lastStep = 0;
+	private int hold = 0;
+
+	/**
+	 * Sets the controller options from properties.
+	 *
+	 * @param props	the properties
+	 */
+	public static void init(Properties props) {
+		adaptive = Boolean.parseBoolean(props.getProperty("adaptiveWorkers", "false"));
+		interval = Long.parseLong(props.getProperty("controllerInterval", "10"));
+		maxGcPause = Long.parseLong(props.getProperty("maxGcPauseMillis", "500"));
+		maxGcTime = Double.parseDouble(props.getProperty("maxGcTimePercent", "10")) / 100;
+		maxOccupancy = Double.parseDouble(props.getProperty("maxHeapOccupancy", "0.85"));
+	}
+
+	public static boolean isAdaptive() {
+		return adaptive;
+	}
+
+	/**
+	 * Starts controlling a scheduler.
+	 *
+	 * @param scheduler		the scheduler
+	 * @param maxWorkers	the largest number of workers
+	 */
+	public WorkerController(DocumentScheduler scheduler, int maxWorkers) {
+		this.scheduler = scheduler;
+		this.maxWorkers = maxWorkers;
+		scheduler.setWorkers(Math.max(1, (maxWorkers + 1) / 2));
+		lastTime = System.nanoTime();
+		lastCompleted = scheduler.getCompleted();
+		lastGcTime = gcTime();
+		for (GarbageCollectorMXBean gc: collectors)
+			if (gc instanceof NotificationEmitter) ((NotificationEmitter)gc).addNotificationListener(pauses, null, null);
+		timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "worker-controller");
+			t.setDaemon(true);
+			return t;
+		});
+		timer.scheduleAtFixedRate(this::adjust, interval, interval, TimeUnit.SECONDS);
+		log.info("Adaptive workers: starting with " + scheduler.getWorkers() + " of " + maxWorkers + ", adjusting every " + interval + " s.");
+	}
+
+	private long gcTime() {
+		long total = 0;
+		for (GarbageCollectorMXBean gc: collectors)
+			total += Math.max(0, gc.getCollectionTime());
+		return total;
+	}
+
+	// keeps the longest collection pause since the last adjustment
+	private void collected(Notification notification, Object handback) {
+		if (notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION) == false) return;
+		GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData)notification.getUserData());
+		if (info.getGcName().contains("Cycles") || info.getGcAction().contains("cycle")) return;
+		longestPause.accumulateAndGet(info.getGcInfo().getDuration(), Math::max);
+	}
+
+	// the occupancy of the fullest heap pool after its last collection
+	private double occupancy() {
+		double max = 0;
+		for (MemoryPoolMXBean pool: pools) {
+			if (pool.getType() != MemoryType.HEAP) continue;
+			MemoryUsage usage = pool.getCollectionUsage();
+			if (usage == null || usage.getMax() <= 0) continue;
+			max = Math.max(max, (double)usage.getUsed() / usage.getMax());
+		}
+		return max;
+	}
+
+	private void adjust() {
+		try {
+			long now = System.nanoTime();
+			long completed = scheduler.getCompleted();
+			long gc = gcTime();
+			long pause = longestPause.getAndSet(0);
+			double seconds = (now - lastTime) / 1e9;
+			double throughput = (completed - lastCompleted) / seconds;
+			double gcShare = (gc - lastGcTime) / 1000.0 / seconds;
+			double heap = occupancy();
+			lastTime = now;
+			lastCompleted = completed;
+			lastGcTime = gc;
+
+			int workers = scheduler.getWorkers();
+			int step = 0;
+			String reason;
+			if (pause > maxGcPause) {
+				step = -1;
+				hold = HOLD_INTERVALS;
+				reason = "GC pause over " + maxGcPause + " ms";
+			} else if (gcShare > maxGcTime) {
+				step = -1;
+				hold = HOLD_INTERVALS;
+				reason = "GC time over " + Math.round(maxGcTime * 100) + "%";
+			} else if (heap > maxOccupancy) {
+				step = -1;
+				hold = HOLD_INTERVALS;
+				reason = "heap occupancy over " + Math.round(maxOccupancy * 100) + "%";
+			} else if (lastStep > 0 && lastThroughput >= 0 && throughput < lastThroughput * (1 + MIN_GAIN)) {
+				step = -1;
+				hold = HOLD_INTERVALS;
+				reason = "no throughput gain from the last worker";
+			} else if (hold > 0) {
+				hold--;
+				reason = "holding";
+			} else if (workers < maxWorkers) {
+				step = 1;
+				reason = "probing for more throughput";
+			} else {
+				reason = "at the maximum";
+			}
+			int target = Math.max(1, Math.min(maxWorkers, workers + step));
+			if (target != workers) scheduler.setWorkers(target);
+			lastStep = target - workers;
+			lastThroughput = throughput;
+			log.info(String.format("Workers %d -> %d (%s): %.2f docs/s, GC pause %d ms, GC %.1f%%, heap %.0f%%",
+					workers, target, reason, throughput, pause, gcShare * 100, heap * 100));
+		} catch (RuntimeException re) {
+			log.warning("Worker controller failed: " + re.getMessage());
+		}
+	}
+
+	public void close() {
+		timer.shutdownNow();
+		for (GarbageCollectorMXBean gc: collectors) {
+			if (gc instanceof NotificationEmitter == false) continue;
+			try {
+				((NotificationEmitter)gc).removeNotificationListener(pauses);
+			} catch (ListenerNotFoundException lnfe) {
+				// not registered
+			}
+		}
+	}
+}